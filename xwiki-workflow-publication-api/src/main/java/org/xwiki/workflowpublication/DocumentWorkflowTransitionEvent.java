@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication;
+
+import org.xwiki.bridge.event.AbstractDocumentEvent;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Sent after a workflow document went through a transition of the publication workflow API which other users have to
+ * be told about, once the document is saved. The source of the event is the saved workflow document and its data the
+ * current context. Can be used to send notifications, as the publication workflow does itself.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+public class DocumentWorkflowTransitionEvent extends AbstractDocumentEvent
+{
+    /**
+     * The document was submitted for moderation.
+     */
+    public static final String SUBMIT_FOR_MODERATION = "submitForModeration";
+
+    /**
+     * The moderation of the document was refused.
+     */
+    public static final String REFUSE_MODERATION = "refuseModeration";
+
+    /**
+     * The document was submitted for validation.
+     */
+    public static final String SUBMIT_FOR_VALIDATION = "submitForValidation";
+
+    /**
+     * The validation of the document was refused.
+     */
+    public static final String REFUSE_VALIDATION = "refuseValidation";
+
+    /**
+     * The published version of the document was removed, leaving its draft.
+     */
+    public static final String UNPUBLISH = "unpublish";
+
+    private static final long serialVersionUID = 1L;
+
+    private String transition;
+
+    private String reason;
+
+    /**
+     * Constructor initializing the event filter with an
+     * {@link org.xwiki.observation.event.filter.AlwaysMatchingEventFilter}, meaning that this event will match any
+     * other workflow transition event.
+     */
+    public DocumentWorkflowTransitionEvent()
+    {
+        super();
+    }
+
+    /**
+     * @param documentReference the reference of the workflow document which went through the transition
+     * @param transition the transition, one of the constants of this class
+     * @param reason the reason given by the user for the transition, {@code null} if none
+     */
+    public DocumentWorkflowTransitionEvent(DocumentReference documentReference, String transition, String reason)
+    {
+        super(documentReference);
+        this.transition = transition;
+        this.reason = reason;
+    }
+
+    /**
+     * @return the transition, one of the constants of this class
+     */
+    public String getTransition()
+    {
+        return this.transition;
+    }
+
+    /**
+     * @return the reason given by the user for the transition, {@code null} if none
+     */
+    public String getReason()
+    {
+        return this.reason;
+    }
+}
@@ -19,6 +19,10 @@
  */
 package org.xwiki.workflowpublication;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
 import org.xwiki.component.annotation.Role;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
@@ -190,6 +194,23 @@ public interface PublicationWorkflow
      */
     boolean submitForValidation(DocumentReference document) throws XWikiException;
 
+    /**
+     * moderating -&gt; validating, for many documents at once, in a background job. The documents the current user is
+     * not allowed to moderate are left unchanged, and reported as failures in the status of the job.
+     *
+     * @param documents the drafts to submit for validation, or {@code null} for all the drafts of the current wiki
+     *     which are being moderated
+     * @return the identifier of the job submitting the documents, whose status lists the failed documents
+     * @throws XWikiException if the job cannot be started, or if this implementation has no bulk transitions
+     * @since 2.4.10
+     */
+    @Unstable
+    default List<String> submitForValidation(Collection<DocumentReference> documents) throws XWikiException
+    {
+        throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_NOT_IMPLEMENTED,
+            "The bulk submission for validation is not implemented");
+    }
+
     /**
      * validating -&gt; draft. + contributor and moderator get back rights
      * 
@@ -210,6 +231,25 @@ public interface PublicationWorkflow
      */
     boolean validate(DocumentReference document) throws XWikiException;
 
+    /**
+     * validating or validated -&gt; validated, to be published at the passed date. Once the date is reached the
+     * document is published in the background, on behalf of the current user, who is recorded as the author of the
+     * status.
+     *
+     * @param document the draft to publish later
+     * @param date when to publish the document, {@code null} to cancel its scheduled publication
+     * @return {@code true} if the publication was scheduled or cancelled, {@code false} if the document is not a draft
+     *     being validated or validated
+     * @throws XWikiException if the document cannot be saved, or if this implementation has no scheduled publications
+     * @since 2.4.10
+     */
+    @Unstable
+    default boolean schedulePublish(DocumentReference document, Date date) throws XWikiException
+    {
+        throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_NOT_IMPLEMENTED,
+            "The scheduled publication is not implemented");
+    }
+
     /**
      * validated or validating -&gt; published + document gets copied in its final place where it will be readonly anyway
      * 
@@ -219,6 +259,23 @@ public interface PublicationWorkflow
      */
     DocumentReference publish(DocumentReference document) throws XWikiException;
 
+    /**
+     * validated or validating -&gt; published, for many documents at once, in a background job. The documents the
+     * current user is not allowed to validate are left unchanged, and reported as failures in the status of the job.
+     *
+     * @param documents the drafts to publish, validated or being validated, or {@code null} for all the drafts of the
+     *     current wiki which are being validated, leaving out the validated ones, whose publication may be scheduled
+     * @return the identifier of the job publishing the documents, whose status lists the failed documents
+     * @throws XWikiException if the job cannot be started, or if this implementation has no bulk transitions
+     * @since 2.4.10
+     */
+    @Unstable
+    default List<String> publish(Collection<DocumentReference> documents) throws XWikiException
+    {
+        throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_NOT_IMPLEMENTED,
+            "The bulk publication is not implemented");
+    }
+
     /**
      * published -&gt; draft. Published document gets deleted. Content from the published document can be copied to the
      * draft or just ignored, depending on the parameter.
@@ -0,0 +1,398 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultRequest;
+import org.xwiki.job.Job;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.workflowpublication.PublicationRoles;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Applies a workflow transition to many documents in the background: either the passed documents, or all the drafts
+ * of a wiki which are in the status the transition starts from. In the latter case the drafts are fetched page by
+ * page, with keyset pagination, so that they are never all in memory. The documents are handled by a bounded number of
+ * threads, and the documents which could not go through the transition are reported in the
+ * {@link BulkTransitionJobStatus status} of the job.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named(BulkTransitionJob.JOBTYPE)
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class BulkTransitionJob extends AbstractJob<DefaultRequest, BulkTransitionJobStatus>
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "publicationworkflow.bulktransition";
+
+    /**
+     * Request property holding the transition to apply, {@link #TRANSITION_SUBMIT_FOR_VALIDATION} or
+     * {@link #TRANSITION_PUBLISH}.
+     */
+    public static final String PROPERTY_TRANSITION = "transition";
+
+    /**
+     * Request property holding the documents to apply the transition to, {@code null} for all the drafts of the wiki
+     * in the status the transition starts from.
+     */
+    public static final String PROPERTY_DOCUMENTS = "documents";
+
+    /**
+     * Request property holding the reference of the wiki of the documents.
+     */
+    public static final String PROPERTY_WIKI = "wiki";
+
+    /**
+     * Request property holding the reference of the user applying the transition.
+     */
+    public static final String PROPERTY_USER = "user";
+
+    /**
+     * Moderating to validating.
+     */
+    public static final String TRANSITION_SUBMIT_FOR_VALIDATION = "submitForValidation";
+
+    /**
+     * Validated or validating to published, only validating for all the drafts of a wiki.
+     */
+    public static final String TRANSITION_PUBLISH = "publish";
+
+    private static final String CANDIDATES_CONDITION = "from XWikiDocument doc, BaseObject obj, StringProperty status, "
+        + "IntegerProperty istarget where doc.translation = 0 and obj.name = doc.fullName "
+        + "and obj.className = :className and status.id.id = obj.id and status.id.name = 'status' "
+        + "and status.value = :status and istarget.id.id = obj.id and istarget.id.name = 'istarget' "
+        + "and istarget.value = 0";
+
+    private static final String CANDIDATES_STATEMENT =
+        "select doc.fullName " + CANDIDATES_CONDITION + "%s order by doc.fullName";
+
+    private static final String COUNT_STATEMENT = "select count(doc.fullName) " + CANDIDATES_CONDITION;
+
+    private static final String CLASS_NAME = "className";
+
+    private static final String STATUS = "status";
+
+    private static final String KEYSET_CONDITION = " and doc.fullName > :last";
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PublicationWorkflow publicationWorkflow;
+
+    @Inject
+    private PublicationRoles publicationRoles;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    /**
+     * @param transition the transition to apply
+     * @param documents the documents to apply the transition to, {@code null} for all the drafts of the wiki in the
+     *     status the transition starts from
+     * @param wiki the wiki of the documents
+     * @param user the user applying the transition
+     * @return the request of a job applying the transition
+     */
+    public static DefaultRequest createRequest(String transition, Collection<DocumentReference> documents,
+        WikiReference wiki, DocumentReference user)
+    {
+        DefaultRequest request = new DefaultRequest();
+        request.setId(Arrays.asList("publicationworkflow", "bulktransition", transition, wiki.getName(),
+            UUID.randomUUID().toString()));
+        request.setProperty(PROPERTY_TRANSITION, transition);
+        request.setProperty(PROPERTY_DOCUMENTS, documents != null ? new ArrayList<>(documents) : null);
+        request.setProperty(PROPERTY_WIKI, wiki);
+        request.setProperty(PROPERTY_USER, user);
+        request.setInteractive(false);
+        return request;
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    protected BulkTransitionJobStatus createNewStatus(DefaultRequest request)
+    {
+        Job currentJob = this.jobContext.getCurrentJob();
+        JobStatus currentJobStatus = currentJob != null ? currentJob.getStatus() : null;
+        return new BulkTransitionJobStatus(JOBTYPE, request, currentJobStatus, this.observationManager,
+            this.loggerManager);
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        String transition = this.request.getProperty(PROPERTY_TRANSITION);
+        List<DocumentReference> documents = this.request.getProperty(PROPERTY_DOCUMENTS);
+        WikiReference wiki = this.request.getProperty(PROPERTY_WIKI);
+
+        int threads = this.configuration.getBulkTransitionThreads();
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), new BasicThreadFactory.Builder()
+                .namingPattern("Publication workflow bulk transition %d").daemon(true).build());
+        // Bound the documents waiting to be handled, so that the candidates are fetched as they are handled.
+        TransitionQueue queue = new TransitionQueue(executor, threads * 2);
+        try {
+            if (documents != null) {
+                this.progressManager.pushLevelProgress(documents.size(), this);
+                for (DocumentReference document : documents) {
+                    queue.submit(document, transition);
+                }
+            } else {
+                String status = TRANSITION_PUBLISH.equals(transition) ? DefaultPublicationWorkflow.STATUS_VALIDATING
+                    : DefaultPublicationWorkflow.STATUS_MODERATING;
+                this.progressManager.pushLevelProgress(countCandidates(wiki, status), this);
+                visitCandidates(wiki, status, document -> queue.submit(document, transition));
+            }
+            queue.awaitAll();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            this.progressManager.popLevelProgress(this);
+        }
+
+        // Log the failures from the job thread so that they end up in the log of the job.
+        for (DocumentReference failedDocument : this.status.getFailedDocuments()) {
+            this.logger.error("Failed to apply the [{}] transition to [{}]", transition, failedDocument);
+        }
+        this.logger.info("Applied the [{}] transition to [{}] documents", transition, this.status.getSucceeded());
+    }
+
+    private void visitCandidates(WikiReference wiki, String status, CandidateVisitor visitor)
+        throws XWikiException, InterruptedException
+    {
+        int batchSize = this.configuration.getPublishBatchSize();
+        String last = null;
+        List<String> results;
+        do {
+            results = queryCandidates(wiki, status, last, batchSize);
+            for (String result : results) {
+                last = result;
+                visitor.visit(this.explicitStringDocRefResolver.resolve(result, wiki));
+            }
+        } while (results.size() == batchSize);
+    }
+
+    private List<String> queryCandidates(WikiReference wiki, String status, String last, int limit)
+        throws XWikiException
+    {
+        try {
+            Query query = this.queryManager.createQuery(
+                String.format(CANDIDATES_STATEMENT, last == null ? "" : KEYSET_CONDITION), Query.HQL);
+            query.bindValue(CLASS_NAME, this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS));
+            query.bindValue(STATUS, status);
+            if (last != null) {
+                query.bindValue("last", last);
+            }
+            query.setWiki(wiki.getName());
+            query.setLimit(limit);
+            return query.execute();
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not get the drafts in status [%s] of [%s]", status, wiki), e);
+        }
+    }
+
+    private int countCandidates(WikiReference wiki, String status) throws XWikiException
+    {
+        try {
+            Query query = this.queryManager.createQuery(COUNT_STATEMENT, Query.HQL);
+            query.bindValue(CLASS_NAME, this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS));
+            query.bindValue(STATUS, status);
+            query.setWiki(wiki.getName());
+            List<Long> results = query.execute();
+            return results.isEmpty() ? 0 : results.get(0).intValue();
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not count the drafts in status [%s] of [%s]", status, wiki), e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface CandidateVisitor
+    {
+        void visit(DocumentReference document) throws InterruptedException;
+    }
+
+    /**
+     * Hands the documents to the executor, and reports the progress of the job as the documents are actually handled.
+     * The progress is reported from the job thread, which is the only one the status of the job listens to.
+     */
+    private final class TransitionQueue
+    {
+        private final CompletionService<Void> completionService;
+
+        private final int maxPending;
+
+        private int pending;
+
+        TransitionQueue(ExecutorService executor, int maxPending)
+        {
+            this.completionService = new ExecutorCompletionService<>(executor);
+            this.maxPending = maxPending;
+        }
+
+        void submit(DocumentReference document, String transition) throws InterruptedException
+        {
+            if (this.pending >= this.maxPending) {
+                this.completionService.take();
+                step();
+            }
+            TransitionRunnable runnable = new TransitionRunnable(document, transition);
+            this.completionService.submit(() -> {
+                try {
+                    runnable.run();
+                } finally {
+                    // The document is also reported when the execution context could not even be initialized.
+                    if (!runnable.handled) {
+                        status.addFailure(document);
+                    }
+                }
+            }, null);
+            this.pending++;
+            // Report the documents handled in the meantime.
+            while (this.completionService.poll() != null) {
+                step();
+            }
+        }
+
+        void awaitAll() throws InterruptedException
+        {
+            while (this.pending > 0) {
+                this.completionService.take();
+                step();
+            }
+        }
+
+        private void step()
+        {
+            this.pending--;
+            progressManager.startStep(BulkTransitionJob.this);
+            progressManager.endStep(BulkTransitionJob.this);
+        }
+    }
+
+    /**
+     * Applies the transition to a document in a fresh execution context, as the user who started the job.
+     */
+    private final class TransitionRunnable extends AbstractXWikiRunnable
+    {
+        private final DocumentReference document;
+
+        private final String transition;
+
+        private volatile boolean handled;
+
+        TransitionRunnable(DocumentReference document, String transition)
+        {
+            this.document = document;
+            this.transition = transition;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            try {
+                if (applyTransition()) {
+                    status.addSuccess();
+                } else {
+                    status.addFailure(this.document);
+                }
+            } catch (XWikiException e) {
+                logger.warn("Failed to apply the [{}] transition to [{}]", this.transition, this.document, e);
+                status.addFailure(this.document);
+            }
+            this.handled = true;
+        }
+
+        private boolean applyTransition() throws XWikiException
+        {
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null) {
+                return false;
+            }
+            xcontext.setWikiId(this.document.getWikiReference().getName());
+            xcontext.setUserReference(request.getProperty(PROPERTY_USER));
+
+            // Same checks as the script service does for a single document.
+            XWikiDocument doc = xcontext.getWiki().getDocument(this.document, xcontext);
+            if (TRANSITION_PUBLISH.equals(this.transition)) {
+                return publicationRoles.canValidate(xcontext.getUserReference(), doc, xcontext)
+                    && publicationWorkflow.publish(this.document) != null;
+            } else {
+                return publicationRoles.canModerate(xcontext.getUserReference(), doc, xcontext)
+                    && publicationWorkflow.submitForValidation(this.document);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.DefaultRequest;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * The status of a {@link BulkTransitionJob}, holding the outcome of the transition for each document.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+public class BulkTransitionJobStatus extends DefaultJobStatus<DefaultRequest>
+{
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    private final List<DocumentReference> failedDocuments = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param jobType the type of the job
+     * @param request the request of the job
+     * @param parentJobStatus the status of the parent job, if any
+     * @param observationManager the observation manager component
+     * @param loggerManager the logger manager component
+     */
+    public BulkTransitionJobStatus(String jobType, DefaultRequest request, JobStatus parentJobStatus,
+        ObservationManager observationManager, LoggerManager loggerManager)
+    {
+        super(jobType, request, parentJobStatus, observationManager, loggerManager);
+    }
+
+    /**
+     * @return the number of documents which went through the transition
+     */
+    public int getSucceeded()
+    {
+        return this.succeeded.get();
+    }
+
+    /**
+     * @return the documents which could not go through the transition, because they were not in the expected status,
+     *     the user was not allowed to change it or an error occurred
+     */
+    public List<DocumentReference> getFailedDocuments()
+    {
+        return this.failedDocuments;
+    }
+
+    void addSuccess()
+    {
+        this.succeeded.incrementAndGet();
+    }
+
+    void addFailure(DocumentReference document)
+    {
+        this.failedDocuments.add(document);
+    }
+}
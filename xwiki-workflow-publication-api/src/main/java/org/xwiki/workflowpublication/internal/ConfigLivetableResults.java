@@ -0,0 +1,521 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+import org.xwiki.xml.XMLUtils;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Computes the results of the livetable listing the workflow configurations of a wiki. A page of results takes a
+ * fixed number of queries whatever its size: one to count the configurations, one to get the page, one to get the
+ * groups of all its configurations and one per wiki to get the titles of all these groups. The following pages are
+ * fetched with keyset pagination when the previous one is known. The pages are cached until a configuration or a
+ * group changes, only the rights of the current user being checked each time. The titles are cached raw: the ones
+ * which may hold scripts are displayed for each request, in the context of the current user.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = ConfigLivetableResults.class)
+@Singleton
+public class ConfigLivetableResults implements Initializable, Disposable
+{
+    /**
+     * The properties of the configurations holding a group, displayed by the livetable.
+     */
+    public static final List<String> GROUP_COLUMNS = Arrays.asList("contributor", "moderator", "validator");
+
+    /**
+     * The title column of the livetable.
+     */
+    public static final String TITLE_COLUMN = "doc.title";
+
+    private static final String CONFIGS_CONDITION = "from XWikiDocument doc, BaseObject obj "
+        + "where doc.translation = 0 and obj.name = doc.fullName and obj.className = :className";
+
+    private static final String TITLE_FILTER = " and lower(doc.title) like :title";
+
+    private static final String GROUP_FILTER = " and obj.id in (select %1$s.id.id from StringProperty %1$s "
+        + "where %1$s.id.name = '%1$s' and lower(%1$s.value) like :%1$s)";
+
+    private static final String TITLE_KEYSET_CONDITION =
+        " and (doc.title %1$s :lastTitle or (doc.title = :lastTitle and doc.fullName %1$s :lastName))";
+
+    private static final String NAME_KEYSET_CONDITION = " and doc.fullName %s :lastName";
+
+    private static final String GROUPS_STATEMENT = "select obj.name, prop.id.name, prop.value "
+        + "from BaseObject obj, StringProperty prop where obj.className = :className and obj.name in (:names) "
+        + "and prop.id.id = obj.id and prop.id.name in (:columns)";
+
+    private static final String TITLES_STATEMENT =
+        "select doc.fullName, doc.title from XWikiDocument doc where doc.translation = 0 and doc.fullName in (:names)";
+
+    private static final String CLASS_NAME = "className";
+
+    private static final String LAST_NAME = "lastName";
+
+    private static final String NAMES = "names";
+
+    private static final String VIEW = "view";
+
+    private static final String DESCENDING = "desc";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private AuthorizationManager authManager;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /**
+     * Incremented each time a configuration or a group changes.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private Cache<Page> cache;
+
+    /**
+     * The criteria of a livetable request, except the page.
+     */
+    private static final class Criteria
+    {
+        private final String sort;
+
+        private final boolean ascending;
+
+        private final String titleFilter;
+
+        private final Map<String, String> groupFilters;
+
+        Criteria(String sort, boolean ascending, String titleFilter, Map<String, String> groupFilters)
+        {
+            this.sort = sort;
+            this.ascending = ascending;
+            this.titleFilter = titleFilter;
+            this.groupFilters = groupFilters;
+        }
+
+        boolean isSortedByTitle()
+        {
+            return TITLE_COLUMN.equals(this.sort);
+        }
+
+        String getKey()
+        {
+            return this.sort + '/' + this.ascending + '/' + this.titleFilter + '/' + this.groupFilters;
+        }
+    }
+
+    /**
+     * A page of configurations, with everything needed to display it except what depends on the user, including the
+     * display of the titles.
+     */
+    private static final class Page
+    {
+        private final long total;
+
+        private final List<Row> rows;
+
+        Page(long total, List<Row> rows)
+        {
+            this.total = total;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * A configuration, with the raw title of its groups.
+     */
+    private static final class Row
+    {
+        private final DocumentReference reference;
+
+        private final String fullName;
+
+        private final String rawTitle;
+
+        /**
+         * The groups of the configuration, per column, with their raw title, {@code null} when they don't exist.
+         */
+        private final Map<String, Map.Entry<DocumentReference, String>> groups = new HashMap<>();
+
+        Row(DocumentReference reference, String fullName, String rawTitle)
+        {
+            this.reference = reference;
+            this.fullName = fullName;
+            this.rawTitle = rawTitle;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int size = this.configuration.getConfigLivetableCacheSize();
+        if (size > 0) {
+            try {
+                this.cache = this.cacheManager
+                    .createNewLocalCache(new LRUCacheConfiguration("publicationworkflow.configlivetable", size));
+            } catch (CacheException e) {
+                throw new InitializationException("Failed to create the configurations livetable cache", e);
+            }
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache != null) {
+            this.cache.dispose();
+        }
+    }
+
+    /**
+     * Forgets all the cached pages, when a configuration or a group may have changed.
+     */
+    public void invalidate()
+    {
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * @param offset the index of the first configuration to return, starting from 0
+     * @param limit the maximum number of configurations to return
+     * @param sort the column to sort the configurations on, {@link #TITLE_COLUMN} or anything else for their name
+     * @param dir the direction of the sort, {@code asc} or {@code desc}
+     * @param filters the filters on the columns of the livetable, per column
+     * @param xcontext the current context
+     * @return the results of the livetable, holding the total number of configurations of the current wiki, the
+     *     index of the first one, starting from 1, and the rows displaying them
+     * @throws XWikiException in case the configurations cannot be queried
+     */
+    public Map<String, Object> getResults(int offset, int limit, String sort, String dir, Map<String, String> filters,
+        XWikiContext xcontext) throws XWikiException
+    {
+        int validOffset = Math.max(offset, 0);
+        int validLimit = Math.max(limit, 1);
+        Map<String, String> groupFilters = new LinkedHashMap<>();
+        for (String column : GROUP_COLUMNS) {
+            String filter = StringUtils.lowerCase(StringUtils.trimToNull(filters.get(column)));
+            if (filter != null) {
+                groupFilters.put(column, filter);
+            }
+        }
+        // The configurations can only be sorted on their title or, by default, on their name.
+        Criteria criteria = new Criteria(TITLE_COLUMN.equals(sort) ? TITLE_COLUMN : null,
+            !DESCENDING.equalsIgnoreCase(dir), StringUtils.lowerCase(StringUtils.trimToNull(filters.get(TITLE_COLUMN))),
+            groupFilters);
+
+        Page page = getPage(new WikiReference(xcontext.getWikiId()), criteria, validOffset, validLimit);
+
+        // The groups are usually shared by many configurations: display their title once.
+        Map<DocumentReference, String> groupTitles = new HashMap<>();
+        List<Map<String, Object>> rows = new ArrayList<>(page.rows.size());
+        for (Row row : page.rows) {
+            rows.add(toJSON(row, groupTitles, xcontext));
+        }
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("totalrows", page.total);
+        results.put("returnedrows", rows.size());
+        results.put("offset", validOffset + 1);
+        results.put("rows", rows);
+        return results;
+    }
+
+    private Page getPage(WikiReference wiki, Criteria criteria, int offset, int limit) throws XWikiException
+    {
+        String shapeKey = this.generation.get() + "/" + wiki.getName() + '/' + criteria.getKey();
+        if (this.cache == null) {
+            return computePage(wiki, criteria, offset, limit, null);
+        }
+        String key = shapeKey + '/' + offset + '/' + limit;
+        Page page = this.cache.get(key);
+        if (page == null) {
+            // The livetable usually asks for the next page, in which case the previous one tells where to start.
+            Page previousPage =
+                offset >= limit ? this.cache.get(shapeKey + '/' + (offset - limit) + '/' + limit) : null;
+            Row cursor = previousPage != null && previousPage.rows.size() == limit
+                ? previousPage.rows.get(limit - 1) : null;
+            page = computePage(wiki, criteria, offset, limit, cursor);
+            this.cache.set(key, page);
+        }
+        return page;
+    }
+
+    private Page computePage(WikiReference wiki, Criteria criteria, int offset, int limit, Row cursor)
+        throws XWikiException
+    {
+        try {
+            long total = count(wiki, criteria);
+            List<Row> rows = new ArrayList<>(limit);
+            Map<String, Row> rowsByName = new HashMap<>();
+            if (offset < total) {
+                for (Object[] result : queryPage(wiki, criteria, offset, limit, cursor)) {
+                    String fullName = (String) result[0];
+                    DocumentReference reference = this.explicitStringDocRefResolver.resolve(fullName, wiki);
+                    Row row = new Row(reference, fullName, (String) result[1]);
+                    rows.add(row);
+                    rowsByName.put(fullName, row);
+                }
+            }
+            if (!rows.isEmpty()) {
+                loadGroups(wiki, rowsByName);
+            }
+            return new Page(total, rows);
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not get the workflow configurations of [%s]", wiki), e);
+        }
+    }
+
+    private long count(WikiReference wiki, Criteria criteria) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select count(doc.fullName) " + getCondition(criteria), Query.HQL);
+        bindCriteria(query, wiki, criteria);
+        List<Long> results = query.execute();
+        return results.isEmpty() ? 0 : results.get(0);
+    }
+
+    private List<Object[]> queryPage(WikiReference wiki, Criteria criteria, int offset, int limit, Row cursor)
+        throws QueryException
+    {
+        StringBuilder statement = new StringBuilder("select doc.fullName, doc.title ");
+        statement.append(getCondition(criteria));
+        String comparison = criteria.ascending ? ">" : "<";
+        if (cursor != null) {
+            statement.append(String.format(criteria.isSortedByTitle() ? TITLE_KEYSET_CONDITION
+                : NAME_KEYSET_CONDITION, comparison));
+        }
+        String direction = criteria.ascending ? "asc" : DESCENDING;
+        statement.append(" order by ");
+        if (criteria.isSortedByTitle()) {
+            statement.append("doc.title ").append(direction).append(", ");
+        }
+        statement.append("doc.fullName ").append(direction);
+
+        Query query = this.queryManager.createQuery(statement.toString(), Query.HQL);
+        bindCriteria(query, wiki, criteria);
+        if (cursor != null) {
+            query.bindValue(LAST_NAME, cursor.fullName);
+            if (criteria.isSortedByTitle()) {
+                query.bindValue("lastTitle", cursor.rawTitle);
+            }
+        } else {
+            query.setOffset(offset);
+        }
+        query.setLimit(limit);
+        return query.execute();
+    }
+
+    private String getCondition(Criteria criteria)
+    {
+        StringBuilder condition = new StringBuilder(CONFIGS_CONDITION);
+        if (criteria.titleFilter != null) {
+            condition.append(TITLE_FILTER);
+        }
+        for (String column : criteria.groupFilters.keySet()) {
+            condition.append(String.format(GROUP_FILTER, column));
+        }
+        return condition.toString();
+    }
+
+    private void bindCriteria(Query query, WikiReference wiki, Criteria criteria)
+    {
+        query.setWiki(wiki.getName());
+        query.bindValue(CLASS_NAME, getClassName());
+        if (criteria.titleFilter != null) {
+            query.bindValue("title").anyChars().literal(criteria.titleFilter).anyChars();
+        }
+        for (Map.Entry<String, String> filter : criteria.groupFilters.entrySet()) {
+            query.bindValue(filter.getKey()).anyChars().literal(filter.getValue()).anyChars();
+        }
+    }
+
+    private String getClassName()
+    {
+        return this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CONFIG_CLASS);
+    }
+
+    private void loadGroups(WikiReference wiki, Map<String, Row> rowsByName) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(GROUPS_STATEMENT, Query.HQL);
+        query.setWiki(wiki.getName());
+        query.bindValue(CLASS_NAME, getClassName());
+        query.bindValue(NAMES, new ArrayList<>(rowsByName.keySet()));
+        query.bindValue("columns", GROUP_COLUMNS);
+        List<Object[]> results = query.execute();
+
+        // Collect the distinct groups first, so that the title of each one is fetched once whatever the number of
+        // configurations using it.
+        Map<DocumentReference, String> groupTitles = new HashMap<>();
+        for (Object[] result : results) {
+            if (StringUtils.isNotBlank((String) result[2])) {
+                groupTitles.put(this.explicitStringDocRefResolver.resolve((String) result[2], wiki), null);
+            }
+        }
+        loadTitles(groupTitles);
+
+        for (Object[] result : results) {
+            Row row = rowsByName.get(result[0]);
+            if (row != null && StringUtils.isNotBlank((String) result[2])) {
+                DocumentReference group = this.explicitStringDocRefResolver.resolve((String) result[2], wiki);
+                row.groups.put((String) result[1],
+                    new AbstractMap.SimpleImmutableEntry<>(group, groupTitles.get(group)));
+            }
+        }
+    }
+
+    private void loadTitles(Map<DocumentReference, String> titles) throws QueryException
+    {
+        Map<WikiReference, Set<String>> namesPerWiki = new HashMap<>();
+        for (DocumentReference reference : titles.keySet()) {
+            namesPerWiki.computeIfAbsent(reference.getWikiReference(), wiki -> new LinkedHashSet<>())
+                .add(this.localSerializer.serialize(reference));
+        }
+        for (Map.Entry<WikiReference, Set<String>> names : namesPerWiki.entrySet()) {
+            Query query = this.queryManager.createQuery(TITLES_STATEMENT, Query.HQL);
+            query.setWiki(names.getKey().getName());
+            query.bindValue(NAMES, new ArrayList<>(names.getValue()));
+            for (Object[] result : query.<Object[]>execute()) {
+                titles.put(this.explicitStringDocRefResolver.resolve((String) result[0], names.getKey()),
+                    (String) result[1]);
+            }
+        }
+    }
+
+    private String getDisplayTitle(DocumentReference reference, String rawTitle, XWikiContext xcontext)
+    {
+        if (StringUtils.isBlank(rawTitle)) {
+            return getDefaultTitle(reference);
+        }
+        // Only the titles which may hold scripts need the document to be displayed.
+        if (StringUtils.containsAny(rawTitle, '$', '#', '{')) {
+            try {
+                return xcontext.getWiki().getDocument(reference, xcontext).getRenderedTitle(Syntax.PLAIN_1_0,
+                    xcontext);
+            } catch (XWikiException e) {
+                this.logger.warn("Failed to display the title of [{}]", this.serializer.serialize(reference), e);
+            }
+        }
+        return rawTitle;
+    }
+
+    private String getDefaultTitle(DocumentReference reference)
+    {
+        if (XWiki.DEFAULT_SPACE_HOMEPAGE.equals(reference.getName())) {
+            return reference.getLastSpaceReference().getName();
+        }
+        return reference.getName();
+    }
+
+    private Map<String, Object> toJSON(Row row, Map<DocumentReference, String> groupTitles, XWikiContext xcontext)
+    {
+        Map<String, Object> json = new LinkedHashMap<>();
+        DocumentReference user = xcontext.getUserReference();
+        if (!this.authManager.hasAccess(Right.VIEW, user, row.reference)) {
+            json.put("doc_viewable", false);
+            json.put("doc_fullName", "obfuscated");
+            return json;
+        }
+        XWiki xwiki = xcontext.getWiki();
+        json.put("doc_viewable", true);
+        json.put("doc_fullName", row.fullName);
+        json.put("doc_space", this.localSerializer.serialize(row.reference.getLastSpaceReference()));
+        json.put("doc_name", row.reference.getName());
+        json.put("doc_wiki", row.reference.getWikiReference().getName());
+        json.put("doc_url", xwiki.getURL(row.reference, VIEW, xcontext));
+        json.put("doc_title", getDisplayTitle(row.reference, row.rawTitle, xcontext));
+        json.put("doc_hasedit", this.authManager.hasAccess(Right.EDIT, user, row.reference));
+        json.put("doc_edit_url", xwiki.getURL(row.reference, "edit", xcontext));
+        json.put("doc_hasdelete", this.authManager.hasAccess(Right.DELETE, user, row.reference));
+        json.put("doc_delete_url", xwiki.getURL(row.reference, "delete", xcontext));
+        for (String column : GROUP_COLUMNS) {
+            Map.Entry<DocumentReference, String> group = row.groups.get(column);
+            if (group != null) {
+                // The groups which don't exist are displayed with their name.
+                String title = groupTitles.computeIfAbsent(group.getKey(),
+                    reference -> getDisplayTitle(reference, group.getValue(), xcontext));
+                json.put(column, String.format("<a href=\"%s\">%s</a>",
+                    XMLUtils.escape(xwiki.getURL(group.getKey(), VIEW, xcontext)), XMLUtils.escape(title)));
+            } else {
+                json.put(column, "");
+            }
+        }
+        return json;
+    }
+}
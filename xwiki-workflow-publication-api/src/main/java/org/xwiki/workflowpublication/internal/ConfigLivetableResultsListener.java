@@ -0,0 +1,87 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Empties the {@link ConfigLivetableResults} cache when a workflow configuration or a group, whose title is displayed
+ * by the configurations livetable, is created, updated or deleted.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowconfiglivetable")
+@Singleton
+public class ConfigLivetableResultsListener implements EventListener
+{
+    private static final EntityReference GROUP_CLASS =
+        new EntityReference("XWikiGroups", EntityType.DOCUMENT, new EntityReference("XWiki", EntityType.SPACE));
+
+    @Inject
+    private ConfigLivetableResults results;
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowconfiglivetable";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        // The deleted documents only hold their objects in their original version.
+        if (isDisplayed(document) || (document.getOriginalDocument() != null
+            && isDisplayed(document.getOriginalDocument()))) {
+            this.results.invalidate();
+        }
+    }
+
+    private boolean isDisplayed(XWikiDocument document)
+    {
+        return document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CONFIG_CLASS) != null
+            || document.getXObject(GROUP_CLASS) != null;
+    }
+}
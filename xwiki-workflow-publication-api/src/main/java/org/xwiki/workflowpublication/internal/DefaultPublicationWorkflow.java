@@ -23,9 +23,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -44,6 +47,9 @@ import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 import org.xwiki.contrib.rights.RightsWriter;
 import org.xwiki.contrib.rights.RulesObjectWriter;
+import org.xwiki.job.DefaultRequest;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
 import org.xwiki.localization.ContextualLocalizationManager;
 import org.xwiki.logging.LogLevel;
 import org.xwiki.logging.event.LogEvent;
@@ -57,7 +63,6 @@ import org.xwiki.model.reference.SpaceReference;
 import org.xwiki.model.reference.SpaceReferenceResolver;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.observation.ObservationManager;
-import org.xwiki.properties.converter.Converter;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
@@ -65,10 +70,12 @@ import org.xwiki.security.authorization.ReadableSecurityRule;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.security.authorization.RuleState;
 import org.xwiki.workflowpublication.DocumentChildPublishingEvent;
+import org.xwiki.workflowpublication.DocumentWorkflowTransitionEvent;
 import org.xwiki.workflowpublication.PublicationRoles;
 import org.xwiki.workflowpublication.PublicationWorkflow;
 import org.xwiki.workflowpublication.WorkflowConfigManager;
 
+import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.MetaDataDiff;
@@ -78,6 +85,7 @@ import com.xpn.xwiki.doc.merge.MergeConfiguration;
 import com.xpn.xwiki.doc.merge.MergeResult;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.ObjectDiff;
+import com.xpn.xwiki.store.XWikiStoreInterface;
 
 /**
  * @version $Id$
@@ -98,6 +106,20 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
     
     public final static String WF_STATUS_AUTHOR_FIELDNAME = "statusAuthor";
 
+    /**
+     * The field holding the date when the document entered its current status.
+     *
+     * @since 2.4.10
+     */
+    public static final String WF_STATUS_DATE_FIELDNAME = "statusDate";
+
+    /**
+     * The field holding the date when a validated document has to be published, if its publication is scheduled.
+     *
+     * @since 2.4.10
+     */
+    public static final String WF_PUBLISH_DATE_FIELDNAME = "publishDate";
+
     public final static String WF_IS_TARGET_FIELDNAME = "istarget";
 
     public final static String WF_IS_DRAFTSPACE_FIELDNAME = "defaultDraftSpace";
@@ -128,6 +150,12 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
 
     public final static String CONTEXTKEY_PUBLISHING = "publicationworkflow:publish";
 
+    /**
+     * The key of the context set while the workflow saves a document, which lets the changes of its workflow object
+     * through.
+     */
+    public static final String CONTEXTKEY_WORKFLOW_SAVE = "publicationworkflow:save";
+
     public static final String DEFAULT_PUBLICATION_COMMENT = "Published new version of the document by {0}.";
 
     public static final EntityReference COMMENTS_CLASS = new EntityReference("XWikiComments", EntityType.DOCUMENT,
@@ -229,22 +257,29 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
     private RulesObjectWriter rulesObjectWriter;
 
     /**
-     * Used to retrieve page children using the reference hierarchy.
+     * Used to retrieve all the descendants of a page using the reference hierarchy.
      */
     @Inject
-    @Named("nestedPages")
-    private org.xwiki.tree.Tree tree;
+    private DocumentDescendantsEnumerator descendantsEnumerator;
 
     /**
-     * Used to convert an EntityReference into a {@link org.xwiki.tree.TreeNode} id.
+     * Used to read the instance wide settings, such as the number of descendants handled at once.
      */
     @Inject
-    @Named("entityTreeNodeId")
-    private Converter<EntityReference> entityTreeNodeIdConverter;
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    private JobExecutor jobExecutor;
 
     @Inject
     private QueryManager queryManager;
 
+    /**
+     * Used to log the transitions of the workflow documents as they are saved.
+     */
+    @Inject
+    private TransitionLog transitionLog;
+
     /**
      * {@inheritDoc}
      * 
@@ -526,23 +561,9 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
             }
         }
 
-        // Copy the page children if the "includeChildren" argument is true, and remove the obsolete ones.
+        // Copy the page descendants if the "includeChildren" argument is true, and remove the obsolete ones.
         if (includeChildren) {
-            List<DocumentReference> children = getChildren(targetRef);
-            // Retrieve all draft's children and keep only the ones that do not have a counterpart in the target.
-            // Delete the obsolete ones.
-            List<DocumentReference> obsoleteDraftChildren = getChildren(draftDocRef);
-            for (DocumentReference child : children) {
-                DocumentReference childTarget = getChildTarget(child, targetRef, draftDocRef);
-                copyDocument(child, childTarget, targetRef, xcontext.getUserReference(), true, message);
-                obsoleteDraftChildren.remove(childTarget);
-            }
-            // Delete draft's children without a counterpart in the target.
-            for (DocumentReference obsoletePublishedChild : obsoleteDraftChildren) {
-                XWikiDocument obsoletePublishedChildDocument =
-                    xcontext.getWiki().getDocument(obsoletePublishedChild, xcontext);
-                xcontext.getWiki().deleteDocument(obsoletePublishedChildDocument, xcontext);
-            }
+            copyDescendants(targetRef, draftDocRef, targetRef, xcontext.getUserReference(), message, xcontext);
         }
 
         return draftDocRef;
@@ -720,6 +741,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         // Mark document as target.
         workflowObject.set(WF_IS_TARGET_FIELDNAME, 1, xcontext);
         workflowObject.set(WF_STATUS_FIELDNAME, STATUS_PUBLISHED, xcontext);
+        workflowObject.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
 
         // There are no rights settings on published documents, as per the rule of workflow.
 
@@ -790,6 +812,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
 
         // Add the author in order to keep track of the person who change the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
 
         // save the doc.
         // TODO: prevent the save protection from being executed, when it would be implemented
@@ -800,6 +823,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
             this.getMessage("workflow.save.submitForModeration", defaultMessage,
                 Collections.singletonList(stringSerializer.serialize(document)));
         saveDocumentWithoutRightsCheck(doc, message, true, xcontext);
+        notifyTransition(doc, DocumentWorkflowTransitionEvent.SUBMIT_FOR_MODERATION, null, xcontext);
 
         return true;
     }
@@ -820,11 +844,13 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
        
         // Add the author in order to keep track of the person who change the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         // save the document prepared like this
         String defaultMessage = "Refused moderation : " + reason;
         String message = getMessage("workflow.save.refuseModeration", defaultMessage, Collections.singletonList(reason));
         saveDocumentWithoutRightsCheck(doc, message, false, xcontext);
+        notifyTransition(doc, DocumentWorkflowTransitionEvent.REFUSE_MODERATION, reason, xcontext);
 
         return true;
     }
@@ -845,6 +871,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         
         // Add the author in order to keep track of the person who change the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);      
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         // and put the rights, only if option "skipDraftRights" is inactive
         BaseObject wfConfig =
@@ -890,6 +917,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
             getMessage("workflow.save.submitForValidation", defaultMessage,
                 Collections.singletonList(stringSerializer.serialize(document)));
         saveDocumentWithoutRightsCheck(doc, message, true, xcontext);
+        notifyTransition(doc, DocumentWorkflowTransitionEvent.SUBMIT_FOR_VALIDATION, null, xcontext);
 
         return true;
     }
@@ -910,11 +938,13 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         
         // Add the author in order to keep track of the person who change the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         // save the document prepared like this
         String defaultMessage = "Refused publication : " + reason;
         String message = getMessage("workflow.save.refuseValidation", defaultMessage, Collections.singletonList(reason));
         saveDocumentWithoutRightsCheck(doc, message, false, xcontext);
+        notifyTransition(doc, DocumentWorkflowTransitionEvent.REFUSE_VALIDATION, reason, xcontext);
 
         return true;
     }
@@ -935,6 +965,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         
         // Add the author in order to keep track of the person who change the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         // rights stay the same, only validator has the right to edit the document in the valid state, all other
         // participants to workflow can view it.
@@ -950,6 +981,45 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         return true;
     }
 
+    @Override
+    public boolean schedulePublish(DocumentReference document, Date date) throws XWikiException
+    {
+        XWikiContext xcontext = getXContext();
+        XWikiDocument doc = xcontext.getWiki().getDocument(document, xcontext);
+
+        BaseObject workflow = validateWorkflow(doc, Arrays.asList(STATUS_VALIDATING, STATUS_VALID), DRAFT, xcontext);
+        if (workflow == null) {
+            return false;
+        }
+
+        if (!STATUS_VALID.equals(workflow.getStringValue(WF_STATUS_FIELDNAME))) {
+            workflow.set(WF_STATUS_FIELDNAME, STATUS_VALID, xcontext);
+            workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
+        }
+        // The scheduled publication is done on behalf of the author of the status
+        workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+
+        String defaultMessage;
+        String message;
+        if (date != null) {
+            workflow.setDateValue(WF_PUBLISH_DATE_FIELDNAME, date);
+            defaultMessage = "Scheduled the publication of document " + stringSerializer.serialize(document) + " on "
+                + date + ".";
+            message = getMessage("workflow.save.schedulePublish", defaultMessage,
+                Arrays.asList(stringSerializer.serialize(document), date.toString()));
+        } else {
+            workflow.removeField(WF_PUBLISH_DATE_FIELDNAME);
+            defaultMessage =
+                "Cancelled the scheduled publication of document " + stringSerializer.serialize(document) + ".";
+            message = getMessage("workflow.save.cancelScheduledPublish", defaultMessage,
+                Collections.singletonList(stringSerializer.serialize(document)));
+        }
+        saveDocumentWithoutRightsCheck(doc, message, true, xcontext);
+        LOGGER.info(defaultMessage);
+
+        return true;
+    }
+
     @Override
     public DocumentReference publish(DocumentReference document) throws XWikiException
     {
@@ -983,26 +1053,77 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
 
         // Publish the workflow document and its children if the workflow scope includes the children
         boolean includeChildren = workflow.getIntValue(WF_INCLUDE_CHILDREN_FIELDNAME) == 1;
-        copyDocument(document, targetRef, targetRef, publisher, includeChildren, publicationComment);
+        boolean firstPublication = !xcontext.getWiki().exists(targetRef, xcontext);
+        // Let the listeners of the publishing events share what is the same for all the published documents.
+        PublishingContext publishingContext =
+            new PublishingContext(document, targetRef, includeChildren && !isTerminal(document));
+        xcontext.put(PublishingContext.CONTEXTKEY, publishingContext);
+        try {
+            copyDocument(document, targetRef, targetRef, publisher, includeChildren, publicationComment);
+        } finally {
+            xcontext.remove(PublishingContext.CONTEXTKEY);
+            LOGGER.debug("Resolved the links of {} with {} memo hits and {} lookups", targetRef,
+                publishingContext.getLinkTargetHits(), publishingContext.getLinkTargetMisses());
+        }
 
         // prepare the draft document as well (objects only, so default locale is good enough)
         // set the status
         workflow.set(WF_STATUS_FIELDNAME, STATUS_PUBLISHED, xcontext);
+        // the publication is not scheduled anymore
+        workflow.removeField(WF_PUBLISH_DATE_FIELDNAME);
 
         // Add the author in order to keep track of the person who change the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         // save the draft document prepared like this
         String defaultMessage2 = "Published this document to " + stringSerializer.serialize(targetRef) + ".";
         String message2 =
             getMessage("workflow.save.publishDraft", defaultMessage2,
                 Collections.singletonList(stringSerializer.serialize(targetRef)));
-        saveDocumentWithoutRightsCheck(doc, message2, false, xcontext);
+        saveDocumentWithoutRightsCheck(doc, message2, false, publishingContext.getPublishedChildren(), xcontext);
         LOGGER.info(defaultMessage2);
 
+        // The pages published before this workflow existed may link to its drafts, fix them in the background.
+        if (firstPublication) {
+            try {
+                jobExecutor.execute(PublishedLinksPatchJob.JOBTYPE, PublishedLinksPatchJob.createRequest(document,
+                    includeChildren && !isTerminal(document), publisher, stringSerializer));
+            } catch (JobException e) {
+                LOGGER.warn("Failed to start updating the published links to [{}]", document, e);
+            }
+        }
+
         return targetRef;
     }
 
+    @Override
+    public List<String> submitForValidation(Collection<DocumentReference> documents) throws XWikiException
+    {
+        return startBulkTransition(BulkTransitionJob.TRANSITION_SUBMIT_FOR_VALIDATION, documents);
+    }
+
+    @Override
+    public List<String> publish(Collection<DocumentReference> documents) throws XWikiException
+    {
+        return startBulkTransition(BulkTransitionJob.TRANSITION_PUBLISH, documents);
+    }
+
+    private List<String> startBulkTransition(String transition, Collection<DocumentReference> documents)
+        throws XWikiException
+    {
+        XWikiContext xcontext = getXContext();
+        DefaultRequest request = BulkTransitionJob.createRequest(transition, documents,
+            new WikiReference(xcontext.getWikiId()), xcontext.getUserReference());
+        try {
+            jobExecutor.execute(BulkTransitionJob.JOBTYPE, request);
+        } catch (JobException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_UNKNOWN,
+                String.format("Failed to start the [%s] transition of the documents", transition), e);
+        }
+        return request.getId();
+    }
+
     @Override
     public DocumentReference unpublish(DocumentReference document, boolean forceToDraft) throws XWikiException
     {
@@ -1072,6 +1193,8 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         if (draftDocRef != null) {
             // if draft creation worked fine, delete the published doc
             xcontext.getWiki().deleteDocument(targetDoc, xcontext);
+            notifyTransition(xcontext.getWiki().getDocument(draftDocRef, xcontext),
+                DocumentWorkflowTransitionEvent.UNPUBLISH, null, xcontext);
             return draftDocRef;
         } else {
             // TODO: put exception on the context
@@ -1130,6 +1253,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         
         // Add the author in order to keep track of the person who changed the status
         workflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         doc.setHidden(true);
 
@@ -1189,6 +1313,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         
         // Add the author in order to keep track of the person who change the status
         archivedWorkflow.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        archivedWorkflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         archivedDoc.setHidden(false);
 
@@ -1363,6 +1488,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         
         // Add the author in order to keep track of the person who change the status
         workflowObj.set(WF_STATUS_AUTHOR_FIELDNAME, xcontext.getUserReference().toString(), xcontext);
+        workflowObj.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
         
         workflowObj.set(WF_IS_TARGET_FIELDNAME, 0, xcontext);
 
@@ -1404,6 +1530,58 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
      */
     protected void saveDocumentWithoutRightsCheck(XWikiDocument doc, String saveMessage, boolean isMinorEdit,
         XWikiContext xcontext) throws XWikiException
+    {
+        saveDocumentWithoutRightsCheck(doc, saveMessage, isMinorEdit, 0, xcontext);
+    }
+
+    /**
+     * Saves a document like {@link #saveDocumentWithoutRightsCheck(XWikiDocument, String, boolean, XWikiContext)},
+     * and logs the transition of its workflow status, if the save changes it.
+     *
+     * @param doc the document to save
+     * @param saveMessage the message for the new version
+     * @param isMinorEdit if this is a minor edit
+     * @param children the number of descendants of the document which went through the transition with it
+     * @param xcontext the context of the current execution
+     * @throws XWikiException if the save fails
+     */
+    protected void saveDocumentWithoutRightsCheck(XWikiDocument doc, String saveMessage, boolean isMinorEdit,
+        int children, XWikiContext xcontext) throws XWikiException
+    {
+        // The original document is replaced by the save.
+        XWikiDocument originalDocument = doc.getOriginalDocument();
+        BaseObject previousWorkflow =
+            originalDocument != null ? originalDocument.getXObject(PUBLICATION_WORKFLOW_CLASS) : null;
+
+        saveWithoutRightsCheck(doc, saveMessage, isMinorEdit, xcontext);
+        DocumentReference currentUserReference = xcontext.getUserReference();
+
+        BaseObject workflow = doc.getXObject(PUBLICATION_WORKFLOW_CLASS);
+        String status = workflow != null ? StringUtils.trimToNull(workflow.getStringValue(WF_STATUS_FIELDNAME)) : null;
+        String previousStatus = previousWorkflow != null
+            ? StringUtils.trimToNull(previousWorkflow.getStringValue(WF_STATUS_FIELDNAME)) : null;
+        if (status != null && !status.equals(previousStatus)) {
+            Date time = workflow.getDateValue(WF_STATUS_DATE_FIELDNAME);
+            if (time == null) {
+                time = new Date();
+            }
+            long duration = -1;
+            if (previousStatus != null) {
+                Date previousTime = previousWorkflow.getDateValue(WF_STATUS_DATE_FIELDNAME);
+                duration = time.getTime()
+                    - (previousTime != null ? previousTime : originalDocument.getDate()).getTime();
+            }
+            transitionLog.record(new TransitionLog.Transition(doc.getDocumentReference(), previousStatus, status,
+                currentUserReference, time, duration, children));
+        }
+    }
+
+    /**
+     * Saves a document as the current user, without checking their rights nor logging the transition of its workflow
+     * status.
+     */
+    private void saveWithoutRightsCheck(XWikiDocument doc, String saveMessage, boolean isMinorEdit,
+        XWikiContext xcontext) throws XWikiException
     {
         DocumentReference currentUserReference = xcontext.getUserReference();
         if (currentUserReference != null) {
@@ -1412,8 +1590,26 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
                 doc.setCreatorReference(currentUserReference);
             }
         }
+        xcontext.put(CONTEXTKEY_WORKFLOW_SAVE, true);
+        try {
+            xcontext.getWiki().saveDocument(doc, saveMessage, isMinorEdit, xcontext);
+        } finally {
+            xcontext.remove(CONTEXTKEY_WORKFLOW_SAVE);
+        }
+    }
 
-        xcontext.getWiki().saveDocument(doc, saveMessage, isMinorEdit, xcontext);
+    /**
+     * Tells the listeners, such as the mail notifications, that a workflow document went through a transition.
+     *
+     * @param doc the saved workflow document
+     * @param transition the transition, one of the constants of {@link DocumentWorkflowTransitionEvent}
+     * @param reason the reason given by the user for the transition, {@code null} if none
+     * @param xcontext the context of the current execution
+     */
+    protected void notifyTransition(XWikiDocument doc, String transition, String reason, XWikiContext xcontext)
+    {
+        observationManager.notify(new DocumentWorkflowTransitionEvent(doc.getDocumentReference(), transition, reason),
+            doc, xcontext);
     }
 
     /**
@@ -1447,9 +1643,9 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
     }
 
     /**
-     * Copies/merges a source page to a target in all source page locales. Also copies recursively the source
-     * children if {@code includeChildren} is <code>true</code>. The source locales and children get removed from the
-     * target if they do not exist in the source. In case the page to be copied is a workflow document (i.e. a document
+     * Copies/merges a source page to a target in all source page locales. Also copies all the source descendants if
+     * {@code includeChildren} is <code>true</code>. The source locales and descendants get removed from the target if
+     * they do not exist in the source. In case the page to be copied is a workflow document (i.e. a document
      * holding a <code>PublicationWorkflowClass</code> object), sets up a workflow object in the target. Fires a
      * {@link DocumentChildPublishingEvent} when copying source pages which are not holding a workflow object.
      * @param source a reference to a document to be copied/merged
@@ -1457,8 +1653,8 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
      * @param workflowDocumentReference a reference to the workflow document holding the workflow object in the
      * context of which the copy occurs
      * @param publisher a reference to the user performing the action
-     * @param includeChildren <code>true</code> if the children of the source should be copied as well, <code>false</code>
-     * otherwise
+     * @param includeChildren <code>true</code> if the descendants of the source should be copied as well,
+     * <code>false</code> otherwise
      * @param publicationComment a specific publication comment to be used instead of the default translation key
      * @throws XWikiException in case an error occurs
      */
@@ -1467,8 +1663,8 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         String publicationComment) throws XWikiException
     {
         XWikiContext xcontext = getXContext();
-        XWikiDocument sourceDocument = xcontext.getWiki().getDocument(source, xcontext);
-        XWikiDocument targetDocument = xcontext.getWiki().getDocument(target, xcontext);
+        XWikiDocument sourceDocument = getBulkDocument(source, xcontext);
+        XWikiDocument targetDocument = getBulkDocument(target, xcontext);
         final Locale origLocale = xcontext.getLocale();
         List<Locale> locales = sourceDocument.getTranslationLocales(xcontext);
         List<Locale> publishedLocales = targetDocument.getTranslationLocales(xcontext);
@@ -1492,6 +1688,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
                     BaseObject sourceWorkflow = sourceDocument.getXObject(PUBLICATION_WORKFLOW_CLASS);
                     newWorkflow = targetDocument.newXObject(PUBLICATION_WORKFLOW_CLASS, xcontext);
                     newWorkflow.set(WF_STATUS_FIELDNAME, STATUS_PUBLISHED, xcontext);
+                    newWorkflow.setDateValue(WF_STATUS_DATE_FIELDNAME, new Date());
                     newWorkflow.set(WF_INCLUDE_CHILDREN_FIELDNAME,
                         sourceWorkflow.getIntValue(WF_INCLUDE_CHILDREN_FIELDNAME), xcontext);
                     newWorkflow.set(WF_IS_TARGET_FIELDNAME, 1, xcontext);
@@ -1522,7 +1719,13 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
                     observationManager.notify(new DocumentChildPublishingEvent(target, workflowDocumentReference),
                         translatedNewDocument, xcontext);
                 }
-                saveDocumentWithoutRightsCheck(translatedNewDocument, message, false, xcontext);
+                // The publication is logged as the transition of the draft, not of its published copy.
+                saveWithoutRightsCheck(translatedNewDocument, message, false, xcontext);
+                PublishingContext publishingContext = PublishingContext.get(xcontext);
+                if (publishingContext != null && !isWorkflowDocument
+                    && locale.equals(sourceDocument.getDefaultLocale())) {
+                    publishingContext.childPublished();
+                }
                 LOGGER
                     .debug("{}{}", message,
                         locale.equals(sourceDocument.getDefaultLocale()) ? "" : " (in locale " + locale +
@@ -1541,44 +1744,106 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
                 LOGGER.debug("deleted published target {} in locale {}", stringSerializer.serialize(target), toRemove);
             }
         }
-        // Copy the page children if the "includeChildren" argument is true, and remove the obsolete ones
+        // Copy the page descendants if the "includeChildren" argument is true, and remove the obsolete ones.
         if (includeChildren) {
-            List<DocumentReference> children = getChildren(source);
-            // Retrieve all target's children and keep only the ones that do not have a counterpart in the source
-            // anymore so as to delete them.
-            List<DocumentReference> obsoletePublishedChildren = getChildren(target);
-            for (DocumentReference child : children) {
-                DocumentReference childTarget = getChildTarget(child, source, target);
-                copyDocument(child, childTarget, workflowDocumentReference, publisher,true, publicationComment);
-                obsoletePublishedChildren.remove(childTarget);
-            }
-            // Delete target's children without a counterpart in the source
-            for (DocumentReference obsoletePublishedChild : obsoletePublishedChildren) {
-                XWikiDocument obsoletePublishedChildDocument =
-                    xcontext.getWiki().getDocument(obsoletePublishedChild, xcontext);
-                xcontext.getWiki().deleteDocument(obsoletePublishedChildDocument, xcontext);
+            copyDescendants(source, target, workflowDocumentReference, publisher, publicationComment, xcontext);
+        }
+    }
+
+    /**
+     * Copies all the descendants of a source page below a target page, then deletes the target descendants which do
+     * not have a counterpart in the source anymore, found by walking both sorted subtrees side by side. Both subtrees
+     * are streamed in batches of {@link PublicationWorkflowConfiguration#getPublishBatchSize()} references and each
+     * descendant is copied on its own, so that the memory used does not depend on the size of the subtree.
+     *
+     * @param source a reference to the page whose descendants are copied
+     * @param target a reference to the page below which the descendants are copied
+     * @param workflowDocumentReference a reference to the workflow document in the context of which the copy occurs
+     * @param publisher a reference to the user performing the action
+     * @param publicationComment a specific publication comment to be used instead of the default translation key
+     * @param xcontext the current context
+     * @throws XWikiException in case the descendants cannot be enumerated, copied or deleted
+     */
+    protected void copyDescendants(DocumentReference source, DocumentReference target,
+        DocumentReference workflowDocumentReference, DocumentReference publisher, String publicationComment,
+        XWikiContext xcontext) throws XWikiException
+    {
+        int batchSize = configuration.getPublishBatchSize();
+        descendantsEnumerator.visitDescendants(source, batchSize,
+            descendant -> copyDocument(descendant, getChildTarget(descendant, source, target),
+                workflowDocumentReference, publisher, false, publicationComment));
+
+        // Deleting the visited descendants does not disturb the walk since it resumes after the last visited one. Only
+        // the descendants which seem to have no source anymore are collected, and their sources are looked up a batch
+        // at a time, to make sure before deleting them.
+        List<DocumentReference> candidates = new ArrayList<>(batchSize);
+        descendantsEnumerator.visitDescendantsWithoutCounterpart(source, target, batchSize, descendant -> {
+            candidates.add(descendant);
+            if (candidates.size() == batchSize) {
+                deleteObsoleteDescendants(candidates, source, target, xcontext);
+                candidates.clear();
             }
+        });
+        deleteObsoleteDescendants(candidates, source, target, xcontext);
+    }
+
+    /**
+     * Deletes, as a batch, the passed descendants of a target page whose counterpart below the source page does not
+     * exist.
+     */
+    private void deleteObsoleteDescendants(List<DocumentReference> candidates, DocumentReference source,
+        DocumentReference target, XWikiContext xcontext) throws XWikiException
+    {
+        if (candidates.isEmpty()) {
+            return;
         }
+        Map<DocumentReference, DocumentReference> counterparts = new LinkedHashMap<>();
+        for (DocumentReference candidate : candidates) {
+            counterparts.put(getChildTarget(candidate, target, source), candidate);
+        }
+        counterparts.keySet()
+            .removeAll(descendantsEnumerator.getExisting(source.getWikiReference(), counterparts.keySet()));
+
+        XWiki xwiki = xcontext.getWiki();
+        for (DocumentReference obsolete : counterparts.values()) {
+            xwiki.deleteDocument(getBulkDocument(obsolete, xcontext), xcontext);
+        }
+        LOGGER.debug("Deleted {} obsolete documents below {}", counterparts.size(), stringSerializer.serialize(target));
     }
 
     /**
-     * Returns the children references of a given document reference based on the reference hierarchy.
-     * @param reference a {@link DocumentReference}
-     * @return child pages references
+     * Loads a document handled in bulk, e.g. while copying a subtree. Unless disabled in the configuration, the
+     * document is loaded directly from the database so that it does not evict from the document cache the pages
+     * needed by the readers. Its translations are loaded the same way. In all cases the returned instance is not
+     * shared and can be modified by the caller.
+     *
+     * @param reference a reference to the document to load
+     * @param xcontext the current context
+     * @return the loaded document, which is new if it does not exist in the database
+     * @throws XWikiException in case the document cannot be loaded
      */
-    protected List<DocumentReference> getChildren(DocumentReference reference)
+    protected XWikiDocument getBulkDocument(DocumentReference reference, XWikiContext xcontext) throws XWikiException
     {
-        String name = entityTreeNodeIdConverter.convert(String.class, reference);
-        int childrenCount = tree.getChildCount(name);
-        List<String> children = tree.getChildren(name, 0, childrenCount);
-        List<DocumentReference> childReferences = new ArrayList<>();
-        for (String childNodeId : children) {
-            // FIXME: do not use hardcoded prefix "document:"
-            String childName = childNodeId.replace("document:", "");
-            DocumentReference childReference = explicitStringDocRefResolver.resolve(childName, reference);
-            childReferences.add(childReference);
-        }
-        return childReferences;
+        XWiki xwiki = xcontext.getWiki();
+        if (!configuration.isDocumentCacheBypassed()) {
+            return xwiki.getDocument(reference, xcontext).clone();
+        }
+
+        String currentWiki = xcontext.getWikiId();
+        try {
+            xcontext.setWikiId(reference.getWikiReference().getName());
+            XWikiStoreInterface store = xwiki.getNotCacheStore();
+            XWikiDocument document = store.loadXWikiDoc(new XWikiDocument(reference), xcontext);
+            // Make sure the translations are not loaded through the cache either.
+            document.setStore(store);
+            // The original document is needed when saving, avoid letting the save load it through the cache.
+            if (document.getOriginalDocument() == null) {
+                document.setOriginalDocument(document.clone());
+            }
+            return document;
+        } finally {
+            xcontext.setWikiId(currentWiki);
+        }
     }
 
     @Override
@@ -1659,7 +1924,7 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
     }
 
     /**
-     * Hides/unhides recursively the children of a given {@link DocumentReference}.
+     * Hides/unhides all the descendants of a given {@link DocumentReference}.
      * @param reference a {@link DocumentReference}
      * @param hidden whether the page should be hidden or unhidden
      * @param message the version comment to be stored in the page history
@@ -1669,30 +1934,31 @@ public class DefaultPublicationWorkflow implements PublicationWorkflow
         String message) throws XWikiException
     {
         XWikiContext xcontext = getXContext();
-        for (DocumentReference child: getChildren(reference)) {
+        // The message is empty when the method is called from setupDraftAccess, which can happen in multiple
+        // contexts which carry their own message, currently not passed as an argument.
+        String saveMessage = message;
+        if (StringUtils.isEmpty(saveMessage)) {
+            if (hidden) {
+                saveMessage = getMessage("workflow.save.hide", "Mark as hidden", null);
+            } else {
+                saveMessage = getMessage("workflow.save.unhide", "Mark as unhidden", null);
+            }
+        }
+        String finalSaveMessage = saveMessage;
+        descendantsEnumerator.visitDescendants(reference, configuration.getPublishBatchSize(), child -> {
             // Avoid to make the WebPreferences pages visible.
             if (WEB_PREFERENCES.equals(child.getName())) {
                 return;
             }
-            XWikiDocument childDocument = xcontext.getWiki().getDocument(child, xcontext).clone();
+            XWikiDocument childDocument = getBulkDocument(child, xcontext);
             if (childDocument.isHidden() != hidden) {
                 childDocument.setHidden(hidden);
-                // The message is empty when the method is called from setupDraftAccess, which can happen in multiple
-                // contexts which carry their own message, currently not passed as an argument.
-                if (StringUtils.isEmpty(message)) {
-                    if (hidden) {
-                        message = getMessage("workflow.save.hide", "Mark as hidden", null);
-                    } else {
-                        message = getMessage("workflow.save.unhide", "Mark as unhidden", null);
-                    }
-                }
                 // XWikiDocument#setHidden does not flag the document metadata as dirty so we need to flag it so that
                 // the document gets really saved in the database.
                 childDocument.setMetaDataDirty(true);
-                saveDocumentWithoutRightsCheck(childDocument, message, true, xcontext);
-                LOGGER.info("{} {}", message, stringSerializer.serialize(child));
-                updateChildrenHiddenStatus(child, hidden, message);
+                saveDocumentWithoutRightsCheck(childDocument, finalSaveMessage, true, xcontext);
+                LOGGER.info("{} {}", finalSaveMessage, stringSerializer.serialize(child));
             }
-        }
+        });
     }
 }
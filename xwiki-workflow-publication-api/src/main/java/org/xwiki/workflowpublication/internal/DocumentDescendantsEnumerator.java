@@ -0,0 +1,295 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceProvider;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Enumerates all the descendants of a nested page, at any depth, using a single paged query on the document space
+ * instead of walking the page hierarchy level by level. The visited references are already resolved. The pages are
+ * fetched with keyset pagination, so that a subtree can be walked with only one page of references in memory at a
+ * time.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = DocumentDescendantsEnumerator.class)
+@Singleton
+public class DocumentDescendantsEnumerator
+{
+    /**
+     * Visits the descendants of a document, one at a time.
+     */
+    @FunctionalInterface
+    public interface DescendantVisitor
+    {
+        /**
+         * @param descendant a reference to a descendant
+         * @throws XWikiException in case the descendant cannot be processed, which stops the walk
+         */
+        void visit(DocumentReference descendant) throws XWikiException;
+    }
+
+    private static final Pattern LIKE_SPECIAL_CHARS = Pattern.compile("([%_/])");
+
+    private static final String DESCENDANTS_STATEMENT = "select doc.space, doc.name, doc.fullName "
+        + "from XWikiDocument doc where ((doc.space = :space and doc.name <> :name) "
+        + "or doc.space like :spacePrefix escape '/') and doc.translation = 0%s order by doc.space, doc.name";
+
+    private static final String KEYSET_CONDITION =
+        " and (doc.space > :lastSpace or (doc.space = :lastSpace and doc.name > :lastName))";
+
+    private static final String EXISTING_STATEMENT =
+        "select doc.fullName from XWikiDocument doc where doc.fullName in (:names) and doc.translation = 0";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    private EntityReferenceProvider defaultEntityReferenceProvider;
+
+    /**
+     * Walks all the descendants of the passed document, in the same wiki, sorted so that a space home page comes
+     * before the pages it contains. Terminal pages have no descendants. Only {@code batchSize} references are held at
+     * once, the next batch being fetched after the previous one has been visited.
+     *
+     * @param reference a reference to a document
+     * @param batchSize the maximum number of references fetched from the database at once
+     * @param visitor the visitor to call for each descendant
+     * @throws XWikiException in case the descendants cannot be queried or the visitor fails
+     */
+    public void visitDescendants(DocumentReference reference, int batchSize, DescendantVisitor visitor)
+        throws XWikiException
+    {
+        if (isTerminal(reference)) {
+            return;
+        }
+
+        Cursor cursor = new Cursor(reference, batchSize);
+        for (Object[] result = cursor.next(); result != null; result = cursor.next()) {
+            visitor.visit(this.explicitStringDocRefResolver.resolve((String) result[2], reference.getWikiReference()));
+        }
+    }
+
+    /**
+     * Walks the descendants of a target document which have no counterpart at the same place below a source
+     * document, e.g. the published pages whose draft was deleted. Both subtrees are walked at once, batch by batch,
+     * and their sorted references are compared, so that no document is loaded to find the counterparts. The
+     * references are compared in the Java string order, which can differ from the collation of the database, so the
+     * visited descendants are only candidates, which the visitor should check before acting on them.
+     *
+     * @param source a reference to the document whose descendants are the counterparts
+     * @param target a reference to the document whose descendants are walked
+     * @param batchSize the maximum number of references of each subtree fetched from the database at once
+     * @param visitor the visitor to call for each target descendant without a counterpart
+     * @throws XWikiException in case the descendants cannot be queried or the visitor fails
+     */
+    public void visitDescendantsWithoutCounterpart(DocumentReference source, DocumentReference target, int batchSize,
+        DescendantVisitor visitor) throws XWikiException
+    {
+        if (isTerminal(target)) {
+            return;
+        }
+
+        String sourceSpace = this.localSerializer.serialize(source.getLastSpaceReference());
+        String targetSpace = this.localSerializer.serialize(target.getLastSpaceReference());
+        Cursor sourceCursor = new Cursor(source, batchSize);
+        Object[] sourceResult = isTerminal(source) ? null : sourceCursor.next();
+        Cursor targetCursor = new Cursor(target, batchSize);
+        for (Object[] result = targetCursor.next(); result != null; result = targetCursor.next()) {
+            String space = (String) result[0];
+            String name = (String) result[1];
+            // Skip the source descendants sorted before the target descendant.
+            int comparison = -1;
+            while (sourceResult != null
+                && (comparison = compare(targetSpace + ((String) sourceResult[0]).substring(sourceSpace.length()),
+                    (String) sourceResult[1], space, name)) < 0) {
+                sourceResult = sourceCursor.next();
+            }
+            if (sourceResult == null || comparison != 0) {
+                visitor.visit(
+                    this.explicitStringDocRefResolver.resolve((String) result[2], target.getWikiReference()));
+            }
+        }
+    }
+
+    /**
+     * Looks up which of the passed documents exist with a single query, e.g. to check a batch of candidates returned
+     * by {@link #visitDescendantsWithoutCounterpart(DocumentReference, DocumentReference, int, DescendantVisitor)}.
+     * The names returned by a database whose collation ignores the case match the passed references ignoring the case
+     * as well, so that a document is never reported missing because of its case.
+     *
+     * @param wiki the wiki of the documents
+     * @param references references to documents of the passed wiki
+     * @return the passed references of the documents which exist
+     * @throws XWikiException in case the documents cannot be queried
+     */
+    public Set<DocumentReference> getExisting(WikiReference wiki, Collection<DocumentReference> references)
+        throws XWikiException
+    {
+        if (references.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Map<String, DocumentReference> byName = new HashMap<>();
+        for (DocumentReference reference : references) {
+            byName.put(this.localSerializer.serialize(reference), reference);
+        }
+        try {
+            Query query = this.queryManager.createQuery(EXISTING_STATEMENT, Query.HQL);
+            query.bindValue("names", new ArrayList<>(byName.keySet()));
+            query.setWiki(wiki.getName());
+            Set<DocumentReference> existing = new HashSet<>();
+            for (Object result : query.execute()) {
+                String name = (String) result;
+                DocumentReference reference = byName.get(name);
+                if (reference != null) {
+                    existing.add(reference);
+                } else {
+                    byName.entrySet().stream().filter(entry -> entry.getKey().equalsIgnoreCase(name))
+                        .forEach(entry -> existing.add(entry.getValue()));
+                }
+            }
+            return existing;
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not check the existence of the documents %s", references), e);
+        }
+    }
+
+    private int compare(String space, String name, String otherSpace, String otherName)
+    {
+        int result = space.compareTo(otherSpace);
+        return result != 0 ? result : name.compareTo(otherName);
+    }
+
+    private boolean isTerminal(DocumentReference reference)
+    {
+        String defaultDocumentName =
+            this.defaultEntityReferenceProvider.getDefaultReference(EntityType.DOCUMENT).getName();
+        return !reference.getName().equals(defaultDocumentName);
+    }
+
+    private List<Object[]> queryDescendants(DocumentReference reference, String lastSpace, String lastName,
+        int limit) throws XWikiException
+    {
+        SpaceReference spaceReference = reference.getLastSpaceReference();
+        String space = this.localSerializer.serialize(spaceReference);
+        String spacePrefix = LIKE_SPECIAL_CHARS.matcher(space).replaceAll("/$1") + ".%";
+        try {
+            Query query = this.queryManager.createQuery(
+                String.format(DESCENDANTS_STATEMENT, lastSpace == null ? "" : KEYSET_CONDITION), Query.HQL);
+            query.bindValue("space", space);
+            query.bindValue("name", reference.getName());
+            query.bindValue("spacePrefix", spacePrefix);
+            if (lastSpace != null) {
+                query.bindValue("lastSpace", lastSpace);
+                query.bindValue("lastName", lastName);
+            }
+            query.setWiki(reference.getWikiReference().getName());
+            query.setLimit(limit);
+            return query.execute();
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not get the descendants of [%s]", reference), e);
+        }
+    }
+
+    /**
+     * Reads the descendants of a document one at a time, fetching them in batches. Each result holds the space, the
+     * name and the full name of a descendant.
+     */
+    private final class Cursor
+    {
+        private final DocumentReference reference;
+
+        private final int batchSize;
+
+        private Iterator<Object[]> batch = Collections.emptyIterator();
+
+        private boolean lastBatch;
+
+        private String lastSpace;
+
+        private String lastName;
+
+        Cursor(DocumentReference reference, int batchSize)
+        {
+            this.reference = reference;
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * @return the next descendant, {@code null} if there is none
+         */
+        Object[] next() throws XWikiException
+        {
+            if (!this.batch.hasNext() && !this.lastBatch) {
+                List<Object[]> results = queryDescendants(this.reference, this.lastSpace, this.lastName,
+                    this.batchSize);
+                this.lastBatch = results.size() < this.batchSize;
+                this.batch = results.iterator();
+            }
+            if (!this.batch.hasNext()) {
+                return null;
+            }
+            Object[] result = this.batch.next();
+            this.lastSpace = (String) result[0];
+            this.lastName = (String) result[1];
+            return result;
+        }
+    }
+}
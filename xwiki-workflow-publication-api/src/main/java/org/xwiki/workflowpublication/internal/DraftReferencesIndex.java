@@ -0,0 +1,277 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Keeps, for the drafts saved recently, the content their published version will have once its references are
+ * rewritten, so that publishing them does not need to parse and resolve anything. An entry is only used when the
+ * published content is still the one it was computed from and no workflow was set up, moved or removed since then,
+ * since that can change the published equivalent of any reference. The content is precomputed by a background thread,
+ * so that saving a document does not wait for finding out whether it is a draft; when too many saved documents are
+ * waiting, the extra ones are simply not precomputed.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = DraftReferencesIndex.class)
+@Singleton
+public class DraftReferencesIndex implements Initializable, Disposable
+{
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    private PublishedReferencesTransformer transformer;
+
+    @Inject
+    private PublicationWorkflow publicationWorkflow;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /**
+     * Incremented each time the mapping between the drafts and their targets may have changed.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private Cache<Rewrite> cache;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * The rewritten content of a published document, with what is needed to check that it is still valid.
+     */
+    private static final class Rewrite
+    {
+        private final DocumentReference draftDocumentReference;
+
+        private final Syntax syntax;
+
+        private final String contentHash;
+
+        private final long generation;
+
+        /**
+         * {@code null} when no reference needs to be rewritten.
+         */
+        private final String content;
+
+        Rewrite(DocumentReference draftDocumentReference, Syntax syntax, String contentHash, long generation,
+            String content)
+        {
+            this.draftDocumentReference = draftDocumentReference;
+            this.syntax = syntax;
+            this.contentHash = contentHash;
+            this.generation = generation;
+            this.content = content;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int size = this.configuration.getReferencesIndexSize();
+        if (size > 0) {
+            try {
+                this.cache = this.cacheManager
+                    .createNewLocalCache(new LRUCacheConfiguration("publicationworkflow.draftreferences", size));
+            } catch (CacheException e) {
+                throw new InitializationException("Failed to create the draft references cache", e);
+            }
+            this.executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(size),
+                new BasicThreadFactory.Builder().namingPattern("Publication workflow draft references %d").daemon(true)
+                    .priority(Thread.MIN_PRIORITY).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache != null) {
+            this.executor.shutdownNow();
+            this.cache.dispose();
+        }
+    }
+
+    /**
+     * Forgets all the precomputed rewrites, when the published equivalent of the references may have changed.
+     */
+    public void invalidate()
+    {
+        this.generation.incrementAndGet();
+    }
+
+    /**
+     * Precomputes, in the background, the published content of a draft document which was just saved. Nothing is done
+     * for documents which are not drafts.
+     *
+     * @param draft a saved document, in one of its locales
+     * @param xcontext the current context
+     */
+    public void index(XWikiDocument draft, XWikiContext xcontext)
+    {
+        if (this.cache == null) {
+            return;
+        }
+        // Read the generation first, so that an invalidation happening meanwhile makes the entry obsolete.
+        IndexRunnable runnable = new IndexRunnable(this.generation.get(), draft.getDocumentReference(),
+            draft.getLocale(), draft.getContent(), draft.getSyntax(), xcontext.getUserReference());
+        try {
+            this.executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            this.logger.debug("Skipped indexing the references of [{}], too many pending documents",
+                draft.getDocumentReferenceWithLocale());
+        }
+    }
+
+    /**
+     * Applies the precomputed rewrite of a document being published, if there is a valid one.
+     *
+     * @param publishedDocument the document being published, holding the draft content
+     * @param draftDocumentReference a reference to the draft workflow document being published
+     * @return {@code true} if the references of the passed document are up to date, {@code false} if they still need
+     *     to be transformed
+     */
+    public boolean apply(XWikiDocument publishedDocument, DocumentReference draftDocumentReference)
+    {
+        if (this.cache == null) {
+            return false;
+        }
+        Rewrite rewrite = this.cache.get(getKey(publishedDocument.getDocumentReferenceWithLocale()));
+        if (rewrite == null || rewrite.generation != this.generation.get()
+            || !rewrite.draftDocumentReference.equals(draftDocumentReference)
+            || !rewrite.syntax.equals(publishedDocument.getSyntax())
+            || !rewrite.contentHash.equals(DigestUtils.sha256Hex(publishedDocument.getContent()))) {
+            return false;
+        }
+        if (rewrite.content != null) {
+            publishedDocument.setContent(rewrite.content);
+        }
+        return true;
+    }
+
+    private String getKey(DocumentReference reference)
+    {
+        return this.serializer.serialize(reference) + '/' + reference.getLocale();
+    }
+
+    /**
+     * Precomputes the published content of a saved document, if it is a draft, in a fresh execution context.
+     */
+    private final class IndexRunnable extends AbstractXWikiRunnable
+    {
+        private final long generation;
+
+        private final DocumentReference reference;
+
+        private final Locale locale;
+
+        private final String content;
+
+        private final Syntax syntax;
+
+        private final DocumentReference user;
+
+        IndexRunnable(long generation, DocumentReference reference, Locale locale, String content, Syntax syntax,
+            DocumentReference user)
+        {
+            this.generation = generation;
+            this.reference = reference;
+            this.locale = locale;
+            this.content = content;
+            this.syntax = syntax;
+            this.user = user;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null) {
+                return;
+            }
+            xcontext.setWikiId(this.reference.getWikiReference().getName());
+            xcontext.setUserReference(this.user);
+            try {
+                DocumentReference publishedReference = transformer.getTargetInWorkflow(this.reference, xcontext);
+                if (publishedReference == null) {
+                    return;
+                }
+                DocumentReference draftDocumentReference = publicationWorkflow.getWorkflowDocument(this.reference);
+                if (draftDocumentReference == null) {
+                    return;
+                }
+
+                // The parsed content is kept by the transformer, so that publishing the draft, or another locale
+                // sharing its content, does not parse it again even when this entry gets evicted.
+                String rewrittenContent = transformer.transform(this.content, this.syntax, draftDocumentReference,
+                    publishedReference, xcontext);
+                cache.set(getKey(new DocumentReference(publishedReference, this.locale)), new Rewrite(
+                    draftDocumentReference, this.syntax, DigestUtils.sha256Hex(this.content), this.generation,
+                    rewrittenContent));
+            } catch (XWikiException e) {
+                logger.warn("Failed to index the references of [{}]", this.reference, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link DraftReferencesIndex} up to date: indexes the drafts when they are saved and invalidates the index
+ * when a workflow is set up, moved or removed.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowdraftreferencesindex")
+@Singleton
+public class DraftReferencesIndexListener implements EventListener
+{
+    /**
+     * The fields of the workflow object which determine the published equivalent of the drafts.
+     */
+    private static final List<String> MAPPING_FIELDS =
+        Arrays.asList(DefaultPublicationWorkflow.WF_TARGET_FIELDNAME, DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME,
+            DefaultPublicationWorkflow.WF_INCLUDE_CHILDREN_FIELDNAME);
+
+    @Inject
+    private DraftReferencesIndex index;
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowdraftreferencesindex";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        XWikiContext xcontext = (XWikiContext) data;
+
+        if (isWorkflowMappingChanged(document)) {
+            this.index.invalidate();
+        }
+
+        // The documents saved while publishing are not drafts being edited, and neither are the published documents.
+        if (event instanceof DocumentDeletedEvent
+            || xcontext.get(DefaultPublicationWorkflow.CONTEXTKEY_PUBLISHING) != null || isTarget(document)) {
+            return;
+        }
+        this.index.index(document, xcontext);
+    }
+
+    private boolean isTarget(XWikiDocument document)
+    {
+        BaseObject workflow = document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        return workflow != null && workflow.getIntValue(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME) == 1;
+    }
+
+    private boolean isWorkflowMappingChanged(XWikiDocument document)
+    {
+        BaseObject workflow = document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        XWikiDocument originalDocument = document.getOriginalDocument();
+        BaseObject previousWorkflow =
+            originalDocument != null ? originalDocument.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS)
+                : null;
+        if (workflow == null || previousWorkflow == null) {
+            return workflow != previousWorkflow;
+        }
+        for (String field : MAPPING_FIELDS) {
+            if (!Objects.equals(workflow.getStringValue(field), previousWorkflow.getStringValue(field))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
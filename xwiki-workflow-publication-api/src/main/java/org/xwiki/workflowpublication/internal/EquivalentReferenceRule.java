@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * The change of location of a moved document, compiled so that it can be applied to many other documents, typically
+ * to the equivalent of each document of a moved subtree. The location of a document is seen as the list of the names
+ * of its spaces followed by its name: applying the rule removes from this list as many trailing names as the moved
+ * document lost, and appends the names it got instead.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+public final class EquivalentReferenceRule
+{
+    private final DocumentReference oldReference;
+
+    private final DocumentReference newReference;
+
+    /**
+     * The number of trailing names removed from the location of the documents the rule is applied to.
+     */
+    private final int removedNames;
+
+    /**
+     * The names appended to the location of the documents the rule is applied to.
+     */
+    private final String[] addedNames;
+
+    private EquivalentReferenceRule(DocumentReference oldReference, DocumentReference newReference, int removedNames,
+        String[] addedNames)
+    {
+        this.oldReference = oldReference;
+        this.newReference = newReference;
+        this.removedNames = removedNames;
+        this.addedNames = addedNames;
+    }
+
+    /**
+     * @param oldReference the reference of a document before it was moved
+     * @param newReference the reference of the same document after it was moved
+     * @return the rule applying the same move to other documents
+     */
+    public static EquivalentReferenceRule compile(DocumentReference oldReference, DocumentReference newReference)
+    {
+        List<String> oldNames = getNames(oldReference);
+        List<String> newNames = getNames(newReference);
+
+        // The common prefix of the old and new locations is kept, the rest of the old location is replaced.
+        int maxPrefixLength = Math.min(oldNames.size(), newNames.size());
+        int prefixLength = 0;
+        while (prefixLength < maxPrefixLength
+            && Objects.equals(oldNames.get(prefixLength), newNames.get(prefixLength))) {
+            prefixLength++;
+        }
+
+        return new EquivalentReferenceRule(oldReference, newReference, oldNames.size() - prefixLength,
+            newNames.subList(prefixLength, newNames.size()).toArray(new String[0]));
+    }
+
+    /**
+     * @param oldReference the reference of a document before it was moved
+     * @param newReference the reference of the same document after it was moved
+     * @return {@code true} if this rule was compiled from the passed move
+     */
+    public boolean isCompiledFrom(DocumentReference oldReference, DocumentReference newReference)
+    {
+        return this.oldReference.equals(oldReference) && this.newReference.equals(newReference);
+    }
+
+    /**
+     * Applies the move to another document, in time proportional to the depth of its reference.
+     *
+     * @param reference the reference of the document to move
+     * @param wikiReference the wiki of the returned reference
+     * @return the new reference of the passed document, or {@code null} if the move would leave less than a space and a
+     *     document name
+     */
+    public DocumentReference apply(DocumentReference reference, WikiReference wikiReference)
+    {
+        int depth = 0;
+        for (EntityReference entity = reference; entity.getType() != EntityType.WIKI; entity = entity.getParent()) {
+            depth++;
+        }
+        int keptNames = depth - Math.min(this.removedNames, depth);
+        if (keptNames + this.addedNames.length <= 1) {
+            return null;
+        }
+
+        // Find the last entity kept from the passed reference.
+        EntityReference lastKept = reference;
+        for (int i = depth; i > keptNames; i--) {
+            lastKept = lastKept.getParent();
+        }
+
+        if (this.addedNames.length == 0) {
+            // The last kept space becomes the document.
+            return new DocumentReference(new EntityReference(lastKept.getName(), EntityType.DOCUMENT,
+                toSpace(lastKept.getParent(), reference.getWikiReference(), wikiReference)));
+        }
+        EntityReference parent = keptNames > 0
+            ? toSpace(lastKept, reference.getWikiReference(), wikiReference) : wikiReference;
+        int lastAdded = this.addedNames.length - 1;
+        for (int i = 0; i < lastAdded; i++) {
+            parent = new EntityReference(this.addedNames[i], EntityType.SPACE, parent);
+        }
+        return new DocumentReference(new EntityReference(this.addedNames[lastAdded], EntityType.DOCUMENT, parent));
+    }
+
+    private static EntityReference toSpace(EntityReference entity, WikiReference oldWiki, WikiReference newWiki)
+    {
+        EntityReference space = entity;
+        if (space.getType() == EntityType.DOCUMENT) {
+            space = new EntityReference(space.getName(), EntityType.SPACE, space.getParent());
+        }
+        return oldWiki.equals(newWiki) ? space : space.replaceParent(oldWiki, newWiki);
+    }
+
+    /**
+     * Example : with a document "A.B.C.D.WebHome", the list will be ['A', 'B', 'C', 'D', 'WebHome'].
+     */
+    private static List<String> getNames(DocumentReference reference)
+    {
+        List<String> names = new ArrayList<>();
+        for (EntityReference entity : reference.getReversedReferenceChain()) {
+            if (!(entity instanceof WikiReference)) {
+                names.add(entity.getName());
+            }
+        }
+        return names;
+    }
+}
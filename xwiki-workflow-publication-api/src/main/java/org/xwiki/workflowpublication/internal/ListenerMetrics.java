@@ -0,0 +1,227 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Records the invocations of the publication workflow event listeners, per listener and type of event: how many there
+ * were, how many returned early or failed, and how long they took. The statistics are exposed through JMX, under
+ * {@value #OBJECT_NAME}, and through the {@code publicationworkflow} script service.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = ListenerMetrics.class)
+@Singleton
+public class ListenerMetrics implements ListenerMetricsMXBean, Initializable, Disposable
+{
+    /**
+     * The name under which the metrics are registered in the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "org.xwiki.workflowpublication:type=ListenerMetrics";
+
+    /**
+     * The number of most recent invocations the times are computed over.
+     */
+    private static final int RESERVOIR_SIZE = 1024;
+
+    private static final char KEY_SEPARATOR = '/';
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    /**
+     * Measures one invocation of a listener; to be closed when the listener returns.
+     */
+    public static final class Timer implements AutoCloseable
+    {
+        private final Recorder recorder;
+
+        private final long start = System.nanoTime();
+
+        private Timer(Recorder recorder)
+        {
+            this.recorder = recorder;
+        }
+
+        /**
+         * Records that the listener returned without doing anything, because the event was not relevant.
+         */
+        public void earlyExit()
+        {
+            this.recorder.earlyExits.incrementAndGet();
+        }
+
+        /**
+         * Records that the listener failed to handle the event.
+         */
+        public void error()
+        {
+            this.recorder.errors.incrementAndGet();
+        }
+
+        @Override
+        public void close()
+        {
+            this.recorder.record(System.nanoTime() - this.start);
+        }
+    }
+
+    /**
+     * The invocations of a listener for a type of event, with the times of the most recent ones.
+     */
+    private static final class Recorder
+    {
+        private final String listener;
+
+        private final String event;
+
+        private final AtomicLong invocations = new AtomicLong();
+
+        private final AtomicLong earlyExits = new AtomicLong();
+
+        private final AtomicLong errors = new AtomicLong();
+
+        private final long[] times = new long[RESERVOIR_SIZE];
+
+        private int count;
+
+        Recorder(String listener, String event)
+        {
+            this.listener = listener;
+            this.event = event;
+        }
+
+        void record(long time)
+        {
+            long invocation = this.invocations.getAndIncrement();
+            synchronized (this.times) {
+                this.times[(int) (invocation % RESERVOIR_SIZE)] = time;
+                this.count = Math.min(this.count + 1, RESERVOIR_SIZE);
+            }
+        }
+
+        ListenerStatistics getStatistics()
+        {
+            long[] sortedTimes;
+            synchronized (this.times) {
+                sortedTimes = Arrays.copyOf(this.times, this.count);
+            }
+            Arrays.sort(sortedTimes);
+            return new ListenerStatistics(this.listener, this.event, this.invocations.get(), this.earlyExits.get(),
+                this.errors.get(), getPercentile(sortedTimes, 50), getPercentile(sortedTimes, 95),
+                getPercentile(sortedTimes, 99));
+        }
+
+        private double getPercentile(long[] sortedTimes, int percentile)
+        {
+            if (sortedTimes.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(sortedTimes.length * percentile / 100.0) - 1;
+            return (double) sortedTimes[Math.max(index, 0)] / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException e) {
+            // The metrics remain available through the script service.
+            this.logger.warn("Failed to register the publication workflow listener metrics in JMX: [{}]",
+                e.getMessage());
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            } catch (JMException e) {
+                this.logger.debug("Failed to unregister the publication workflow listener metrics", e);
+            }
+        }
+    }
+
+    /**
+     * Starts measuring an invocation of a listener, to be used in a try-with-resources statement around the handling
+     * of the event.
+     *
+     * @param listener the name of the listener
+     * @param event the event handled by the listener
+     * @return the timer of the invocation
+     */
+    public Timer start(String listener, Event event)
+    {
+        String eventType = event.getClass().getSimpleName();
+        Recorder recorder = this.recorders.computeIfAbsent(listener + KEY_SEPARATOR + eventType,
+            key -> new Recorder(listener, eventType));
+        return new Timer(recorder);
+    }
+
+    @Override
+    public List<ListenerStatistics> getStatistics()
+    {
+        List<ListenerStatistics> statistics = new ArrayList<>(this.recorders.size());
+        for (Recorder recorder : this.recorders.values()) {
+            statistics.add(recorder.getStatistics());
+        }
+        statistics.sort((first, second) -> first.getListener().equals(second.getListener())
+            ? first.getEvent().compareTo(second.getEvent()) : first.getListener().compareTo(second.getListener()));
+        return statistics;
+    }
+
+    @Override
+    public void reset()
+    {
+        this.recorders.clear();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+/**
+ * Snapshot of the invocations of an event listener for a type of event. The times are in milliseconds and computed
+ * over the most recent invocations only.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+public class ListenerStatistics
+{
+    private final String listener;
+
+    private final String event;
+
+    private final long invocations;
+
+    private final long earlyExits;
+
+    private final long errors;
+
+    private final double p50;
+
+    private final double p95;
+
+    private final double p99;
+
+    /**
+     * @param listener the name of the listener
+     * @param event the type of the handled event
+     * @param invocations the number of times the listener handled the event
+     * @param earlyExits the number of invocations which returned without doing anything
+     * @param errors the number of invocations which failed
+     * @param p50 the median time of an invocation
+     * @param p95 the 95th percentile of the time of an invocation
+     * @param p99 the 99th percentile of the time of an invocation
+     */
+    public ListenerStatistics(String listener, String event, long invocations, long earlyExits, long errors,
+        double p50, double p95, double p99)
+    {
+        this.listener = listener;
+        this.event = event;
+        this.invocations = invocations;
+        this.earlyExits = earlyExits;
+        this.errors = errors;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+    }
+
+    /**
+     * @return the name of the listener
+     */
+    public String getListener()
+    {
+        return this.listener;
+    }
+
+    /**
+     * @return the type of the handled event
+     */
+    public String getEvent()
+    {
+        return this.event;
+    }
+
+    /**
+     * @return the number of times the listener handled the event
+     */
+    public long getInvocations()
+    {
+        return this.invocations;
+    }
+
+    /**
+     * @return the number of invocations which returned without doing anything
+     */
+    public long getEarlyExits()
+    {
+        return this.earlyExits;
+    }
+
+    /**
+     * @return the number of invocations which failed
+     */
+    public long getErrors()
+    {
+        return this.errors;
+    }
+
+    /**
+     * @return the median time of an invocation, in milliseconds
+     */
+    public double getP50()
+    {
+        return this.p50;
+    }
+
+    /**
+     * @return the 95th percentile of the time of an invocation, in milliseconds
+     */
+    public double getP95()
+    {
+        return this.p95;
+    }
+
+    /**
+     * @return the 99th percentile of the time of an invocation, in milliseconds
+     */
+    public double getP99()
+    {
+        return this.p99;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.user.group.GroupException;
+import org.xwiki.user.group.GroupManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Computes the mail addresses of the users of a workflow role, following the subgroups. The members of the groups are
+ * taken from the {@link GroupManager}, which caches them, instead of loading each group document on every
+ * notification, and each user is counted once even when they belong to several of the groups.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = MailRecipientsResolver.class)
+@Singleton
+public class MailRecipientsResolver
+{
+    private static final EntityReference USER_CLASS =
+        new EntityReference("XWikiUsers", EntityType.DOCUMENT, new EntityReference("XWiki", EntityType.SPACE));
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private GroupManager groupManager;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    /**
+     * @param usersOrGroups a comma separated list of users or groups, as stored in a workflow configuration
+     * @param wiki the wiki of the workflow configuration
+     * @param xcontext the current context
+     * @return the mail addresses of the passed users and of the members of the passed groups and of their subgroups,
+     *     without duplicates
+     */
+    public Set<String> getEmails(String usersOrGroups, WikiReference wiki, XWikiContext xcontext)
+    {
+        Set<DocumentReference> users = new LinkedHashSet<>();
+        DocumentReference base = new DocumentReference(wiki.getName(), "Main", "WebHome");
+        for (String userOrGroup : StringUtils.split(StringUtils.defaultString(usersOrGroups), ',')) {
+            if (StringUtils.isBlank(userOrGroup)) {
+                continue;
+            }
+            DocumentReference reference = this.explicitStringDocRefResolver.resolve(userOrGroup.trim(), base);
+            users.add(reference);
+            try {
+                users.addAll(this.groupManager.getMembers(reference, true));
+            } catch (GroupException e) {
+                this.logger.warn("Failed to get the members of [{}]", reference, e);
+            }
+        }
+
+        Set<String> emails = new LinkedHashSet<>();
+        for (DocumentReference user : users) {
+            try {
+                // The groups don't have a user object.
+                BaseObject userObject = xcontext.getWiki().getDocument(user, xcontext).getXObject(USER_CLASS);
+                String email = userObject != null ? StringUtils.trimToNull(userObject.getStringValue("email")) : null;
+                if (email != null) {
+                    emails.add(email);
+                }
+            } catch (XWikiException e) {
+                this.logger.warn("Failed to get the mail address of [{}]", user, e);
+            }
+        }
+        return emails;
+    }
+}
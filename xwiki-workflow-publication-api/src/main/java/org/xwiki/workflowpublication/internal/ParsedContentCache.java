@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.io.StringReader;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.LRUCacheConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.rendering.block.LinkBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.BlockMatcher;
+import org.xwiki.rendering.block.match.ClassBlockMatcher;
+import org.xwiki.rendering.block.match.OrBlockMatcher;
+import org.xwiki.rendering.parser.ParseException;
+import org.xwiki.rendering.parser.Parser;
+import org.xwiki.rendering.syntax.Syntax;
+
+/**
+ * Bounded cache of the parsed contents, keyed by the hash of the content and its syntax, so that the same content is
+ * parsed only once whatever the document, locale or publication it is met in. The cached content is never modified:
+ * a copy is returned to the callers, and only when it holds at least one link or image.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = ParsedContentCache.class)
+@Singleton
+public class ParsedContentCache implements Initializable, Disposable
+{
+    private static final BlockMatcher REFERENCES_MATCHER =
+        new OrBlockMatcher(new ClassBlockMatcher(LinkBlock.class), new ClassBlockMatcher(ImageBlock.class));
+
+    @Inject
+    private CacheManager cacheManager;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    private Cache<ParsedContent> cache;
+
+    /**
+     * A parsed content, without the blocks when it holds no link nor image since there is nothing to transform then.
+     */
+    private static final class ParsedContent
+    {
+        private final XDOM xDom;
+
+        ParsedContent(XDOM xDom)
+        {
+            this.xDom = xDom;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int size = this.configuration.getParsedContentCacheSize();
+        if (size > 0) {
+            try {
+                this.cache = this.cacheManager
+                    .createNewLocalCache(new LRUCacheConfiguration("publicationworkflow.parsedcontents", size));
+            } catch (CacheException e) {
+                throw new InitializationException("Failed to create the parsed contents cache", e);
+            }
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.cache != null) {
+            this.cache.dispose();
+        }
+    }
+
+    /**
+     * @param content a raw content
+     * @param syntax the syntax of the content
+     * @return a copy of the parsed content, which can be modified by the caller, or {@code null} if the content holds
+     *     no link nor image
+     * @throws ComponentLookupException in case there is no parser for the passed syntax
+     * @throws ParseException in case the content cannot be parsed
+     */
+    public XDOM getReferencesXDOM(String content, Syntax syntax) throws ComponentLookupException, ParseException
+    {
+        if (this.cache == null) {
+            return parseReferences(content, syntax).xDom;
+        }
+        String key = DigestUtils.sha256Hex(content) + '/' + syntax.toIdString();
+        ParsedContent parsedContent = this.cache.get(key);
+        if (parsedContent == null) {
+            parsedContent = parseReferences(content, syntax);
+            this.cache.set(key, parsedContent);
+        }
+        return parsedContent.xDom != null ? parsedContent.xDom.clone() : null;
+    }
+
+    private ParsedContent parseReferences(String content, Syntax syntax)
+        throws ComponentLookupException, ParseException
+    {
+        Parser parser = this.componentManagerProvider.get().getInstance(Parser.class, syntax.toIdString());
+        XDOM xDom = parser.parse(new StringReader(content));
+        boolean hasReferences = xDom.getFirstBlock(REFERENCES_MATCHER, Block.Axes.DESCENDANT_OR_SELF) != null;
+        return new ParsedContent(hasReferences ? xDom : null);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+
+/**
+ * Instance wide configuration of the publication workflow, read from {@code xwiki.properties}. All the properties are
+ * prefixed with {@value #PREFIX}.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = PublicationWorkflowConfiguration.class)
+@Singleton
+public class PublicationWorkflowConfiguration
+{
+    /**
+     * Prefix of all the publication workflow properties in {@code xwiki.properties}.
+     */
+    public static final String PREFIX = "workflowpublication.";
+
+    private static final int DEFAULT_PUBLISH_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_CACHE_WARMUP_SIZE = 100;
+
+    private static final int DEFAULT_REFERENCES_INDEX_SIZE = 1000;
+
+    private static final int DEFAULT_PARSED_CONTENT_CACHE_SIZE = 500;
+
+    private static final int DEFAULT_CONFIG_LIVETABLE_CACHE_SIZE = 100;
+
+    private static final int DEFAULT_STATUS_COUNTERS_RECONCILIATION_INTERVAL = 60;
+
+    private static final int DEFAULT_TRANSITION_LOG_FLUSH_INTERVAL = 1000;
+
+    private static final int DEFAULT_TRANSITION_LOG_RETENTION = 365;
+
+    private static final int DEFAULT_NOTIFICATION_QUEUE_SIZE = 1000;
+
+    private static final int DEFAULT_NOTIFICATION_DIGEST_WINDOW = 60;
+
+    private static final int DEFAULT_SCHEDULED_PUBLISH_INTERVAL = 60;
+
+    private static final int DEFAULT_SCHEDULED_PUBLISH_BATCH_SIZE = 10;
+
+    @Inject
+    @Named("xwikiproperties")
+    private Provider<ConfigurationSource> configuration;
+
+    /**
+     * @return the maximum number of descendants loaded at once when a subtree is published, which bounds the number of
+     *     references fetched from the database while walking the subtree
+     */
+    public int getPublishBatchSize()
+    {
+        int batchSize = this.configuration.get().getProperty(PREFIX + "publish.batchSize",
+            DEFAULT_PUBLISH_BATCH_SIZE);
+        return batchSize > 0 ? batchSize : DEFAULT_PUBLISH_BATCH_SIZE;
+    }
+
+    /**
+     * @return {@code true} if the documents handled in bulk (the pages of a published subtree, the children hidden or
+     *     unhidden on archive) should be loaded directly from the database, without going through the document cache,
+     *     so that they do not evict the pages needed by the readers
+     */
+    public boolean isDocumentCacheBypassed()
+    {
+        return this.configuration.get().getProperty(PREFIX + "publish.bypassDocumentCache", Boolean.TRUE);
+    }
+
+    /**
+     * @return the maximum number of published pages waiting to be loaded in the document cache in the background,
+     *     {@code 0} to disable the warm up
+     */
+    public int getCacheWarmupSize()
+    {
+        int warmupSize = this.configuration.get().getProperty(PREFIX + "publish.cacheWarmupSize",
+            DEFAULT_CACHE_WARMUP_SIZE);
+        return Math.max(warmupSize, 0);
+    }
+
+    /**
+     * @return the number of threads loading the published pages in the document cache
+     */
+    public int getCacheWarmupThreads()
+    {
+        int threads = this.configuration.get().getProperty(PREFIX + "publish.cacheWarmup.threads", 1);
+        return Math.max(threads, 1);
+    }
+
+    /**
+     * @return the number of documents a bulk transition, like publishing all the validating documents, handles in
+     *     parallel
+     */
+    public int getBulkTransitionThreads()
+    {
+        int threads = this.configuration.get().getProperty(PREFIX + "bulkTransition.threads", 2);
+        return Math.max(threads, 1);
+    }
+
+    /**
+     * @return {@code true} if the published pages should also be rendered when loaded in the document cache, so that
+     *     their parsed content is ready as well
+     */
+    public boolean isCacheWarmupRendering()
+    {
+        return this.configuration.get().getProperty(PREFIX + "publish.cacheWarmup.render", Boolean.FALSE);
+    }
+
+    /**
+     * @return the maximum number of draft translations whose published content is precomputed when they are saved,
+     *     {@code 0} to disable the precomputation
+     */
+    public int getReferencesIndexSize()
+    {
+        int size = this.configuration.get().getProperty(PREFIX + "referencesTransform.indexSize",
+            DEFAULT_REFERENCES_INDEX_SIZE);
+        return Math.max(size, 0);
+    }
+
+    /**
+     * @return the maximum number of distinct parsed contents kept to be transformed again, {@code 0} to parse the
+     *     contents each time
+     */
+    public int getParsedContentCacheSize()
+    {
+        int size = this.configuration.get().getProperty(PREFIX + "referencesTransform.parsedContentCacheSize",
+            DEFAULT_PARSED_CONTENT_CACHE_SIZE);
+        return Math.max(size, 0);
+    }
+
+    /**
+     * @return the maximum number of pages of the workflow configurations livetable kept until a configuration or a
+     *     group changes, {@code 0} to query the configurations each time
+     */
+    public int getConfigLivetableCacheSize()
+    {
+        int size = this.configuration.get().getProperty(PREFIX + "configLivetable.cacheSize",
+            DEFAULT_CONFIG_LIVETABLE_CACHE_SIZE);
+        return Math.max(size, 0);
+    }
+
+    /**
+     * @return the number of minutes between two computations of the workflow status counters from the database,
+     *     {@code 0} to only compute them once
+     */
+    public int getStatusCountersReconciliationInterval()
+    {
+        int interval = this.configuration.get().getProperty(PREFIX + "statusCounters.reconciliationInterval",
+            DEFAULT_STATUS_COUNTERS_RECONCILIATION_INTERVAL);
+        return Math.max(interval, 0);
+    }
+
+    /**
+     * @return the number of milliseconds between two writes of the queued workflow transitions to the transition log
+     */
+    public int getTransitionLogFlushInterval()
+    {
+        int interval = this.configuration.get().getProperty(PREFIX + "transitionLog.flushInterval",
+            DEFAULT_TRANSITION_LOG_FLUSH_INTERVAL);
+        return interval > 0 ? interval : DEFAULT_TRANSITION_LOG_FLUSH_INTERVAL;
+    }
+
+    /**
+     * @return the number of days the workflow transitions are kept in the transition log, {@code 0} to keep them
+     *     forever
+     */
+    public int getTransitionLogRetention()
+    {
+        int retention = this.configuration.get().getProperty(PREFIX + "transitionLog.retention",
+            DEFAULT_TRANSITION_LOG_RETENTION);
+        return Math.max(retention, 0);
+    }
+
+    /**
+     * @return the maximum number of workflow mail notifications waiting to be sent, {@code 0} to send none
+     */
+    public int getNotificationQueueSize()
+    {
+        int size = this.configuration.get().getProperty(PREFIX + "notifications.queueSize",
+            DEFAULT_NOTIFICATION_QUEUE_SIZE);
+        return Math.max(size, 0);
+    }
+
+    /**
+     * @return the number of seconds during which the workflow mail notifications are collected to be sent as a single
+     *     digest per recipient, {@code 0} to send each notification right away
+     */
+    public int getNotificationDigestWindow()
+    {
+        int window = this.configuration.get().getProperty(PREFIX + "notifications.digestWindow",
+            DEFAULT_NOTIFICATION_DIGEST_WINDOW);
+        return Math.max(window, 0);
+    }
+
+    /**
+     * @return {@code true} if this instance publishes the scheduled documents which are due, which should be enabled
+     *     on a single node of a cluster so that the documents are not published by each of them
+     */
+    public boolean isScheduledPublishEnabled()
+    {
+        return this.configuration.get().getProperty(PREFIX + "scheduledPublish.enabled", Boolean.TRUE);
+    }
+
+    /**
+     * @return the number of seconds between two lookups of the scheduled publications which are due
+     */
+    public int getScheduledPublishInterval()
+    {
+        int interval = this.configuration.get().getProperty(PREFIX + "scheduledPublish.interval",
+            DEFAULT_SCHEDULED_PUBLISH_INTERVAL);
+        return interval > 0 ? interval : DEFAULT_SCHEDULED_PUBLISH_INTERVAL;
+    }
+
+    /**
+     * @return the maximum number of scheduled publications started at each lookup, all wikis included, which spreads
+     *     the publications due at the same time over the next lookups
+     */
+    public int getScheduledPublishBatchSize()
+    {
+        int batchSize = this.configuration.get().getProperty(PREFIX + "scheduledPublish.batchSize",
+            DEFAULT_SCHEDULED_PUBLISH_BATCH_SIZE);
+        return batchSize > 0 ? batchSize : DEFAULT_SCHEDULED_PUBLISH_BATCH_SIZE;
+    }
+
+    /**
+     * @return the classes, relative to the wiki of the published documents, whose wiki syntax text area properties
+     *     get their references rewritten when published, like the document content
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getReferencesTransformObjectClasses()
+    {
+        List<String> classes =
+            this.configuration.get().getProperty(PREFIX + "referencesTransform.objectClasses", List.class);
+        return classes != null ? classes : Collections.emptyList();
+    }
+}
@@ -61,6 +61,9 @@ public class PublicationWorkflowCopyListener implements EventListener
     @Inject
     private PublicationWorkflow publicationWorkflow;
 
+    @Inject
+    private ListenerMetrics metrics;
+
     /**
      * {@inheritDoc}
      *
@@ -86,19 +89,25 @@ public class PublicationWorkflowCopyListener implements EventListener
         XWikiContext context = contextProvider.get();
         String wikiId = context.getWikiId();
 
-        try {
-            CopyRequest copyRequest = (CopyRequest) data;
-            DocumentReference workflowDestinationRef = (DocumentReference) copyRequest.getDestination();
+        try (ListenerMetrics.Timer timer = metrics.start(getName(), event)) {
+            try {
+                CopyRequest copyRequest = (CopyRequest) data;
+                DocumentReference workflowDestinationRef = (DocumentReference) copyRequest.getDestination();
 
-            // Set the context wiki to current wiki as the DocumentCopyingEvent is executed with the main wiki context.
-            context.setWikiId(Objects.requireNonNull(workflowDestinationRef).getWikiReference().getName());
+                // Set the context wiki to current wiki as the DocumentCopyingEvent is executed with the main wiki
+                // context.
+                context.setWikiId(Objects.requireNonNull(workflowDestinationRef).getWikiReference().getName());
 
-            XWikiDocument workflowDestinationDoc = context.getWiki().getDocument(workflowDestinationRef, context);
-            if (publicationWorkflow.isWorkflowDocument(workflowDestinationDoc, context)) {
-                workflowDestinationDoc.removeXObjects(publicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+                XWikiDocument workflowDestinationDoc = context.getWiki().getDocument(workflowDestinationRef, context);
+                if (publicationWorkflow.isWorkflowDocument(workflowDestinationDoc, context)) {
+                    workflowDestinationDoc.removeXObjects(publicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+                } else {
+                    timer.earlyExit();
+                }
+            } catch (XWikiException e) {
+                timer.error();
+                throw new RuntimeException(e);
             }
-        } catch (XWikiException e) {
-            throw new RuntimeException(e);
         } finally {
             // Set back the context wiki to original (main).
             context.setWikiId(wikiId);
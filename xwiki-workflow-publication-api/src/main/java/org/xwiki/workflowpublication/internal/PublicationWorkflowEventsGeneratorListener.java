@@ -58,6 +58,9 @@ public class PublicationWorkflowEventsGeneratorListener implements EventListener
     @Inject
     private ObservationManager observation;
 
+    @Inject
+    private ListenerMetrics metrics;
+
     /**
      * {@inheritDoc}
      * 
@@ -89,13 +92,17 @@ public class PublicationWorkflowEventsGeneratorListener implements EventListener
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
-        XWikiContext xcontext = (XWikiContext) data;
-        XWikiDocument doc = (XWikiDocument) source;
+        try (ListenerMetrics.Timer timer = metrics.start(getName(), event)) {
+            XWikiContext xcontext = (XWikiContext) data;
+            XWikiDocument doc = (XWikiDocument) source;
 
-        Object publishingContextKey = xcontext.get(CONTEXTKEY_PUBLISHING);
-        if (publishingContextKey != null && Boolean.parseBoolean(publishingContextKey.toString())
-            && publicationWorkflow.isWorkflowDocument(doc, xcontext)) {
-            observation.notify(new DocumentPublishingEvent(doc.getDocumentReference()), doc, xcontext);
+            Object publishingContextKey = xcontext.get(CONTEXTKEY_PUBLISHING);
+            if (publishingContextKey != null && Boolean.parseBoolean(publishingContextKey.toString())
+                && publicationWorkflow.isWorkflowDocument(doc, xcontext)) {
+                observation.notify(new DocumentPublishingEvent(doc.getDocumentReference()), doc, xcontext);
+            } else {
+                timer.earlyExit();
+            }
         }
     }
 }
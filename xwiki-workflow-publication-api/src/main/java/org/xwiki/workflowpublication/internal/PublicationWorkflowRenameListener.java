@@ -19,12 +19,14 @@
  */
 package org.xwiki.workflowpublication.internal;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -33,6 +35,10 @@ import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.event.JobFinishedEvent;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
@@ -45,6 +51,7 @@ import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.refactoring.event.DocumentRenamedEvent;
 import org.xwiki.refactoring.job.MoveRequest;
+import org.xwiki.refactoring.job.RefactoringJobs;
 import org.xwiki.workflowpublication.PublicationWorkflow;
 import org.xwiki.workflowpublication.WorkflowConfigManager;
 
@@ -87,6 +94,9 @@ import com.xpn.xwiki.objects.BaseObject;
  *   <li>Verify that the user performing the move has edit rights on the target space.</li>
  *   <li>Verify that no document already exists in the new location.</li>
  * </ul>
+ * The documents moved by a refactoring job are handled once the job is finished: when a workflow document was moved
+ * with its children, its equivalent is moved with its children by a single refactoring job, instead of moving the
+ * equivalent of each moved document separately.
  *
  * @version $Id$
  * @since 1.9
@@ -113,7 +123,27 @@ public class PublicationWorkflowRenameListener implements EventListener
 
     private static final String WF_MOVE_STRATEGY_FIELD_NAME = "moveStrategy";
 
-    private static final List<Event> EVENTS = Collections.singletonList(new DocumentRenamedEvent());
+    /**
+     * Holds, while the move strategy is applied to the documents moved by a refactoring job, the request of this job.
+     */
+    private static final String CONTEXTKEY_SUBTREE_MOVE = "publicationworkflow:subtreeMove";
+
+    /**
+     * Property set on the requests of the jobs moving the equivalent of the moved documents.
+     */
+    private static final String PROPERTY_EQUIVALENT_MOVE = "publicationworkflow.equivalentMove";
+
+    /**
+     * Holds the rule mapping the documents of the workflow being moved to their equivalent.
+     */
+    private static final String CONTEXTKEY_EQUIVALENT_RULE = "publicationworkflow:equivalentRule";
+
+    private static final List<Event> EVENTS = Arrays.asList(new DocumentRenamedEvent(), new JobFinishedEvent());
+
+    /**
+     * The renames done by the refactoring jobs being run, per job identifier.
+     */
+    private final Map<List<String>, MoveBatch> moveBatches = new ConcurrentHashMap<>();
 
     @Inject
     private WorkflowConfigManager configManager;
@@ -148,6 +178,27 @@ public class PublicationWorkflowRenameListener implements EventListener
     @Inject
     private Provider<XWikiContext> contextProvider;
 
+    @Inject
+    private ListenerMetrics metrics;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    /**
+     * The renames done by a refactoring job.
+     */
+    private static final class MoveBatch
+    {
+        private final MoveRequest request;
+
+        private final List<DocumentRenamedEvent> renames = new CopyOnWriteArrayList<>();
+
+        MoveBatch(MoveRequest request)
+        {
+            this.request = request;
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -175,64 +226,156 @@ public class PublicationWorkflowRenameListener implements EventListener
      */
     public void onEvent(Event event, Object source, Object data)
     {
+        try (ListenerMetrics.Timer timer = metrics.start(getName(), event)) {
+            try {
+                boolean handled;
+                if (event instanceof JobFinishedEvent) {
+                    handled = handleMoveJobFinished((JobFinishedEvent) event);
+                } else {
+                    handled = handleRename((DocumentRenamedEvent) event, source, (MoveRequest) data);
+                }
+                if (!handled) {
+                    timer.earlyExit();
+                }
+            } catch (RuntimeException e) {
+                timer.error();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return {@code false} if the rename is known to require nothing from the workflow
+     */
+    private boolean handleRename(DocumentRenamedEvent event, Object source, MoveRequest moveRequest)
+    {
+        // The equivalent documents moved by this listener must not move their own equivalent back.
+        if (moveRequest.getProperty(PROPERTY_EQUIVALENT_MOVE, false)) {
+            return false;
+        }
+
+        // The renames done by a refactoring job are handled all at once when the job finishes.
+        if (source instanceof Job && moveRequest.getId() != null) {
+            this.moveBatches.computeIfAbsent(moveRequest.getId(), id -> new MoveBatch(moveRequest)).renames.add(event);
+            return true;
+        }
+
         XWikiContext context = contextProvider.get();
         String wikiId = context.getWikiId();
-
         try {
-            MoveRequest moveRequest = (MoveRequest) data;
-            DocumentReference workflowSourceRef =
-                (DocumentReference) moveRequest.getEntityReferences().stream().findFirst().orElse(null);
-            DocumentReference workflowDestinationRef = (DocumentReference) moveRequest.getDestination();
-
+            DocumentReference workflowSourceRef = getWorkflowSourceReference(moveRequest);
             // Set the context wiki to current wiki as the DocumentRenamedEvent is executed with the main wiki context.
             context.setWikiId(Objects.requireNonNull(workflowSourceRef).getWikiReference().getName());
 
-            XWikiDocument workflowDoc = getWorkflowDocument(workflowSourceRef, workflowDestinationRef, context);
-
-            if (publicationWorkflow.isWorkflowDocument(workflowDoc, context)) {
-                // Get the moving strategy.
-                BaseObject workflowConfig = configManager.getWorkflowConfigForWorkflowDoc(workflowDoc, context);
-                String moveStrategy = workflowConfig.getStringValue(WF_MOVE_STRATEGY_FIELD_NAME);
-                if (shouldProcessMoveStrategy(moveStrategy)) {
-                    DocumentRenamedEvent documentRenamedEvent = (DocumentRenamedEvent) event;
-                    DocumentReference currentSourceRef = documentRenamedEvent.getSourceReference();
-                    DocumentReference currentTargetRef = documentRenamedEvent.getTargetReference();
-
-                    boolean isTarget = workflowDoc.getIntValue("istarget") == 1;
-
-                    switch (moveStrategy) {
-                        case MOVE_STRATEGY_MOVE_TARGET:
-                            if (!isTarget) {
-                                handlePublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
-                                    true, context);
-                            }
-                        case MOVE_STRATEGY_MOVE_ALL:
-                            handlePublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
-                                !isTarget, context);
-                            break;
-                        case MOVE_STRATEGY_MOVE_DRAFTS:
-                            if (isTarget) {
-                                handlePublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
-                                    false, context);
-                            }
-                            break;
-                        case MOVE_STRATEGY_MOVE_TARGET_IF_UNPUBLISHED:
-                            if (!isTarget) {
-                                handleUnPublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
-                                    context);
-                            }
-                            break;
-                    }
+            XWikiDocument workflowDoc =
+                getWorkflowDocument(workflowSourceRef, (DocumentReference) moveRequest.getDestination(), context);
+            return applyMoveStrategy(workflowDoc, workflowSourceRef, event, context);
+        } catch (XWikiException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // Set back the context wiki to original (main).
+            context.setWikiId(wikiId);
+        }
+    }
+
+    /**
+     * Applies the move strategy to all the documents moved by a refactoring job. When the workflow document was moved
+     * with its children, its equivalent is moved the same way, with its children, by a single refactoring job, instead
+     * of moving the equivalent of each moved document separately.
+     *
+     * @return {@code false} if the finished job did not move any workflow document
+     */
+    private boolean handleMoveJobFinished(JobFinishedEvent event)
+    {
+        MoveBatch moveBatch = this.moveBatches.remove(event.getJobId());
+        if (moveBatch == null) {
+            return false;
+        }
+
+        XWikiContext context = contextProvider.get();
+        String wikiId = context.getWikiId();
+        try {
+            DocumentReference workflowSourceRef = getWorkflowSourceReference(moveBatch.request);
+            context.setWikiId(Objects.requireNonNull(workflowSourceRef).getWikiReference().getName());
+
+            XWikiDocument workflowDoc = getWorkflowDocument(workflowSourceRef,
+                (DocumentReference) moveBatch.request.getDestination(), context);
+            if (!publicationWorkflow.isWorkflowDocument(workflowDoc, context)) {
+                return false;
+            }
+
+            DocumentRenamedEvent workflowRename = moveBatch.renames.stream()
+                .filter(rename -> workflowSourceRef.equals(rename.getSourceReference())).findFirst().orElse(null);
+            if (workflowRename == null) {
+                // The moved documents cannot be mapped as a whole, handle them one by one.
+                boolean handled = false;
+                for (DocumentRenamedEvent rename : moveBatch.renames) {
+                    handled |= applyMoveStrategy(workflowDoc, workflowSourceRef, rename, context);
                 }
+                return handled;
             }
+
+            context.put(CONTEXTKEY_SUBTREE_MOVE, moveBatch.request);
+            return applyMoveStrategy(workflowDoc, workflowSourceRef, workflowRename, context);
         } catch (XWikiException e) {
             throw new RuntimeException(e);
         } finally {
-            // Set back the context wiki to original (main).
+            context.remove(CONTEXTKEY_SUBTREE_MOVE);
             context.setWikiId(wikiId);
         }
     }
 
+    private DocumentReference getWorkflowSourceReference(MoveRequest moveRequest)
+    {
+        return (DocumentReference) moveRequest.getEntityReferences().stream().findFirst().orElse(null);
+    }
+
+    /**
+     * @return {@code true} if the renamed document is a workflow document whose move strategy was applied
+     */
+    private boolean applyMoveStrategy(XWikiDocument workflowDoc, DocumentReference workflowSourceRef,
+        DocumentRenamedEvent documentRenamedEvent, XWikiContext context) throws XWikiException
+    {
+        if (!publicationWorkflow.isWorkflowDocument(workflowDoc, context)) {
+            return false;
+        }
+        // Get the moving strategy.
+        BaseObject workflowConfig = configManager.getWorkflowConfigForWorkflowDoc(workflowDoc, context);
+        String moveStrategy = workflowConfig.getStringValue(WF_MOVE_STRATEGY_FIELD_NAME);
+        if (!shouldProcessMoveStrategy(moveStrategy)) {
+            return false;
+        }
+        DocumentReference currentSourceRef = documentRenamedEvent.getSourceReference();
+        DocumentReference currentTargetRef = documentRenamedEvent.getTargetReference();
+
+        boolean isTarget = workflowDoc.getIntValue("istarget") == 1;
+
+        switch (moveStrategy) {
+            case MOVE_STRATEGY_MOVE_TARGET:
+                if (!isTarget) {
+                    handlePublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
+                        true, context);
+                }
+            case MOVE_STRATEGY_MOVE_ALL:
+                handlePublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
+                    !isTarget, context);
+                break;
+            case MOVE_STRATEGY_MOVE_DRAFTS:
+                if (isTarget) {
+                    handlePublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
+                        false, context);
+                }
+                break;
+            case MOVE_STRATEGY_MOVE_TARGET_IF_UNPUBLISHED:
+                if (!isTarget) {
+                    handleUnPublished(workflowDoc, workflowSourceRef, currentSourceRef, currentTargetRef,
+                        context);
+                }
+                break;
+        }
+        return true;
+    }
+
     private void handleUnPublished(XWikiDocument workflowDoc, DocumentReference workflowSourceRef,
         DocumentReference currentSourceRef, DocumentReference currentTargetRef, XWikiContext context)
         throws XWikiException
@@ -248,7 +391,7 @@ public class PublicationWorkflowRenameListener implements EventListener
         }
 
         DocumentReference oldEquivalentRef =
-            computeEquivalentDocRef(workflowSourceRef, workflowEquivalentRef, currentSourceRef, context);
+            computeWorkflowEquivalentDocRef(workflowSourceRef, workflowEquivalentRef, currentSourceRef, context);
 
         boolean isSameAsWorkflowEquivalent = oldEquivalentRef.equals(workflowEquivalentRef);
 
@@ -281,7 +424,7 @@ public class PublicationWorkflowRenameListener implements EventListener
         DocumentReference workflowEquivalentRef = stringResolver.resolve(workflowEquivalent);
 
         DocumentReference oldEquivalentRef =
-            computeEquivalentDocRef(workflowSourceRef, workflowEquivalentRef, currentSourceRef, context);
+            computeWorkflowEquivalentDocRef(workflowSourceRef, workflowEquivalentRef, currentSourceRef, context);
         DocumentReference newEquivalentRef =
             computeEquivalentDocRef(currentSourceRef, currentTargetRef, oldEquivalentRef, context);
 
@@ -318,7 +461,12 @@ public class PublicationWorkflowRenameListener implements EventListener
         if (workflowObj != null) {
             workflowObj.setStringValue(TARGET, compactWikiSerializer.serialize(targetRef));
             workflowDoc.setMetaDataDirty(false);
-            context.getWiki().saveDocument(workflowDoc, context);
+            context.put(DefaultPublicationWorkflow.CONTEXTKEY_WORKFLOW_SAVE, true);
+            try {
+                context.getWiki().saveDocument(workflowDoc, context);
+            } finally {
+                context.remove(DefaultPublicationWorkflow.CONTEXTKEY_WORKFLOW_SAVE);
+            }
         }
     }
 
@@ -415,9 +563,47 @@ public class PublicationWorkflowRenameListener implements EventListener
             return;
         }
 
+        // When a subtree was moved, the equivalent subtree is moved the same way, at once.
+        MoveRequest subtreeMove = (MoveRequest) context.get(CONTEXTKEY_SUBTREE_MOVE);
+        if (subtreeMove != null && subtreeMove.isDeep()) {
+            moveEquivalentSubtree(oldDocRef, newDocRef, context);
+            return;
+        }
+
         xwiki.renameDocument(oldDocRef, newDocRef, true, Collections.emptyList(), Collections.emptyList(), context);
     }
 
+    private void moveEquivalentSubtree(DocumentReference oldDocRef, DocumentReference newDocRef,
+        XWikiContext context)
+    {
+        List<String> jobId = Arrays.asList("publicationworkflow", "moveequivalent",
+            compactWikiSerializer.serialize(oldDocRef));
+        // The equivalent can be reached twice by the move strategy, it is moved only once.
+        if (jobExecutor.getJob(jobId) != null) {
+            return;
+        }
+
+        MoveRequest request = new MoveRequest();
+        request.setId(jobId);
+        request.setJobType(RefactoringJobs.RENAME);
+        request.setEntityReferences(Collections.singletonList(oldDocRef));
+        request.setDestination(newDocRef);
+        request.setDeep(true);
+        // Like for a single equivalent document, the links are not updated and no redirect is created.
+        request.setUpdateLinks(false);
+        request.setAutoRedirect(false);
+        request.setCheckRights(false);
+        request.setInteractive(false);
+        request.setUserReference(context.getUserReference());
+        request.setProperty(PROPERTY_EQUIVALENT_MOVE, true);
+        try {
+            jobExecutor.execute(RefactoringJobs.RENAME, request);
+        } catch (JobException e) {
+            logger.error("Failed to move the equivalent of the moved documents from [{}] to [{}]", oldDocRef,
+                newDocRef, e);
+        }
+    }
+
     /**
      * Computes the new equivalent document reference based on the differences between the old and new references of the
      * current document. This method attempts to generate a new reference for an equivalent document by applying the
@@ -447,102 +633,43 @@ public class PublicationWorkflowRenameListener implements EventListener
         // * Current : the old target name
         // * New : the new draft name
         // However this option does not work well with small strings, such as serialized document references.
-        // Instead, we will be creating a diff based on the old draft reference and the new draft reference,
-        // and then we'll try to apply this diff to the target reference. If the diff applies correctly,
-        // and if it corresponds to a valid document name, we can continue. Else, we abort.
-
-        // Start by splitting the different document references into an array of strings, which will be easier
-        // to diff.
-        List<String> oldCurrentSplittedReference = createSplitReference(oldCurrentDocRef);
-        List<String> newCurrentSplittedReference = createSplitReference(newCurrentDocRef);
-        List<String> oldEquivalentSplittedReference = createSplitReference(oldEquivalentDocRef);
-
-        List<String> newEquivalentSplittedReference;
+        // Instead, we take the part of the old draft reference which is not shared with the new draft reference,
+        // cut it off the target reference and append the rest of the new draft reference instead.
+        return computeEquivalentDocRef(EquivalentReferenceRule.compile(oldCurrentDocRef, newCurrentDocRef),
+            oldEquivalentDocRef, context);
+    }
 
-        newEquivalentSplittedReference = manuallyConstructEquivalentDocumentPath(oldCurrentSplittedReference,
-            newCurrentSplittedReference, oldEquivalentSplittedReference);
-        if (newEquivalentSplittedReference.size() <= 1) {
+    private DocumentReference computeEquivalentDocRef(EquivalentReferenceRule rule,
+        DocumentReference oldEquivalentDocRef, XWikiContext context)
+    {
+        DocumentReference newEquivalentDocRef = rule.apply(oldEquivalentDocRef, new WikiReference(context.getWikiId()));
+        if (newEquivalentDocRef == null) {
             // this can happen if moving pages up the tree too much
             logger.warn("Unable to compute new location for the document [{}]", oldEquivalentDocRef);
             return oldEquivalentDocRef;
         }
-
-        // Reconstruct the new equivalent reference.
-        String newEquivalentName = newEquivalentSplittedReference.remove(newEquivalentSplittedReference.size() - 1);
-
-        return new DocumentReference(context.getWikiId(), newEquivalentSplittedReference, newEquivalentName);
-    }
-
-    /**
-     * Fallback: sometimes the difflib patch fails; make a simple "longest match" in this case.
-     *
-     * @param oldCurrentSplittedReference the reference to the document at the old location
-     * @param newCurrentSplittedReference the reference to the document at the new location
-     * @param oldEquivalentSplittedReference the reference to the equivalent target/draft document at the old location
-     * @return a proposed reference to equivalent document at the new location
-     */
-    private List<String> manuallyConstructEquivalentDocumentPath(
-        List<String> oldCurrentSplittedReference, List<String> newCurrentSplittedReference,
-        List<String> oldEquivalentSplittedReference)
-    {
-        List<String> newEquivalentSplittedReference;
-
-        final int oldCurrSize = oldCurrentSplittedReference.size();
-        final int newCurrSize = newCurrentSplittedReference.size();
-        final int oldEquivSize = oldEquivalentSplittedReference.size();
-
-        // first find the common prefix between old and new location
-        final int N = Math.min(oldCurrentSplittedReference.size(), newCurrSize);
-        int commonPrefixIndex = 0;
-        for (; commonPrefixIndex < N &&
-            Objects.equals(oldCurrentSplittedReference.get(commonPrefixIndex), newCurrentSplittedReference.get(commonPrefixIndex));
-            commonPrefixIndex++) {
-            // loop body intentional empty
-        }
-
-        // then we take the rest of the old location
-        // to be cut off from the old equivalent location to construct the new one
-        // FIXME: we should prevent moving the new equiv location outside of the "draft" of "published" space
-        // but how do we do that?
-        int cutoffSuffixIndex = oldCurrSize - commonPrefixIndex;
-
-        // if the lists are "too short", do not chew up more than is possible
-        if (oldEquivSize < cutoffSuffixIndex) {
-            cutoffSuffixIndex = oldEquivSize;
-        }
-        if (commonPrefixIndex > newCurrSize) {
-            commonPrefixIndex = newCurrSize;
-        }
-
-        // now stitch together the new equivalent from that info:
-        //  - first the oldEquivalent, except for the cut off suffix from the oldCurrent
-        //  - followed by all of the newCurrent, except for the common prefix with the oldCurrent
-        newEquivalentSplittedReference = new ArrayList<>(oldEquivalentSplittedReference.subList(0, (oldEquivSize-cutoffSuffixIndex)));
-        newEquivalentSplittedReference.addAll(newCurrentSplittedReference.subList(commonPrefixIndex, newCurrSize));
-
-        return newEquivalentSplittedReference;
+        return newEquivalentDocRef;
     }
 
     /**
-     * From the given document reference, create a list that contains the reversed reference chain of this document,
-     * with the exclusion of the wiki reference.
-     * <p>
-     * Example : with a document "A.B.C.D.WebHome", the list will be ['A', 'B', 'C', 'D', 'WebHome']
+     * Maps the documents of a workflow to their equivalent. All the documents moved at once belong to the same
+     * workflow, so the rule is compiled only once per move.
      *
-     * @param reference the reference to use
-     * @return the splitted reference list
+     * @param workflowSourceRef the reference of the workflow document, before it was moved
+     * @param workflowEquivalentRef the reference of the equivalent of the workflow document
+     * @param currentSourceRef the reference of a document of the workflow, before it was moved
+     * @param context the current context, holding the rule of the current move
+     * @return the equivalent of the passed document
      */
-    private List<String> createSplitReference(DocumentReference reference)
+    private DocumentReference computeWorkflowEquivalentDocRef(DocumentReference workflowSourceRef,
+        DocumentReference workflowEquivalentRef, DocumentReference currentSourceRef, XWikiContext context)
     {
-        List<String> splittedReference = new ArrayList<>();
-
-        for (EntityReference entity : reference.getReversedReferenceChain()) {
-            if (!(entity instanceof WikiReference)) {
-                splittedReference.add(entity.getName());
-            }
+        EquivalentReferenceRule rule = (EquivalentReferenceRule) context.get(CONTEXTKEY_EQUIVALENT_RULE);
+        if (rule == null || !rule.isCompiledFrom(workflowSourceRef, workflowEquivalentRef)) {
+            rule = EquivalentReferenceRule.compile(workflowSourceRef, workflowEquivalentRef);
+            context.put(CONTEXTKEY_EQUIVALENT_RULE, rule);
         }
-
-        return splittedReference;
+        return computeEquivalentDocRef(rule, currentSourceRef, context);
     }
 
     /**
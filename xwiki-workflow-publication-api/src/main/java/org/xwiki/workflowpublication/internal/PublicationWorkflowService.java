@@ -19,6 +19,13 @@
  */
 package org.xwiki.workflowpublication.internal;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -27,9 +34,14 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.JobStatusStore;
+import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
@@ -82,6 +94,33 @@ public class PublicationWorkflowService implements ScriptService
     @Inject
     private AuthorizationManager authManager;
 
+    @Inject
+    private ListenerMetrics listenerMetrics;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    @Inject
+    private ConfigLivetableResults configLivetableResults;
+
+    @Inject
+    private WorkflowInbox inbox;
+
+    @Inject
+    private WorkflowStatusCounters statusCounters;
+
+    @Inject
+    private WorkflowAgeIndex ageIndex;
+
+    @Inject
+    private JobStatusStore jobStatusStore;
+
+    @Inject
+    private TransitionLog transitionLog;
+
+    @Inject
+    private ScheduledPublications scheduledPublications;
+
     public boolean isWorkflowDocument(String document)
     {
         try {
@@ -311,6 +350,30 @@ public class PublicationWorkflowService implements ScriptService
         }
     }
 
+    /**
+     * Schedules the publication of a draft being validated or validated, which is marked as validated and published
+     * in the background, on behalf of the current user, once the passed date is reached.
+     *
+     * @param document the draft to publish later
+     * @param date when to publish the document, {@code null} to cancel its scheduled publication
+     * @return {@code true} if the publication was scheduled or cancelled, {@code false} otherwise
+     */
+    public boolean schedulePublish(DocumentReference document, Date date)
+    {
+        XWikiContext xcontext = getXContext();
+        try {
+            if (this.publicationRoles.canValidate(xcontext.getUserReference(),
+                xcontext.getWiki().getDocument(document, xcontext), xcontext)) {
+                return this.publicationWorkflow.schedulePublish(document, date);
+            } else {
+                return false;
+            }
+        } catch (XWikiException e) {
+            logger.warn("Could not schedule the publication of document [{}]", document, e);
+            return false;
+        }
+    }
+
     public DocumentReference publish(DocumentReference document)
     {
         XWikiContext xcontext = getXContext();
@@ -328,6 +391,84 @@ public class PublicationWorkflowService implements ScriptService
         }
     }
 
+    /**
+     * Submits many documents for validation at once, in a background job. Only the documents the current user can
+     * moderate are submitted, the others are reported as failures in the status of the job.
+     *
+     * @param documents the drafts to submit for validation
+     * @return the identifier of the job, or {@code null} if it could not be started
+     * @see #getBulkTransitionStatus(List)
+     */
+    public List<String> submitForValidation(Collection<DocumentReference> documents)
+    {
+        try {
+            return this.publicationWorkflow.submitForValidation(documents);
+        } catch (XWikiException e) {
+            logger.warn("Could not submit the documents to validation", e);
+            return null;
+        }
+    }
+
+    /**
+     * Submits for validation, in a background job, all the drafts of the current wiki being moderated which the
+     * current user can moderate.
+     *
+     * @return the identifier of the job, or {@code null} if it could not be started
+     * @see #getBulkTransitionStatus(List)
+     */
+    public List<String> submitAllForValidation()
+    {
+        return submitForValidation((Collection<DocumentReference>) null);
+    }
+
+    /**
+     * Publishes many documents at once, in a background job. Only the documents the current user can validate are
+     * published, the others are reported as failures in the status of the job.
+     *
+     * @param documents the drafts to publish
+     * @return the identifier of the job, or {@code null} if it could not be started
+     * @see #getBulkTransitionStatus(List)
+     */
+    public List<String> publish(Collection<DocumentReference> documents)
+    {
+        try {
+            return this.publicationWorkflow.publish(documents);
+        } catch (XWikiException e) {
+            logger.warn("Could not publish the documents", e);
+            return null;
+        }
+    }
+
+    /**
+     * Publishes, in a background job, all the drafts of the current wiki being validated which the current user can
+     * validate.
+     *
+     * @return the identifier of the job, or {@code null} if it could not be started
+     * @see #getBulkTransitionStatus(List)
+     */
+    public List<String> publishAll()
+    {
+        return publish((Collection<DocumentReference>) null);
+    }
+
+    /**
+     * @param jobId the identifier of a job started by {@link #submitForValidation(Collection)},
+     *     {@link #publish(Collection)}, {@link #submitAllForValidation()} or {@link #publishAll()}
+     * @return the status of the job, listing the documents which could not go through the transition, or {@code null}
+     *     if there is no such job or it was started by another user
+     */
+    public BulkTransitionJobStatus getBulkTransitionStatus(List<String> jobId)
+    {
+        Job job = jobExecutor.getJob(jobId);
+        JobStatus jobStatus = job != null ? job.getStatus() : jobStatusStore.getJobStatus(jobId);
+        DocumentReference userReference = getXContext().getUserReference();
+        if (jobStatus instanceof BulkTransitionJobStatus && userReference != null
+            && userReference.equals(jobStatus.getRequest().getProperty(BulkTransitionJob.PROPERTY_USER))) {
+            return (BulkTransitionJobStatus) jobStatus;
+        }
+        return null;
+    }
+
     public DocumentReference unpublish(DocumentReference document, boolean forceToDraft)
     {
         XWikiContext xcontext = getXContext();
@@ -425,6 +566,184 @@ public class PublicationWorkflowService implements ScriptService
         return this.publicationWorkflow.getChildTarget(reference, workflowDraft, workflowTarget);
     }
 
+    /**
+     * @param offset the index of the first workflow configuration to return, starting from 0
+     * @param limit the maximum number of workflow configurations to return
+     * @param sort the column to sort the configurations on, {@code doc.title} or anything else for their name
+     * @param dir the direction of the sort, {@code asc} or {@code desc}
+     * @param filters the filters on the {@code doc.title}, {@code contributor}, {@code moderator} and
+     *     {@code validator} columns
+     * @return the results of the livetable listing the workflow configurations of the current wiki, or {@code null}
+     *     if they cannot be computed
+     */
+    public Map<String, Object> getConfigLivetableResults(int offset, int limit, String sort, String dir,
+        Map<String, String> filters)
+    {
+        try {
+            return this.configLivetableResults.getResults(offset, limit, sort, dir,
+                filters != null ? filters : Collections.emptyMap(), getXContext());
+        } catch (XWikiException e) {
+            logger.warn("Could not get the workflow configurations", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param after the name, relative to the current wiki, of the last draft of the previous page, {@code null} for
+     *     the first page
+     * @param limit the maximum number of drafts to return
+     * @return the drafts of the current wiki which the current user can moderate, validate or publish, in the order of
+     *     their names
+     */
+    public List<DocumentReference> getInbox(String after, int limit)
+    {
+        XWikiContext xcontext = getXContext();
+        try {
+            return this.inbox.getDocuments(xcontext.getUserReference(), after, limit, xcontext);
+        } catch (XWikiException e) {
+            logger.warn("Could not get the drafts waiting for an action of the current user", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return the number of drafts of the current wiki which the current user can moderate, validate or publish
+     */
+    public int getInboxCount()
+    {
+        XWikiContext xcontext = getXContext();
+        try {
+            return this.inbox.getCount(xcontext.getUserReference(), xcontext);
+        } catch (XWikiException e) {
+            logger.warn("Could not count the drafts waiting for an action of the current user", e);
+            return 0;
+        }
+    }
+
+    /**
+     * @param groupBy what to count the workflow documents per: {@code status}, {@code config} or {@code space}
+     * @param config only count the documents of this workflow configuration, or {@code null} for all
+     * @param status only count the documents in this status, or {@code null} for all
+     * @param space only count the documents in this space or its descendants, or {@code null} for all
+     * @return the number of workflow documents of the current wiki matching the passed criteria, per value of the
+     *     passed grouping, or an empty map if the current user is not an administrator of the current wiki
+     */
+    public Map<String, Long> getStatusCounts(String groupBy, String config, String status, String space)
+    {
+        XWikiContext xcontext = getXContext();
+        // The counts include the documents the current user cannot view.
+        if (!authManager.hasAccess(Right.ADMIN, xcontext.getUserReference(), new WikiReference(xcontext.getWikiId()))) {
+            return Collections.emptyMap();
+        }
+        try {
+            return this.statusCounters.getCounts(groupBy, StringUtils.trimToNull(config),
+                StringUtils.trimToNull(status), StringUtils.trimToNull(space), xcontext);
+        } catch (XWikiException e) {
+            logger.warn("Could not count the workflow documents", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return the number of workflow documents of the current wiki per status, or an empty map if the current user is
+     *     not an administrator of the current wiki
+     */
+    public Map<String, Long> getStatusCounts()
+    {
+        return getStatusCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null);
+    }
+
+    /**
+     * @param status a workflow status
+     * @param limit the maximum number of documents to return
+     * @return the workflow documents of the current wiki in the passed status which the current user can view, from
+     *     the one which entered it first, with the date they entered it
+     */
+    public Map<DocumentReference, Date> getOldestDocuments(String status, int limit)
+    {
+        try {
+            return this.ageIndex.getOldest(status, limit, getXContext());
+        } catch (XWikiException e) {
+            logger.warn("Could not get the oldest documents in status [{}]", status, e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @param limit the maximum number of documents to return
+     * @return the documents of the current wiki whose publication is scheduled and which the current user can view,
+     *     from the first one to be published, with the date they will be published
+     */
+    public Map<DocumentReference, Date> getScheduledPublications(int limit)
+    {
+        try {
+            return this.scheduledPublications.getScheduled(limit, getXContext());
+        } catch (XWikiException e) {
+            logger.warn("Could not get the scheduled publications", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @param from only return the transitions which happened at or after this date, {@code null} for no lower bound
+     * @param to only return the transitions which happened before this date, {@code null} for no upper bound
+     * @param user only return the transitions performed by this user, {@code null} for all
+     * @param document only return the transitions of this document, {@code null} for all
+     * @param limit the maximum number of transitions to return
+     * @return the workflow transitions of the current wiki matching the passed criteria, from the latest one, or an
+     *     empty list if the current user is not an administrator of the current wiki
+     */
+    public List<TransitionLog.Transition> getTransitions(Date from, Date to, String user, String document, int limit)
+    {
+        XWikiContext xcontext = getXContext();
+        WikiReference wiki = new WikiReference(xcontext.getWikiId());
+        if (!authManager.hasAccess(Right.ADMIN, xcontext.getUserReference(), wiki)) {
+            return Collections.emptyList();
+        }
+        try {
+            return this.transitionLog.getTransitions(wiki, from, to,
+                StringUtils.isBlank(user) ? null : referenceResolver.resolve(user),
+                StringUtils.isBlank(document) ? null : referenceResolver.resolve(document), limit);
+        } catch (IOException e) {
+            logger.warn("Could not read the workflow transitions", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @param document a workflow document
+     * @param limit the maximum number of transitions to return
+     * @return the latest workflow transitions of the passed document, or an empty list if the current user cannot
+     *     view it
+     */
+    public List<TransitionLog.Transition> getTransitions(DocumentReference document, int limit)
+    {
+        XWikiContext xcontext = getXContext();
+        if (!authManager.hasAccess(Right.VIEW, xcontext.getUserReference(), document)) {
+            return Collections.emptyList();
+        }
+        try {
+            return this.transitionLog.getTransitions(document.getWikiReference(), null, null, null, document, limit);
+        } catch (IOException e) {
+            logger.warn("Could not read the workflow transitions of [{}]", document, e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @return the invocation counts and times of the publication workflow event listeners, per listener and type of
+     *     event, or an empty list if the current user is not an administrator of the main wiki
+     */
+    public List<ListenerStatistics> getListenerStatistics()
+    {
+        XWikiContext xcontext = getXContext();
+        if (!authManager.hasAccess(Right.ADMIN, xcontext.getUserReference(),
+            new WikiReference(xcontext.getMainXWiki()))) {
+            return Collections.emptyList();
+        }
+        return listenerMetrics.getStatistics();
+    }
+
     /**
      * @return the xwiki context from the execution context
      */
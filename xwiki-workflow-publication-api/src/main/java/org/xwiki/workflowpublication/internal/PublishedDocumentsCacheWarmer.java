@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.DocumentChildPublishingEvent;
+import org.xwiki.workflowpublication.DocumentPublishingEvent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Loads the freshly published documents, in all their translations, in the document cache in the background, so that
+ * the first readers after a publication do not pay for loading them. The documents are recorded when their
+ * publishing event is fired and are handed to a bounded executor once they are actually saved. When the executor is
+ * saturated the extra documents are simply not warmed up. Nothing is done when the bulk documents are loaded through
+ * the document cache, which already holds them then.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowcachewarmer")
+@Singleton
+public class PublishedDocumentsCacheWarmer implements EventListener, Initializable, Disposable
+{
+    /**
+     * Key of the published documents waiting to be saved, in the XWiki context.
+     */
+    private static final String CONTEXTKEY_PENDING = "publicationworkflow:cachewarmup";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void initialize()
+    {
+        int threads = this.configuration.getCacheWarmupThreads();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(this.configuration.getCacheWarmupSize(), 1)),
+            new BasicThreadFactory.Builder().namingPattern("Publication workflow cache warmer %d").daemon(true)
+                .priority(Thread.MIN_PRIORITY).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowcachewarmer";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentPublishingEvent(), new DocumentChildPublishingEvent(),
+            new DocumentCreatedEvent(), new DocumentUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (this.configuration.getCacheWarmupSize() == 0 || !this.configuration.isDocumentCacheBypassed()) {
+            return;
+        }
+
+        XWikiContext xcontext = (XWikiContext) data;
+        XWikiDocument document = (XWikiDocument) source;
+        // Each translation is warmed up once it is saved.
+        DocumentReference reference = document.getDocumentReferenceWithLocale();
+
+        if (event instanceof DocumentPublishingEvent) {
+            getPendingDocuments(xcontext).add(reference);
+        } else if (event instanceof DocumentChildPublishingEvent) {
+            // Drafts are created by copying the published pages too, only warm up the pages of a published subtree.
+            DocumentReference workflowDocument = ((DocumentChildPublishingEvent) event).getWorkflowDocumentReference();
+            if (document.getDocumentReference().hasParent(workflowDocument.getLastSpaceReference())) {
+                getPendingDocuments(xcontext).add(reference);
+            }
+        } else {
+            @SuppressWarnings("unchecked")
+            Set<DocumentReference> pending = (Set<DocumentReference>) xcontext.get(CONTEXTKEY_PENDING);
+            if (pending != null && pending.remove(reference)) {
+                if (pending.isEmpty()) {
+                    xcontext.remove(CONTEXTKEY_PENDING);
+                }
+                warmUp(reference, xcontext.getUserReference());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<DocumentReference> getPendingDocuments(XWikiContext xcontext)
+    {
+        Set<DocumentReference> pending = (Set<DocumentReference>) xcontext.get(CONTEXTKEY_PENDING);
+        if (pending == null) {
+            pending = new HashSet<>();
+            xcontext.put(CONTEXTKEY_PENDING, pending);
+        }
+        return pending;
+    }
+
+    private void warmUp(DocumentReference reference, DocumentReference publisher)
+    {
+        try {
+            this.executor.execute(new CacheWarmupRunnable(reference, publisher));
+        } catch (RejectedExecutionException e) {
+            this.logger.debug("Skipped the cache warm up of [{}], too many pending documents", reference);
+        }
+    }
+
+    /**
+     * Loads a published document translation in a fresh execution context, and optionally renders it.
+     */
+    private final class CacheWarmupRunnable extends AbstractXWikiRunnable
+    {
+        private final DocumentReference reference;
+
+        private final DocumentReference publisher;
+
+        CacheWarmupRunnable(DocumentReference reference, DocumentReference publisher)
+        {
+            this.reference = reference;
+            this.publisher = publisher;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null) {
+                // No request was handled yet so there is no context to copy.
+                return;
+            }
+            xcontext.setWikiId(this.reference.getWikiReference().getName());
+            // Render as the publisher, who was allowed to view the page, so that the result matches what the readers
+            // get rather than an access denied message.
+            xcontext.setUserReference(this.publisher);
+            try {
+                XWikiDocument document = xcontext.getWiki().getDocument(this.reference, xcontext);
+                if (configuration.isCacheWarmupRendering()) {
+                    xcontext.setDoc(document);
+                    xcontext.setLocale(document.getRealLocale());
+                    document.getRenderedContent(xcontext);
+                }
+            } catch (XWikiException e) {
+                logger.warn("Failed to warm up the document cache with [{}]", this.reference, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.annotation.InstantiationStrategy;
+import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.DefaultRequest;
+import org.xwiki.localization.ContextualLocalizationManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Fixes the published pages which link to the drafts of a workflow published for the first time: when these pages
+ * were published the linked drafts were not part of a workflow yet, so their links could not be rewritten to the
+ * published pages. The pages to fix are found using the links table of the wiki, which is the reverse index of the
+ * links, so that only the affected pages get updated.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named(PublishedLinksPatchJob.JOBTYPE)
+@InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
+public class PublishedLinksPatchJob extends AbstractJob<DefaultRequest, DefaultJobStatus<DefaultRequest>>
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "publicationworkflow.patchlinks";
+
+    /**
+     * Request property holding the reference of the published draft workflow document.
+     */
+    public static final String PROPERTY_DRAFT = "draft";
+
+    /**
+     * Request property holding whether the descendants of the draft were published as well.
+     */
+    public static final String PROPERTY_INCLUDE_CHILDREN = "includeChildren";
+
+    /**
+     * Request property holding the reference of the user who published the draft.
+     */
+    public static final String PROPERTY_USER = "user";
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PublicationWorkflow publicationWorkflow;
+
+    @Inject
+    private PublishedReferencesTransformer transformer;
+
+    @Inject
+    private DocumentDescendantsEnumerator descendantsEnumerator;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    @Named("compactwiki")
+    private EntityReferenceSerializer<String> stringSerializer;
+
+    @Inject
+    private ContextualLocalizationManager localizationManager;
+
+    /**
+     * @param draft a reference to the draft workflow document which was published for the first time
+     * @param includeChildren whether the descendants of the draft were published as well
+     * @param user a reference to the user who published the draft
+     * @param serializer used to build the job identifier
+     * @return the request of a job fixing the published links to the passed draft
+     */
+    public static DefaultRequest createRequest(DocumentReference draft, boolean includeChildren,
+        DocumentReference user, EntityReferenceSerializer<String> serializer)
+    {
+        DefaultRequest request = new DefaultRequest();
+        request.setId(Arrays.asList("publicationworkflow", "patchlinks", serializer.serialize(draft)));
+        request.setProperty(PROPERTY_DRAFT, draft);
+        request.setProperty(PROPERTY_INCLUDE_CHILDREN, includeChildren);
+        request.setProperty(PROPERTY_USER, user);
+        request.setInteractive(false);
+        return request;
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        DocumentReference draft = this.request.getProperty(PROPERTY_DRAFT);
+        boolean includeChildren = this.request.getProperty(PROPERTY_INCLUDE_CHILDREN, false);
+
+        XWikiContext xcontext = this.xcontextProvider.get();
+        xcontext.setWikiId(draft.getWikiReference().getName());
+        xcontext.setUserReference(this.request.getProperty(PROPERTY_USER));
+
+        // Collect the pages linking to the published drafts.
+        Set<DocumentReference> linkingDocuments = new LinkedHashSet<>(getBacklinks(draft, xcontext));
+        if (includeChildren) {
+            this.descendantsEnumerator.visitDescendants(draft, this.configuration.getPublishBatchSize(),
+                descendant -> linkingDocuments.addAll(getBacklinks(descendant, xcontext)));
+        }
+
+        String comment = getComment(draft);
+        this.progressManager.pushLevelProgress(linkingDocuments.size(), this);
+        try {
+            for (DocumentReference linkingDocument : linkingDocuments) {
+                this.progressManager.startStep(this);
+                try {
+                    patch(linkingDocument, comment, xcontext);
+                } catch (XWikiException e) {
+                    this.logger.error("Failed to update the links of [{}]", linkingDocument, e);
+                }
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            this.progressManager.popLevelProgress(this);
+        }
+    }
+
+    private List<DocumentReference> getBacklinks(DocumentReference reference, XWikiContext xcontext)
+        throws XWikiException
+    {
+        return xcontext.getWiki().getStore().loadBacklinks(reference, true, xcontext);
+    }
+
+    private String getComment(DocumentReference draft)
+    {
+        String draftName = this.stringSerializer.serialize(draft);
+        String key = "workflow.save.patchLinks";
+        String comment = this.localizationManager.getTranslationPlain(key, draftName);
+        if (comment == null || comment.equals(key)) {
+            comment = "Update the links to the newly published pages of " + draftName + ".";
+        }
+        return comment;
+    }
+
+    private void patch(DocumentReference reference, String comment, XWikiContext xcontext) throws XWikiException
+    {
+        // Only the published pages need to be fixed, the links of the drafts are right.
+        DocumentReference workflowDocumentReference = this.publicationWorkflow.getWorkflowDocument(reference);
+        if (workflowDocumentReference == null) {
+            return;
+        }
+        XWikiDocument workflowDocument = xcontext.getWiki().getDocument(workflowDocumentReference, xcontext);
+        BaseObject workflow = workflowDocument.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        if (workflow == null || workflow.getIntValue(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME)
+            != DefaultPublicationWorkflow.PUBLISHED) {
+            return;
+        }
+        // The links of a published page are resolved relative to its draft, like when it was published.
+        DocumentReference draftDocumentReference =
+            this.publicationWorkflow.getDraftDocument(workflowDocumentReference, xcontext);
+        if (draftDocumentReference == null) {
+            draftDocumentReference = workflowDocumentReference;
+        }
+
+        XWikiDocument document = xcontext.getWiki().getDocument(reference, xcontext);
+        patch(document, draftDocumentReference, comment, xcontext);
+        for (Locale locale : document.getTranslationLocales(xcontext)) {
+            patch(xcontext.getWiki().getDocument(new DocumentReference(reference, locale), xcontext),
+                draftDocumentReference, comment, xcontext);
+        }
+    }
+
+    private void patch(XWikiDocument document, DocumentReference draftDocumentReference, String comment,
+        XWikiContext xcontext) throws XWikiException
+    {
+        XWikiDocument patchedDocument = document.clone();
+        boolean changed = false;
+        String content = this.transformer.transform(document.getContent(), document.getSyntax(),
+            draftDocumentReference, patchedDocument.getDocumentReference(), xcontext);
+        if (content != null) {
+            patchedDocument.setContent(content);
+            changed = true;
+        }
+        // The objects are held by the default locale only.
+        changed |= this.transformer.transformObjects(patchedDocument, draftDocumentReference, xcontext);
+        if (changed) {
+            patchedDocument.setAuthorReference(xcontext.getUserReference());
+            xcontext.getWiki().saveDocument(patchedDocument, comment, true, xcontext);
+            this.logger.info("Updated the links of [{}]",
+                this.stringSerializer.serialize(patchedDocument.getDocumentReferenceWithLocale()));
+        }
+    }
+}
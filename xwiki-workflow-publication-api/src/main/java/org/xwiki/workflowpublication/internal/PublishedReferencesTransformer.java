@@ -0,0 +1,476 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.AttachmentReference;
+import org.xwiki.model.reference.AttachmentReferenceResolver;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.ImageBlock;
+import org.xwiki.rendering.block.LinkBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.block.match.ClassBlockMatcher;
+import org.xwiki.rendering.listener.reference.ResourceReference;
+import org.xwiki.rendering.listener.reference.ResourceType;
+import org.xwiki.rendering.parser.ParseException;
+import org.xwiki.rendering.renderer.BlockRenderer;
+import org.xwiki.rendering.renderer.printer.DefaultWikiPrinter;
+import org.xwiki.rendering.renderer.printer.WikiPrinter;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.classes.TextAreaClass;
+
+/**
+ * Rewrites the references found in the content, and in the configured object properties, of a published document
+ * which point to draft documents, so that they point to the published version of these documents. Shared by the
+ * listener transforming the documents when they get published and by the index precomputing the rewrites when the
+ * drafts are saved.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = PublishedReferencesTransformer.class)
+@Singleton
+public class PublishedReferencesTransformer
+{
+    /**
+     * Markers of the links and images in the XWiki syntaxes.
+     */
+    private static final String LINK_START = "[[";
+
+    private static final String IMAGE_PREFIX = "image:";
+
+    /**
+     * Content type of the text areas holding wiki syntax.
+     */
+    private static final String FULLY_RENDERED_TEXT = "FullyRenderedText";
+
+    /**
+     * The logger to log.
+     */
+    @Inject
+    private Logger logger;
+
+    /**
+     * explicit resolvers to get referenced documents and the workflow class
+     */
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<EntityReference> explicitReferenceDocRefResolver;
+
+    /**
+     * explicit resolver to get referenced attachments
+     */
+    @Inject
+    @Named("explicit")
+    private AttachmentReferenceResolver<String> explicitStringAttachmentRefResolver;
+
+    /**
+     * Reference string serializer.
+     */
+    @Inject
+    @Named("compactwiki")
+    private EntityReferenceSerializer<String> stringSerializer;
+
+    @Inject
+    private PublicationWorkflow publicationWorkflow;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @Inject
+    private ParsedContentCache parsedContentCache;
+
+    /**
+     * Cheap check on the raw content, to avoid parsing contents which cannot hold any link or image. Only the XWiki
+     * syntaxes are known well enough to rule out references, the contents in other syntaxes are always parsed.
+     *
+     * @param content a raw content
+     * @param syntax the syntax of the content
+     * @return false if the content is known to hold no link or image, true otherwise
+     */
+    public boolean mayContainReferences(String content, Syntax syntax)
+    {
+        if (!Syntax.XWIKI_2_0.equals(syntax) && !Syntax.XWIKI_2_1.equals(syntax)) {
+            return true;
+        }
+        return content.contains(LINK_START) || content.contains(IMAGE_PREFIX);
+    }
+
+    /**
+     * Rewrites, in place, the links and images of the passed XDOM which point to draft documents.
+     *
+     * @param xDom the parsed content to transform
+     * @param draftDocumentRef a reference to the draft document containing the references, relative to which they are
+     *     resolved
+     * @param publishedDocumentReference a reference to the published document which will hold the content, relative
+     *     to which the rewritten references are serialized
+     * @param context the current execution context
+     * @return true if at least one reference was rewritten, false otherwise
+     * @throws XWikiException in case a reference target cannot be checked
+     */
+    public boolean transform(XDOM xDom, DocumentReference draftDocumentRef,
+        DocumentReference publishedDocumentReference, XWikiContext context) throws XWikiException
+    {
+        boolean changed = false;
+        for (Block link : xDom.getBlocks(new ClassBlockMatcher(LinkBlock.class), Block.Axes.DESCENDANT_OR_SELF)) {
+            LinkBlock linkBlock = (LinkBlock) link;
+
+            ResourceReference linkTarget = linkBlock.getReference();
+
+            ResourceType type = linkTarget.getType();
+            if (ResourceType.DOCUMENT.equals(type)) {
+                changed |= transformDocumentReference(linkTarget, draftDocumentRef, publishedDocumentReference,
+                    context);
+            } else if (ResourceType.ATTACHMENT.equals(type)) {
+                changed |= transformAttachmentReference(linkTarget, draftDocumentRef, publishedDocumentReference,
+                    context);
+            }
+
+        }
+
+        for (Block image : xDom.getBlocks(new ClassBlockMatcher(ImageBlock.class), Block.Axes.DESCENDANT_OR_SELF)) {
+            ImageBlock imageBlock = (ImageBlock) image;
+
+            if (imageBlock.isFreeStandingURI() || imageBlock.getReference().getType().equals(ResourceType.URL)) {
+                continue;
+            }
+            /**
+             * imageBlock.isFreeStandingURI results with the following cases :
+             * - image:myImage.ext -> true
+             * - [[image:myImage.ext]] -> false
+             * The test bellow is to handle this second case that should not trigger any reference update.
+             * It's based on the logic that a specified reference ( [[image:PublishedDocument@myImage.ext]] ) contains '@'
+            */
+            else if (imageBlock.getReference().getType().equals(ResourceType.ATTACHMENT) && !imageBlock.getReference().getReference().contains("@") ) {
+                continue;
+            }
+
+
+            ResourceReference imageRef = imageBlock.getReference();
+            logger.debug("found image reference {}", imageRef);
+            changed |= transformAttachmentReference(imageRef, draftDocumentRef, publishedDocumentReference, context);
+        }
+        return changed;
+    }
+
+    /**
+     * Rewrites the references of a raw content which point to draft documents. The content is not parsed at all when
+     * it cannot hold any link or image, and is parsed only once for all the documents, locales and publications
+     * sharing it, thanks to the {@link ParsedContentCache}.
+     *
+     * @param content the raw content to transform
+     * @param syntax the syntax of the content
+     * @param draftDocumentRef a reference to the draft document containing the references, relative to which they are
+     *     resolved
+     * @param publishedDocumentReference a reference to the published document which will hold the content, relative
+     *     to which the rewritten references are serialized
+     * @param context the current execution context
+     * @return the rewritten content, or null if no reference was rewritten
+     * @throws XWikiException in case the content cannot be parsed or a reference target cannot be checked
+     */
+    public String transform(String content, Syntax syntax, DocumentReference draftDocumentRef,
+        DocumentReference publishedDocumentReference, XWikiContext context) throws XWikiException
+    {
+        try {
+            return transformContent(content, syntax, draftDocumentRef, publishedDocumentReference, context);
+        } catch (ComponentLookupException | ParseException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_RENDERING, XWikiException.ERROR_XWIKI_UNKNOWN,
+                String.format("Failed to parse the content in syntax [%s] published to [%s]", syntax,
+                    publishedDocumentReference), e);
+        }
+    }
+
+    /**
+     * Rewrites the references of the wiki syntax text area properties of the objects of the published document, for
+     * the classes configured with {@link PublicationWorkflowConfiguration#getReferencesTransformObjectClasses()}.
+     *
+     * @param publishedDocument the published document, whose objects are modified by the method
+     * @param draftDocumentRef a reference to the draft document containing the references, relative to which they are
+     *     resolved
+     * @param context the current execution context
+     * @return true if at least one property was modified, false otherwise
+     * @throws XWikiException in case a reference target cannot be checked
+     */
+    public boolean transformObjects(XWikiDocument publishedDocument, DocumentReference draftDocumentRef,
+        XWikiContext context) throws XWikiException
+    {
+        boolean changed = false;
+        DocumentReference publishedDocumentReference = publishedDocument.getDocumentReference();
+        for (String className : configuration.getReferencesTransformObjectClasses()) {
+            DocumentReference classReference = explicitStringDocRefResolver.resolve(className,
+                publishedDocumentReference);
+            List<BaseObject> objects = publishedDocument.getXObjects(classReference);
+            if (objects.isEmpty()) {
+                continue;
+            }
+            List<String> properties = getWikiTextAreaProperties(objects, context);
+            for (BaseObject object : objects) {
+                if (object == null) {
+                    continue;
+                }
+                for (String property : properties) {
+                    String content;
+                    try {
+                        content = transformContent(object.getLargeStringValue(property),
+                            publishedDocument.getSyntax(), draftDocumentRef, publishedDocumentReference, context);
+                    } catch (ComponentLookupException | ParseException e) {
+                        logger.warn("Failed to transform the references of the property [{}] of [{}]", property,
+                            object.getReference(), e);
+                        continue;
+                    }
+                    if (content != null) {
+                        object.setLargeStringValue(property, content);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Serializes a parsed content.
+     *
+     * @param xDom the parsed content
+     * @param syntax the syntax to serialize the content to
+     * @return the serialized content
+     * @throws ComponentLookupException in case there is no renderer for the passed syntax
+     */
+    public String render(XDOM xDom, Syntax syntax) throws ComponentLookupException
+    {
+        BlockRenderer renderer = componentManagerProvider.get().getInstance(BlockRenderer.class, syntax.toIdString());
+        WikiPrinter printer = new DefaultWikiPrinter();
+        renderer.render(xDom, printer);
+        return printer.toString();
+    }
+
+    /**
+     * Checks if a given reference is a draft document in a workflow (either main workflow document or a descendant),
+     * and if so, returns a reference to its target document, null otherwise. During a publish operation each document
+     * is looked up only once.
+     *
+     * @param reference a {@link DocumentReference}
+     * @param context the current execution context
+     * @return a reference to the target document if the passed reference is in a workflow, null otherwise
+     * @throws XWikiException in case the workflow document cannot be loaded
+     */
+    public DocumentReference getTargetInWorkflow(DocumentReference reference, XWikiContext context)
+        throws XWikiException
+    {
+        PublishingContext publishingContext = PublishingContext.get(context);
+        if (publishingContext != null) {
+            return publishingContext.getLinkTarget(reference,
+                linkedReference -> computeTargetInWorkflow(linkedReference, publishingContext, context));
+        }
+        return computeTargetInWorkflow(reference, null, context);
+    }
+
+    //
+    // hide the nasty details in some helper methods
+    //
+
+    private String transformContent(String content, Syntax syntax, DocumentReference draftDocumentRef,
+        DocumentReference publishedDocumentReference, XWikiContext context)
+        throws XWikiException, ComponentLookupException, ParseException
+    {
+        if (StringUtils.isEmpty(content) || !mayContainReferences(content, syntax)) {
+            return null;
+        }
+        XDOM xDom = parsedContentCache.getReferencesXDOM(content, syntax);
+        if (xDom != null && transform(xDom, draftDocumentRef, publishedDocumentReference, context)) {
+            return render(xDom, syntax);
+        }
+        return null;
+    }
+
+    private List<String> getWikiTextAreaProperties(List<BaseObject> objects, XWikiContext context)
+    {
+        List<String> properties = new ArrayList<>();
+        for (BaseObject object : objects) {
+            if (object != null) {
+                for (Object field : object.getXClass(context).getFieldList()) {
+                    if (field instanceof TextAreaClass && isWikiContent((TextAreaClass) field)) {
+                        properties.add(((TextAreaClass) field).getName());
+                    }
+                }
+                break;
+            }
+        }
+        return properties;
+    }
+
+    private boolean isWikiContent(TextAreaClass textArea)
+    {
+        String contentType = textArea.getContentType();
+        return StringUtils.isEmpty(contentType) || FULLY_RENDERED_TEXT.equalsIgnoreCase(contentType);
+    }
+
+    /**
+     * small helper to get the workflow object attached to this document.
+     *
+     * @return the workflow object, or null if no workflow object attached to this class
+     */
+    private BaseObject getWorkflowObject(final XWikiDocument document)
+    {
+        return document.getXObject(explicitReferenceDocRefResolver
+            .resolve(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS, document.getDocumentReference()));
+    }
+
+    private DocumentReference computeTargetInWorkflow(DocumentReference reference,
+        PublishingContext publishingContext, XWikiContext context) throws XWikiException
+    {
+        // The documents of the subtree being published are mapped to their target without any lookup.
+        if (publishingContext != null) {
+            DocumentReference subtreeTarget = publishingContext.getSubtreeTarget(reference);
+            if (subtreeTarget != null) {
+                return subtreeTarget;
+            }
+        }
+
+        // Compute the parent workflow the given reference belongs to, if any
+        DocumentReference linkedWorkflowDocumentRefence = publicationWorkflow.getWorkflowDocument(reference);
+        if (linkedWorkflowDocumentRefence == null) {
+            return null;
+        }
+        XWikiDocument linkedWorkflowDocument = context.getWiki().getDocument(linkedWorkflowDocumentRefence, context);
+
+        BaseObject workFlow = getWorkflowObject(linkedWorkflowDocument);
+        if (workFlow == null) {
+            logger.debug("target is not in a workflow: {}", linkedWorkflowDocument);
+            return null;
+        }
+        if (workFlow
+            .getIntValue(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME) != DefaultPublicationWorkflow.DRAFT) {
+            logger.debug("target is no draft: {}", linkedWorkflowDocument);
+            return null;
+        }
+        String targetDocRef = workFlow.getStringValue(DefaultPublicationWorkflow.WF_TARGET_FIELDNAME);
+        DocumentReference targetDocReference = explicitStringDocRefResolver.resolve(targetDocRef, reference);
+        // If the linked reference is not a workflow document but a child of a workflow document, compute the child
+        // target.
+        if (!linkedWorkflowDocument.getDocumentReference().equals(reference)) {
+            return publicationWorkflow.getChildTarget(reference, linkedWorkflowDocumentRefence, targetDocReference);
+        }
+        return targetDocReference;
+    }
+
+    /**
+     * transform the given linkTarget to point to the published version of its target.
+     *
+     * @param linkTarget
+     *            the target of the link; its reference will be modified by the method
+     * @param draftDocumentRef
+     *            a reference to the draft document containing the reference
+     * @param publishedDocumentReference
+     *            a reference to the published version of the document containing the reference
+     * @param context
+     *            the current execution context
+     * @return true if the reference was modified, false otherwise
+     * @throws XWikiException
+     */
+    private boolean transformDocumentReference(final ResourceReference linkTarget,
+        final DocumentReference draftDocumentRef, final DocumentReference publishedDocumentReference,
+        final XWikiContext context) throws XWikiException
+    {
+        DocumentReference currentLinkReference = explicitStringDocRefResolver.resolve(linkTarget.getReference(),
+            draftDocumentRef);
+
+        // if we point to a draft object: look up the target:
+        DocumentReference targetDocReference = getTargetInWorkflow(currentLinkReference, context);
+        if (targetDocReference == null) {
+            return false;
+        }
+
+        String targetDocRef = stringSerializer.serialize(targetDocReference, publishedDocumentReference);
+        logger.debug("transform link {} in doc {} to {}", linkTarget.getReference(), publishedDocumentReference,
+            targetDocRef);
+        linkTarget.setReference(targetDocRef);
+        return true;
+    }
+
+    /**
+     * transform the given attTarget pointing to an attachment to point to the published version of its target.
+     *
+     * @param attTarget
+     *            the target of the link; its reference will be modified by the method
+     * @param draftDocumentRef
+     *            a reference to the draft document containing the reference
+     * @param publishedDocumentReference
+     *            a reference to the published version of the document containing the reference
+     * @param context
+     *            the current execution context
+     * @return true if the reference was modified, false otherwise
+     * @throws XWikiException
+     */
+    private boolean transformAttachmentReference(final ResourceReference attTarget,
+        final DocumentReference draftDocumentRef, final DocumentReference publishedDocumentReference,
+        final XWikiContext context) throws XWikiException
+    {
+        AttachmentReference currentAttachmentLinkReference = explicitStringAttachmentRefResolver
+            .resolve(attTarget.getReference(), draftDocumentRef);
+
+        // we point to a draft object: look up the target:
+        DocumentReference targetDocumentReference =
+            getTargetInWorkflow(currentAttachmentLinkReference.getDocumentReference(), context);
+        if (targetDocumentReference == null) {
+            return false;
+        }
+
+        AttachmentReference targetAttachmentReference = new AttachmentReference(
+            currentAttachmentLinkReference.getName(), targetDocumentReference);
+
+        String targetAttachmentRef = stringSerializer.serialize(targetAttachmentReference,
+            publishedDocumentReference);
+        logger.debug("transform att link {} in doc {} to {}", attTarget.getReference(), publishedDocumentReference,
+            targetAttachmentRef);
+        attTarget.setReference(targetAttachmentRef);
+        return true;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * State shared by all the documents saved during a single publish operation, so that what is the same for all of them
+ * is only computed once. It is stored in the XWiki context for the duration of the operation.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+public class PublishingContext
+{
+    /**
+     * Key of the publishing context in the XWiki context.
+     */
+    public static final String CONTEXTKEY = "publicationworkflow:publishingContext";
+
+    private final DocumentReference draft;
+
+    private final DocumentReference target;
+
+    private final boolean includeChildren;
+
+    private final Map<DocumentReference, Optional<DocumentReference>> drafts = new HashMap<>();
+
+    private final Map<DocumentReference, Optional<DocumentReference>> linkTargets = new HashMap<>();
+
+    private int linkTargetHits;
+
+    private int publishedChildren;
+
+    /**
+     * @param draft a reference to the draft workflow document being published
+     * @param target a reference to the target the draft is published to
+     * @param includeChildren whether the descendants of the draft, which is then a space home page, are published as
+     *     well
+     */
+    public PublishingContext(DocumentReference draft, DocumentReference target, boolean includeChildren)
+    {
+        this.draft = draft;
+        this.target = target;
+        this.includeChildren = includeChildren;
+        this.drafts.put(target, Optional.of(draft));
+    }
+
+    /**
+     * @param xcontext the current context
+     * @return the context of the publish operation in progress, or {@code null} if there is none
+     */
+    public static PublishingContext get(XWikiContext xcontext)
+    {
+        return (PublishingContext) xcontext.get(CONTEXTKEY);
+    }
+
+    /**
+     * @param target a reference to a published workflow document
+     * @param resolver computes the draft of the target when it was not resolved yet during this operation
+     * @return the draft of the passed target, or {@code null} if it has none
+     */
+    public DocumentReference getDraftDocument(DocumentReference target,
+        Function<DocumentReference, DocumentReference> resolver)
+    {
+        return this.drafts.computeIfAbsent(target, key -> Optional.ofNullable(resolver.apply(key))).orElse(null);
+    }
+
+    /**
+     * Maps a document from the draft subtree being published to its published counterpart, without any lookup.
+     *
+     * @param reference a reference to a document
+     * @return the target of the passed document if it is the published draft or, when the children are published as
+     *     well, one of its descendants, {@code null} otherwise
+     */
+    public DocumentReference getSubtreeTarget(DocumentReference reference)
+    {
+        if (this.draft.equals(reference)) {
+            return this.target;
+        } else if (this.includeChildren && reference.hasParent(this.draft.getLastSpaceReference())) {
+            return reference.replaceParent(this.draft.getParent(), this.target.getParent());
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the published counterpart of a document referenced from a published document, computing it only the
+     * first time the document is met during this operation.
+     *
+     * @param reference a reference to a linked document
+     * @param resolver computes the published counterpart of a linked document, {@code null} if it is not a draft
+     * @return the published counterpart of the passed document, or {@code null} if it is not a draft
+     * @throws XWikiException in case the published counterpart cannot be computed
+     */
+    public DocumentReference getLinkTarget(DocumentReference reference, LinkTargetResolver resolver)
+        throws XWikiException
+    {
+        Optional<DocumentReference> linkTarget = this.linkTargets.get(reference);
+        if (linkTarget != null) {
+            this.linkTargetHits++;
+        } else {
+            linkTarget = Optional.ofNullable(resolver.resolve(reference));
+            this.linkTargets.put(reference, linkTarget);
+        }
+        return linkTarget.orElse(null);
+    }
+
+    /**
+     * @return the number of linked documents whose published counterpart was found in the memo
+     */
+    public int getLinkTargetHits()
+    {
+        return this.linkTargetHits;
+    }
+
+    /**
+     * @return the number of distinct linked documents whose published counterpart was computed
+     */
+    public int getLinkTargetMisses()
+    {
+        return this.linkTargets.size();
+    }
+
+    /**
+     * Counts a descendant of the draft which was published with it.
+     */
+    public void childPublished()
+    {
+        this.publishedChildren++;
+    }
+
+    /**
+     * @return the number of descendants of the draft which were published with it
+     */
+    public int getPublishedChildren()
+    {
+        return this.publishedChildren;
+    }
+
+    /**
+     * Computes the published counterpart of a linked document.
+     */
+    @FunctionalInterface
+    public interface LinkTargetResolver
+    {
+        /**
+         * @param reference a reference to a linked document
+         * @return the published counterpart of the passed document, or {@code null} if it is not a draft
+         * @throws XWikiException in case the published counterpart cannot be computed
+         */
+        DocumentReference resolve(DocumentReference reference) throws XWikiException;
+    }
+}
@@ -29,21 +29,9 @@ import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.model.reference.AttachmentReference;
-import org.xwiki.model.reference.AttachmentReferenceResolver;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
-import org.xwiki.model.reference.EntityReference;
-import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.Event;
-import org.xwiki.rendering.block.Block;
-import org.xwiki.rendering.block.ImageBlock;
-import org.xwiki.rendering.block.LinkBlock;
-import org.xwiki.rendering.block.XDOM;
-import org.xwiki.rendering.block.match.ClassBlockMatcher;
-import org.xwiki.rendering.listener.reference.ResourceReference;
-import org.xwiki.rendering.listener.reference.ResourceType;
 import org.xwiki.workflowpublication.DocumentChildPublishingEvent;
 import org.xwiki.workflowpublication.DocumentPublishingEvent;
 import org.xwiki.workflowpublication.PublicationWorkflow;
@@ -51,7 +39,6 @@ import org.xwiki.workflowpublication.PublicationWorkflow;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
 
 /**
  * Event listener to update references in a published document to the published variant. This class listens to document
@@ -71,33 +58,17 @@ public class ReferencesTransformDocPublishingEventListener implements EventListe
     @Inject
     private Logger logger;
 
-    /**
-     * explicit resolvers to get referenced documents and the workflow class
-     */
-    @Inject
-    @Named("explicit")
-    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
-
     @Inject
-    @Named("explicit")
-    private DocumentReferenceResolver<EntityReference> explicitReferenceDocRefResolver;
+    private PublishedReferencesTransformer transformer;
 
-    /**
-     * explicit resolver to get referenced attachments
-     */
     @Inject
-    @Named("explicit")
-    private AttachmentReferenceResolver<String> explicitStringAttachmentRefResolver;
+    private DraftReferencesIndex draftReferencesIndex;
 
-    /**
-     * Reference string serializer.
-     */
     @Inject
-    @Named("compactwiki")
-    private EntityReferenceSerializer<String> stringSerializer;
+    private PublicationWorkflow publicationWorkflow;
 
     @Inject
-    private PublicationWorkflow publicationWorkflow;
+    private ListenerMetrics metrics;
 
     /**
      * The events observed by this observation manager.
@@ -139,192 +110,65 @@ public class ReferencesTransformDocPublishingEventListener implements EventListe
 
         final XWikiContext context = (XWikiContext) data;
 
-        try {
-            DocumentReference workflowDocumentReference = publishedDocument.getDocumentReference();
-            if (event instanceof DocumentChildPublishingEvent) {
-                workflowDocumentReference = ((DocumentChildPublishingEvent) event).getWorkflowDocumentReference();
+        try (ListenerMetrics.Timer timer = metrics.start(getName(), event)) {
+            try {
+                DocumentReference workflowDocumentReference = publishedDocument.getDocumentReference();
+                if (event instanceof DocumentChildPublishingEvent) {
+                    workflowDocumentReference = ((DocumentChildPublishingEvent) event).getWorkflowDocumentReference();
+                }
+                if (!transformReferences(publishedDocument, workflowDocumentReference, context)) {
+                    timer.earlyExit();
+                }
+            } catch (XWikiException e) {
+                timer.error();
+                logger.error("failed to transform references on published document {}", publishedDocument, e);
             }
-            transformReferences(publishedDocument, workflowDocumentReference, context);
-        } catch (XWikiException e) {
-            logger.error("failed to transform references on published document {}", publishedDocument, e);
         }
 
     }
 
-    private void transformReferences(final XWikiDocument publishedDocument,
+    private boolean transformReferences(final XWikiDocument publishedDocument,
         DocumentReference workflowDocumentReference, final XWikiContext context) throws XWikiException
     {
-        DocumentReference draftDocumentRef = publicationWorkflow.getDraftDocument(workflowDocumentReference, context);
-        if (draftDocumentRef == null) {
-            return;
-        }
-
-        XDOM xDom = publishedDocument.getXDOM();
-        for (Block link : xDom.getBlocks(new ClassBlockMatcher(LinkBlock.class), Block.Axes.DESCENDANT_OR_SELF)) {
-            LinkBlock linkBlock = (LinkBlock) link;
-
-            ResourceReference linkTarget = linkBlock.getReference();
-
-            ResourceType type = linkTarget.getType();
-            if (ResourceType.DOCUMENT.equals(type)) {
-                transformDocumentReference(linkTarget, draftDocumentRef, publishedDocument, context);
-            } else if (ResourceType.ATTACHMENT.equals(type)) {
-                transformAttachmentReference(linkTarget, draftDocumentRef, publishedDocument, context);
-            }
-
+        // During a publish operation, the draft is resolved only once for all the published documents.
+        PublishingContext publishingContext = PublishingContext.get(context);
+        DocumentReference draftDocumentRef;
+        if (publishingContext != null) {
+            draftDocumentRef = publishingContext.getDraftDocument(workflowDocumentReference,
+                target -> publicationWorkflow.getDraftDocument(target, context));
+        } else {
+            draftDocumentRef = publicationWorkflow.getDraftDocument(workflowDocumentReference, context);
         }
-
-        for (Block image : xDom.getBlocks(new ClassBlockMatcher(ImageBlock.class), Block.Axes.DESCENDANT_OR_SELF)) {
-            ImageBlock imageBlock = (ImageBlock) image;
-
-            if (imageBlock.isFreeStandingURI() || imageBlock.getReference().getType().equals(ResourceType.URL)) {
-                continue;
-            }
-            /**
-             * imageBlock.isFreeStandingURI results with the following cases :
-             * - image:myImage.ext -> true
-             * - [[image:myImage.ext]] -> false
-             * The test bellow is to handle this second case that should not trigger any reference update.
-             * It's based on the logic that a specified reference ( [[image:PublishedDocument@myImage.ext]] ) contains '@'
-            */
-            else if (imageBlock.getReference().getType().equals(ResourceType.ATTACHMENT) && !imageBlock.getReference().getReference().contains("@") ) {
-                continue;
-            }
-
-
-            ResourceReference imageRef = imageBlock.getReference();
-            logger.debug("found image reference {}", imageRef);
-            transformAttachmentReference(imageRef, draftDocumentRef, publishedDocument, context);
+        if (draftDocumentRef == null) {
+            return false;
         }
 
-        publishedDocument.setContent(xDom);
+        transformContent(publishedDocument, draftDocumentRef, context);
+        transformer.transformObjects(publishedDocument, draftDocumentRef, context);
         logger.debug("done with {}", publishedDocument);
+        return true;
 
     }
 
-    //
-    // hide the nasty details in some helper methods
-    //
-
-    /**
-     * small helper to get the workflow object attached to this document.
-     *
-     * @return the workflow object, or null if no workflow object attached to this class
-     */
-    private BaseObject getWorkflowObject(final XWikiDocument document)
-    {
-        return document.getXObject(explicitReferenceDocRefResolver
-            .resolve(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS, document.getDocumentReference()));
-    }
-
-    /**
-     * Checks if a given reference is a draft document in a workflow (either main workflow document or a descendant),
-     * and if so, returns a serialized reference to its target document, null otherwise.
-     *
-     * @param reference a {@link DocumentReference}
-     * @return a reference to the target document if the passed reference is in a workflow, null otherwise
-     */
-    private String getTargetDocRefInWorkflow(DocumentReference reference,
-        DocumentReference publishedDocumentReference, XWikiContext context) throws XWikiException
+    private void transformContent(final XWikiDocument publishedDocument, DocumentReference draftDocumentRef,
+        final XWikiContext context) throws XWikiException
     {
-        // Compute the parent workflow the given reference belongs to, if any
-        DocumentReference linkedWorkflowDocumentRefence = publicationWorkflow.getWorkflowDocument(reference);
-        if (linkedWorkflowDocumentRefence == null) {
-            return null;
-        }
-        XWikiDocument linkedWorkflowDocument = context.getWiki().getDocument(linkedWorkflowDocumentRefence, context);
-
-        BaseObject workFlow = getWorkflowObject(linkedWorkflowDocument);
-        if (workFlow == null) {
-            logger.debug("target is not in a workflow: {}", linkedWorkflowDocument);
-            return null;
-        }
-        if (workFlow
-            .getIntValue(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME) != DefaultPublicationWorkflow.DRAFT) {
-            logger.debug("target is no draft: {}", linkedWorkflowDocument);
-            return null;
-        }
-        String targetDocRef = workFlow.getStringValue(DefaultPublicationWorkflow.WF_TARGET_FIELDNAME);
-        DocumentReference targetDocReference = explicitStringDocRefResolver.resolve(targetDocRef, reference);
-        // If the linked reference is not a workflow document but a child of a workflow document, compute the child
-        // target.
-        if (!linkedWorkflowDocument.getDocumentReference().equals(reference)) {
-            DocumentReference childTarget = publicationWorkflow.getChildTarget(reference,
-                linkedWorkflowDocumentRefence, targetDocReference);
-            targetDocRef = stringSerializer.serialize(childTarget, publishedDocumentReference);
-        } else {
-            targetDocRef = stringSerializer.serialize(targetDocReference, publishedDocumentReference);
-        }
-        return targetDocRef;
-    }
-
-    /**
-     * transform the given linkTarget to point to the published version of its target.
-     *
-     * @param linkTarget
-     *            the target of the link; its reference will be modified by the method
-     * @param draftDocumentRef
-     *            a reference to the draft document containing the reference
-     * @param publishedDocument
-     *            the published version of the document containing the reference
-     * @param context
-     *            the current execution context
-     * @throws XWikiException
-     */
-    private void transformDocumentReference(final ResourceReference linkTarget,
-        final DocumentReference draftDocumentRef, final XWikiDocument publishedDocument, final XWikiContext context)
-        throws XWikiException
-    {
-        DocumentReference currentLinkReference = explicitStringDocRefResolver.resolve(linkTarget.getReference(),
-            draftDocumentRef);
-
-        // if we point to a draft object: look up the target:
-        String targetDocRef = getTargetDocRefInWorkflow(currentLinkReference,
-            publishedDocument.getDocumentReference(), context);
-        if (targetDocRef == null) {
+        if (!transformer.mayContainReferences(publishedDocument.getContent(), publishedDocument.getSyntax())) {
+            logger.debug("no references in {}", publishedDocument);
             return;
         }
 
-        logger.debug("transform link {} in doc {} to {}", linkTarget.getReference(), publishedDocument, targetDocRef);
-        linkTarget.setReference(targetDocRef);
-    }
-
-    /**
-     * transform the given attTarget pointing to an attachment to point to the published version of its target.
-     *
-     * @param attTarget
-     *            the target of the link; its reference will be modified by the method
-     * @param draftDocumentRef
-     *            a reference to the draft document containing the reference
-     * @param publishedDocument
-     *            the published version of the document containing the reference
-     * @param context
-     *            the current execution context
-     * @throws XWikiException
-     */
-    private void transformAttachmentReference(final ResourceReference attTarget,
-        final DocumentReference draftDocumentRef, final XWikiDocument publishedDocument, final XWikiContext context)
-        throws XWikiException
-    {
-        AttachmentReference currentAttachmentLinkReference = explicitStringAttachmentRefResolver
-            .resolve(attTarget.getReference(), draftDocumentRef);
-
-        // we point to a draft object: look up the target:
-        String targetDocRef = getTargetDocRefInWorkflow(currentAttachmentLinkReference.getDocumentReference(),
-            publishedDocument.getDocumentReference(), context);
-        if (targetDocRef == null) {
+        // Use the rewrite computed when the draft was saved, if it is still valid.
+        if (draftReferencesIndex.apply(publishedDocument, draftDocumentRef)) {
+            logger.debug("applied the precomputed references of {}", publishedDocument);
             return;
         }
 
-        DocumentReference targetDocumentReference = explicitStringDocRefResolver.resolve(targetDocRef,
-            draftDocumentRef);
-        AttachmentReference targetAttachmentReference = new AttachmentReference(
-            currentAttachmentLinkReference.getName(), targetDocumentReference);
-
-        String targetAttachmentRef = stringSerializer.serialize(targetAttachmentReference,
-            publishedDocument.getDocumentReference());
-        logger.debug("transform att link {} in doc {} to {}", attTarget.getReference(), publishedDocument,
-            targetAttachmentRef);
-        attTarget.setReference(targetAttachmentRef);
+        // The content is set again only when a reference was rewritten.
+        String content = transformer.transform(publishedDocument.getContent(), publishedDocument.getSyntax(),
+            draftDocumentRef, publishedDocument.getDocumentReference(), context);
+        if (content != null) {
+            publishedDocument.setContent(content);
+        }
     }
 }
@@ -20,8 +20,12 @@
 package org.xwiki.workflowpublication.internal;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -30,16 +34,20 @@ import javax.inject.Singleton;
 import org.slf4j.Logger;
 import org.xwiki.bridge.event.DocumentUpdatingEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.observation.EventListener;
 import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationRoles;
 import org.xwiki.workflowpublication.PublicationWorkflow;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.ObjectDiff;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
 
 /**
  * Event listener to listen to documents updating events and prevent changing the status by unauthorized users for
@@ -52,6 +60,15 @@ import com.xpn.xwiki.objects.ObjectDiff;
 @Singleton
 public class RolesEnforcerListener implements EventListener
 {
+    /**
+     * The properties of the workflow object which hold the state of the workflow, which only the workflow itself and
+     * the validators can change. The others, such as the publication comment, are edited by the contributors.
+     */
+    private static final List<String> PROTECTED_FIELDS = Arrays.asList(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME,
+        DefaultPublicationWorkflow.WF_STATUS_AUTHOR_FIELDNAME, DefaultPublicationWorkflow.WF_STATUS_DATE_FIELDNAME,
+        DefaultPublicationWorkflow.WF_PUBLISH_DATE_FIELDNAME, DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME,
+        DefaultPublicationWorkflow.WF_TARGET_FIELDNAME, DefaultPublicationWorkflow.WF_CONFIG_REF_FIELDNAME);
+
     /**
      * The logger to log.
      */
@@ -74,11 +91,22 @@ public class RolesEnforcerListener implements EventListener
     @Inject
     protected PublicationWorkflow publicationWorkflow;
 
+    @Inject
+    protected PublicationRoles publicationRoles;
+
+    @Inject
+    private ListenerMetrics metrics;
+
     /**
      * The events observed by this observation manager.
      */
     private final List<Event> eventsList = new ArrayList<>(Collections.singletonList(new DocumentUpdatingEvent()));
 
+    /**
+     * The reference of the workflow class, per wiki identifier.
+     */
+    private final Map<String, DocumentReference> workflowClassReferences = new ConcurrentHashMap<>();
+
     /**
      * {@inheritDoc}
      * 
@@ -106,6 +134,18 @@ public class RolesEnforcerListener implements EventListener
      *      java.lang.Object)
      */
     public void onEvent(Event event, Object source, Object data)
+    {
+        try (ListenerMetrics.Timer timer = metrics.start(getName(), event)) {
+            if (!enforceRoles(source, data)) {
+                timer.earlyExit();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the updated document is a workflow document, which was checked
+     */
+    private boolean enforceRoles(Object source, Object data)
     {
         XWikiDocument currentDocument = (XWikiDocument) source;
 
@@ -115,24 +155,80 @@ public class RolesEnforcerListener implements EventListener
 
         // check if the old document is a workflow document, if it is, we need to handle moderation protection
         if (!publicationWorkflow.isWorkflowDocument(previousDocument, context)) {
-            return;
+            return false;
         }
 
-        // get the workflow object and get the state, in the new document and in the old document
-        boolean isOtherWorkflowChange = false;
-        List<List<ObjectDiff>> objectDiffs = currentDocument.getObjectDiff(previousDocument, currentDocument, context);
-        for (List<ObjectDiff> objectChanges : objectDiffs) {
-            for (ObjectDiff diff : objectChanges) {
-                // if a change is in a workflow object, it's a workflow change
-                if (diff.getXClassReference().equals(
-                    currentReferenceEntityResolver.resolve(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS))) {
-                    isOtherWorkflowChange = true;
-                }
+        // the workflow saves its own changes, whoever the current user is
+        if (context.get(DefaultPublicationWorkflow.CONTEXTKEY_WORKFLOW_SAVE) != null) {
+            return true;
+        }
+
+        // compare the workflow objects of the new document and of the old document directly: the other objects of the
+        // document cannot hold a workflow change
+        DocumentReference workflowClassReference =
+            getWorkflowClassReference(currentDocument.getDocumentReference().getWikiReference());
+        BaseObject previousWorkflow = previousDocument.getXObject(workflowClassReference);
+        BaseObject currentWorkflow = currentDocument.getXObject(workflowClassReference);
+        if (!isChanged(previousWorkflow, currentWorkflow)) {
+            return true;
+        }
+
+        DocumentReference userReference = context.getUserReference();
+        if (publicationRoles.canValidate(userReference, previousDocument, context)) {
+            return true;
+        }
+
+        logger.warn("Restoring the workflow state of [{}], which [{}] is not allowed to change",
+            stringSerializer.serialize(currentDocument.getDocumentReference()),
+            userReference != null ? stringSerializer.serialize(userReference) : null);
+        restore(previousWorkflow, currentWorkflow, currentDocument, context);
+        return true;
+    }
+
+    private DocumentReference getWorkflowClassReference(WikiReference wikiReference)
+    {
+        return workflowClassReferences.computeIfAbsent(wikiReference.getName(),
+            wiki -> currentReferenceEntityResolver.resolve(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS,
+                wikiReference));
+    }
+
+    private boolean isChanged(BaseObject previousWorkflow, BaseObject currentWorkflow)
+    {
+        if (currentWorkflow == null) {
+            return true;
+        }
+        for (String field : PROTECTED_FIELDS) {
+            if (!Objects.equals(getValue(previousWorkflow, field), getValue(currentWorkflow, field))) {
+                return true;
             }
         }
+        return false;
+    }
 
-        if (isOtherWorkflowChange) {
-            // TODO: restore workflow object besides the status prop
+    private Object getValue(BaseObject workflow, String field)
+    {
+        BaseProperty<?> property = (BaseProperty<?>) workflow.safeget(field);
+        return property != null ? property.getValue() : null;
+    }
+
+    /**
+     * Puts back the protected properties of the previous workflow object in the saved document, or the whole object
+     * if it was removed.
+     */
+    private void restore(BaseObject previousWorkflow, BaseObject currentWorkflow, XWikiDocument currentDocument,
+        XWikiContext context)
+    {
+        if (currentWorkflow == null) {
+            currentDocument.addXObject(previousWorkflow.duplicate());
+            return;
+        }
+        for (String field : PROTECTED_FIELDS) {
+            Object value = getValue(previousWorkflow, field);
+            if (value == null) {
+                currentWorkflow.removeField(field);
+            } else {
+                currentWorkflow.set(field, value, context);
+            }
         }
     }
 }
@@ -0,0 +1,512 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobException;
+import org.xwiki.job.JobExecutor;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.localization.ContextualLocalizationManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+import org.xwiki.wiki.manager.WikiManagerException;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Publishes the validated documents whose publication was scheduled, once their
+ * {@value DefaultPublicationWorkflow#WF_PUBLISH_DATE_FIELDNAME} is reached. The scheduled documents of each wiki are
+ * loaded from the database the first time, then kept ordered by publication date, and up to date by
+ * {@link ScheduledPublicationsListener} as they are saved. A background thread periodically takes the documents which
+ * are due, the earliest first, and publishes them with a {@link BulkTransitionJob} on behalf of the author of their
+ * status. At most a batch of documents is published each time, all wikis included, so that the publications scheduled
+ * at the same time are spread over the next runs instead of all running at once, and the publications missed while
+ * the wiki was stopped are caught up the same way. The documents which are still scheduled once the job publishing
+ * them completed, because it failed, are tried again later, waiting longer each time, up to a few times, after which
+ * their publication date is removed so that they are not scheduled anymore. In a cluster, the documents are published
+ * only by the nodes where {@link PublicationWorkflowConfiguration#isScheduledPublishEnabled()}, which should be a
+ * single one.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = ScheduledPublications.class)
+@Singleton
+public class ScheduledPublications implements Initializable, Disposable
+{
+    private static final String SCHEDULED_STATEMENT = "select obj.name, publishDate.value "
+        + "from BaseObject obj, DateProperty publishDate, StringProperty status, IntegerProperty target "
+        + "where obj.className = :className and publishDate.id.id = obj.id and publishDate.id.name = 'publishDate' "
+        + "and status.id.id = obj.id and status.id.name = 'status' and status.value = 'valid' "
+        + "and target.id.id = obj.id and target.id.name = 'istarget' and target.value = 0";
+
+    /**
+     * The number of times the publication of a document fails before giving up.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The number of milliseconds to wait after the first failed publication of a document before starting it again,
+     * doubled after each failed attempt.
+     */
+    private static final long RETRY_DELAY = 5 * 60 * 1000L;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private JobExecutor jobExecutor;
+
+    @Inject
+    private AuthorizationManager authManager;
+
+    @Inject
+    private WikiDescriptorManager wikiDescriptorManager;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private EntityReferenceSerializer<String> stringSerializer;
+
+    @Inject
+    private ContextualLocalizationManager localizationManager;
+
+    private final WikiIndexes<WikiQueue> wikis = new WikiIndexes<>(this::load);
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * A scheduled publication, ordered by date. Its attempts are only read and written by the publishing thread, and
+     * kept as long as its date doesn't change.
+     */
+    private static final class Entry implements Comparable<Entry>
+    {
+        private final String wiki;
+
+        private final String fullName;
+
+        private final long time;
+
+        /**
+         * The number of publications of the document which completed while it was still scheduled.
+         */
+        private int attempts;
+
+        private long nextAttempt;
+
+        /**
+         * The identifier of the job publishing the document, {@code null} if none was started since the last failure.
+         */
+        private List<String> job;
+
+        private boolean abandoned;
+
+        Entry(String wiki, String fullName, long time)
+        {
+            this.wiki = wiki;
+            this.fullName = fullName;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            int result = Long.compare(this.time, other.time);
+            if (result == 0) {
+                result = this.wiki.compareTo(other.wiki);
+            }
+            return result != 0 ? result : this.fullName.compareTo(other.fullName);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            return object instanceof Entry && compareTo((Entry) object) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.fullName.hashCode();
+        }
+    }
+
+    /**
+     * The scheduled publications of a wiki.
+     */
+    private static final class WikiQueue
+    {
+        private final Map<String, Entry> entries = new HashMap<>();
+
+        private final NavigableSet<Entry> queue = new ConcurrentSkipListSet<>();
+    }
+
+    @Override
+    public void initialize()
+    {
+        if (!this.configuration.isScheduledPublishEnabled()) {
+            this.logger.info("The scheduled publications are not published by this instance");
+            return;
+        }
+        this.executor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder()
+            .namingPattern("Publication workflow scheduled publications %d").daemon(true)
+            .priority(Thread.MIN_PRIORITY).build());
+        int interval = this.configuration.getScheduledPublishInterval();
+        this.executor.scheduleWithFixedDelay(this::publishDue, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose()
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Updates the scheduled publications after a workflow document was saved or deleted.
+     *
+     * @param document a reference to the saved document
+     * @param date the date the document has to be published, {@code null} if its publication is not scheduled
+     */
+    public void update(DocumentReference document, Date date)
+    {
+        String fullName = this.localSerializer.serialize(document);
+        this.wikis.update(document.getWikiReference(), wikiQueue -> {
+            Entry previousEntry = wikiQueue.entries.get(fullName);
+            if (previousEntry != null) {
+                // Keep the attempts of the publication when the document is saved again for the same date.
+                if (date != null && previousEntry.time == date.getTime()) {
+                    return;
+                }
+                wikiQueue.entries.remove(fullName);
+                wikiQueue.queue.remove(previousEntry);
+            }
+            if (date != null) {
+                add(wikiQueue, new Entry(document.getWikiReference().getName(), fullName, date.getTime()));
+            }
+        });
+    }
+
+    /**
+     * @param limit the maximum number of documents to return
+     * @param xcontext the current context
+     * @return the documents of the current wiki which the current user can view and whose publication is scheduled,
+     *     from the first one to be published, with the date they will be published
+     * @throws XWikiException in case the scheduled publications cannot be loaded
+     */
+    public Map<DocumentReference, Date> getScheduled(int limit, XWikiContext xcontext) throws XWikiException
+    {
+        Map<DocumentReference, Date> scheduled = new LinkedHashMap<>();
+        WikiReference wiki = new WikiReference(xcontext.getWikiId());
+        for (Entry entry : this.wikis.get(wiki).queue) {
+            if (scheduled.size() == limit) {
+                break;
+            }
+            DocumentReference reference = this.explicitStringDocRefResolver.resolve(entry.fullName, wiki);
+            if (this.authManager.hasAccess(Right.VIEW, xcontext.getUserReference(), reference)) {
+                scheduled.put(reference, new Date(entry.time));
+            }
+        }
+        return scheduled;
+    }
+
+    private WikiQueue load(WikiReference wiki) throws XWikiException
+    {
+        WikiQueue wikiQueue = new WikiQueue();
+        try {
+            Query query = this.queryManager.createQuery(SCHEDULED_STATEMENT, Query.HQL);
+            query.setWiki(wiki.getName());
+            query.bindValue("className",
+                this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS));
+            for (Object[] result : query.<Object[]>execute()) {
+                if (result[1] != null) {
+                    add(wikiQueue, new Entry(wiki.getName(), (String) result[0], ((Date) result[1]).getTime()));
+                }
+            }
+            return wikiQueue;
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not load the scheduled publications of [%s]", wiki), e);
+        }
+    }
+
+    private void add(WikiQueue wikiQueue, Entry entry)
+    {
+        wikiQueue.entries.put(entry.fullName, entry);
+        wikiQueue.queue.add(entry);
+    }
+
+    private void publishDue()
+    {
+        try {
+            new PublishRunnable().run();
+        } catch (RuntimeException e) {
+            // Don't cancel the next runs.
+            this.logger.error("Failed to publish the scheduled documents", e);
+        }
+    }
+
+    /**
+     * Starts the publication of the documents which are due, in a fresh execution context.
+     */
+    private final class PublishRunnable extends AbstractXWikiRunnable
+    {
+        @Override
+        protected void runInternal()
+        {
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null || xcontext.getWiki() == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            int batchSize = configuration.getScheduledPublishBatchSize();
+
+            // Take the earliest due documents of all the wikis, so that a wiki late on its schedule doesn't delay the
+            // publications of the others.
+            List<Entry> due = new ArrayList<>();
+            List<Entry> failed = new ArrayList<>();
+            for (String wiki : getWikis()) {
+                try {
+                    int count = 0;
+                    for (Entry entry : this.wikis.get(new WikiReference(wiki)).queue) {
+                        if (entry.time > now || count == batchSize) {
+                            break;
+                        }
+                        if (entry.abandoned || isPublishing(entry, now)) {
+                            continue;
+                        }
+                        if (entry.attempts >= MAX_ATTEMPTS) {
+                            failed.add(entry);
+                        } else if (entry.nextAttempt <= now) {
+                            due.add(entry);
+                            count++;
+                        }
+                    }
+                } catch (XWikiException e) {
+                    logger.warn("Failed to load the scheduled publications of [{}]", wiki, e);
+                }
+            }
+            for (Entry entry : failed) {
+                giveUp(entry, xcontext);
+            }
+            Collections.sort(due);
+
+            // The documents published on behalf of the same user in the same wiki are published by the same job.
+            Map<WikiReference, Map<DocumentReference, List<Entry>>> jobs = new LinkedHashMap<>();
+            for (Entry entry : due.subList(0, Math.min(due.size(), batchSize))) {
+                WikiReference wiki = new WikiReference(entry.wiki);
+                DocumentReference document = explicitStringDocRefResolver.resolve(entry.fullName, wiki);
+                if (entry.attempts > 0) {
+                    logger.info("Publishing [{}] again, attempt [{}] of [{}]", document, entry.attempts + 1,
+                        MAX_ATTEMPTS);
+                }
+                DocumentReference user = getPublisher(document, xcontext);
+                if (user != null) {
+                    jobs.computeIfAbsent(wiki, key -> new LinkedHashMap<>())
+                        .computeIfAbsent(user, key -> new ArrayList<>()).add(entry);
+                } else {
+                    failed(entry, now);
+                }
+            }
+
+            for (Map.Entry<WikiReference, Map<DocumentReference, List<Entry>>> wiki : jobs.entrySet()) {
+                for (Map.Entry<DocumentReference, List<Entry>> user : wiki.getValue().entrySet()) {
+                    List<DocumentReference> documents = new ArrayList<>();
+                    for (Entry entry : user.getValue()) {
+                        documents.add(explicitStringDocRefResolver.resolve(entry.fullName, wiki.getKey()));
+                    }
+                    try {
+                        Job job = jobExecutor.execute(BulkTransitionJob.JOBTYPE, BulkTransitionJob.createRequest(
+                            BulkTransitionJob.TRANSITION_PUBLISH, documents, wiki.getKey(), user.getKey()));
+                        for (Entry entry : user.getValue()) {
+                            entry.job = job.getRequest().getId();
+                        }
+                    } catch (JobException e) {
+                        logger.warn("Failed to start publishing the scheduled documents [{}]", documents, e);
+                        user.getValue().forEach(entry -> failed(entry, now));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return {@code true} if the job started to publish the passed document is still running, otherwise counts
+         *     the failed attempt of a job which completed while the document was still scheduled
+         */
+        private boolean isPublishing(Entry entry, long now)
+        {
+            if (entry.job == null) {
+                return false;
+            }
+            Job job = jobExecutor.getJob(entry.job);
+            if (job != null && job.getStatus().getState() != JobStatus.State.FINISHED) {
+                return true;
+            }
+            entry.job = null;
+            failed(entry, now);
+            return false;
+        }
+
+        /**
+         * Counts a failed publication of the passed document, which is tried again later, waiting longer each time.
+         */
+        private void failed(Entry entry, long now)
+        {
+            entry.attempts++;
+            entry.nextAttempt = now + (RETRY_DELAY << (entry.attempts - 1));
+        }
+
+        /**
+         * Removes the publication date of a document whose publication failed each time, so that it leaves the queue
+         * once saved.
+         */
+        private void giveUp(Entry entry, XWikiContext xcontext)
+        {
+            DocumentReference document =
+                explicitStringDocRefResolver.resolve(entry.fullName, new WikiReference(entry.wiki));
+            logger.error("Failed to publish the scheduled document [{}] after [{}] attempts, giving up", document,
+                MAX_ATTEMPTS);
+            // Don't give up again if the document cannot be saved, until the next restart.
+            entry.abandoned = true;
+            DocumentReference currentUser = xcontext.getUserReference();
+            try {
+                XWikiDocument doc = xcontext.getWiki().getDocument(document, xcontext);
+                BaseObject workflow = doc.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+                if (workflow == null) {
+                    return;
+                }
+                // The publication is unscheduled on behalf of the user who scheduled it, like it is published.
+                DocumentReference user = getPublisher(document, xcontext);
+                if (user != null) {
+                    xcontext.setUserReference(user);
+                    doc.setAuthorReference(user);
+                }
+                workflow.removeField(DefaultPublicationWorkflow.WF_PUBLISH_DATE_FIELDNAME);
+                xcontext.put(DefaultPublicationWorkflow.CONTEXTKEY_WORKFLOW_SAVE, true);
+                try {
+                    xcontext.getWiki().saveDocument(doc, getComment(document), true, xcontext);
+                } finally {
+                    xcontext.remove(DefaultPublicationWorkflow.CONTEXTKEY_WORKFLOW_SAVE);
+                }
+            } catch (XWikiException e) {
+                logger.warn("Failed to remove the publication date of [{}]", document, e);
+            } finally {
+                xcontext.setUserReference(currentUser);
+            }
+        }
+
+        private String getComment(DocumentReference document)
+        {
+            String documentName = stringSerializer.serialize(document);
+            String key = "workflow.save.abandonScheduledPublish";
+            String comment = localizationManager.getTranslationPlain(key, documentName, MAX_ATTEMPTS);
+            if (comment == null || comment.equals(key)) {
+                comment = "Abandon the scheduled publication of document " + documentName + " after " + MAX_ATTEMPTS
+                    + " failed attempts.";
+            }
+            return comment;
+        }
+
+        private List<String> getWikis()
+        {
+            try {
+                return new ArrayList<>(wikiDescriptorManager.getAllIds());
+            } catch (WikiManagerException e) {
+                logger.warn("Failed to get the wikis whose scheduled documents to publish", e);
+                return Collections.emptyList();
+            }
+        }
+
+        /**
+         * @return the author of the status of the passed document, on behalf of whom it is published, {@code null}
+         *     if there is none
+         */
+        private DocumentReference getPublisher(DocumentReference document, XWikiContext xcontext)
+        {
+            try {
+                BaseObject workflow = xcontext.getWiki().getDocument(document, xcontext)
+                    .getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+                String author = workflow != null
+                    ? workflow.getStringValue(DefaultPublicationWorkflow.WF_STATUS_AUTHOR_FIELDNAME) : null;
+                if (StringUtils.isBlank(author)) {
+                    logger.warn("Cannot publish [{}] since the author of its validation is not known", document);
+                    return null;
+                }
+                return explicitStringDocRefResolver.resolve(author, document);
+            } catch (XWikiException e) {
+                logger.warn("Failed to load the scheduled document [{}]", document, e);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link ScheduledPublications} up to date as the workflow documents are saved or deleted.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowscheduledpublications")
+@Singleton
+public class ScheduledPublicationsListener implements EventListener
+{
+    @Inject
+    private ScheduledPublications scheduledPublications;
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowscheduledpublications";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        XWikiDocument originalDocument = document.getOriginalDocument();
+        Date date = event instanceof DocumentDeletedEvent ? null : getPublishDate(document);
+        // Most of the workflow documents are not scheduled, before or after being saved.
+        if (date != null || (originalDocument != null && getPublishDate(originalDocument) != null)) {
+            this.scheduledPublications.update(document.getDocumentReference(), date);
+        }
+    }
+
+    /**
+     * @return the date the passed document has to be published, {@code null} if it is not a validated draft whose
+     *     publication is scheduled
+     */
+    private Date getPublishDate(XWikiDocument document)
+    {
+        BaseObject workflow = document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        if (workflow == null || workflow.getIntValue(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME) == 1
+            || !DefaultPublicationWorkflow.STATUS_VALID
+                .equals(workflow.getStringValue(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME))) {
+            return null;
+        }
+        return workflow.getDateValue(DefaultPublicationWorkflow.WF_PUBLISH_DATE_FIELDNAME);
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Append-only log of the workflow transitions, so that the history of the transitions can be queried by time, user or
+ * document without loading the archives of the documents to read their version comments. The transitions are queued
+ * by {@link DefaultPublicationWorkflow} as the documents are saved and written in batches, in the background, to one
+ * segment file per wiki and day (UTC) in the permanent directory. The day of the segments is the coarse time index;
+ * each segment also has a sparse index giving, for the start of each batch, the latest time written before it, so that
+ * a query skips the beginning of the segments which is older than the range it asks for. The segments of the days older
+ * than the retention period are deleted once a day.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = TransitionLog.class)
+@Singleton
+public class TransitionLog implements Initializable, Disposable
+{
+    private static final String SEGMENT_EXTENSION = ".log";
+
+    private static final String INDEX_EXTENSION = ".idx";
+
+    private static final char SEPARATOR = '\t';
+
+    private static final String SEPARATOR_REGEX = "\t";
+
+    private static final int FIELD_COUNT = 7;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private EntityReferenceSerializer<String> stringSerializer;
+
+    private final ConcurrentLinkedQueue<Transition> queue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The latest time written to each segment, only accessed while flushing.
+     */
+    private final Map<Path, Long> latestTimes = new HashMap<>();
+
+    private File directory;
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * A transition of a workflow document from a status to another.
+     */
+    public static final class Transition
+    {
+        private final DocumentReference document;
+
+        private final String from;
+
+        private final String to;
+
+        private final DocumentReference user;
+
+        private final Date time;
+
+        private final long duration;
+
+        private final int children;
+
+        /**
+         * @param document the workflow document
+         * @param from the status the document left, {@code null} if it had no workflow
+         * @param to the status the document entered
+         * @param user the user who performed the transition, {@code null} for guest
+         * @param time the date of the transition
+         * @param duration the number of milliseconds the document spent in the status it left, {@code -1} if unknown
+         * @param children the number of descendants of the document which went through the transition with it
+         */
+        public Transition(DocumentReference document, String from, String to, DocumentReference user, Date time,
+            long duration, int children)
+        {
+            this.document = document;
+            this.from = from;
+            this.to = to;
+            this.user = user;
+            this.time = time;
+            this.duration = duration;
+            this.children = children;
+        }
+
+        /**
+         * @return the workflow document
+         */
+        public DocumentReference getDocument()
+        {
+            return this.document;
+        }
+
+        /**
+         * @return the status the document left, {@code null} if it had no workflow
+         */
+        public String getFrom()
+        {
+            return this.from;
+        }
+
+        /**
+         * @return the status the document entered
+         */
+        public String getTo()
+        {
+            return this.to;
+        }
+
+        /**
+         * @return the user who performed the transition, {@code null} for guest
+         */
+        public DocumentReference getUser()
+        {
+            return this.user;
+        }
+
+        /**
+         * @return the date of the transition
+         */
+        public Date getTime()
+        {
+            return this.time;
+        }
+
+        /**
+         * @return the number of milliseconds the document spent in the status it left, {@code -1} if unknown
+         */
+        public long getDuration()
+        {
+            return this.duration;
+        }
+
+        /**
+         * @return the number of descendants of the document which went through the transition with it
+         */
+        public int getChildren()
+        {
+            return this.children;
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.directory = new File(this.environment.getPermanentDirectory(), "workflowpublication/transitions");
+        this.executor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder()
+            .namingPattern("Publication workflow transition log %d").daemon(true).priority(Thread.MIN_PRIORITY)
+            .build());
+        int interval = this.configuration.getTransitionLogFlushInterval();
+        this.executor.scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+        int retention = this.configuration.getTransitionLogRetention();
+        if (retention > 0) {
+            this.executor.scheduleWithFixedDelay(() -> purgeQuietly(retention), 0, 1, TimeUnit.DAYS);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+        flushQuietly();
+    }
+
+    /**
+     * Queues a transition, which is written with the next batch.
+     *
+     * @param transition the transition to log
+     */
+    public void record(Transition transition)
+    {
+        this.queue.add(transition);
+    }
+
+    /**
+     * @param wiki the wiki whose transitions to return
+     * @param from only return the transitions which happened at or after this date, {@code null} for no lower bound
+     * @param to only return the transitions which happened before this date, {@code null} for no upper bound
+     * @param user only return the transitions performed by this user, {@code null} for all
+     * @param document only return the transitions of this document, {@code null} for all
+     * @param limit the maximum number of transitions to return
+     * @return the transitions matching the passed criteria, from the latest one
+     * @throws IOException in case the log cannot be read
+     */
+    public List<Transition> getTransitions(WikiReference wiki, Date from, Date to, DocumentReference user,
+        DocumentReference document, int limit) throws IOException
+    {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        // Make the transitions which are still queued visible.
+        flush();
+
+        long fromTime = from != null ? from.getTime() : Long.MIN_VALUE;
+        long toTime = to != null ? to.getTime() : Long.MAX_VALUE;
+        String userFilter = user != null ? this.stringSerializer.serialize(user) : null;
+        String documentFilter = document != null ? this.localSerializer.serialize(document) : null;
+
+        List<Transition> transitions = new ArrayList<>();
+        for (Path segment : getSegments(wiki, fromTime, toTime)) {
+            List<Transition> segmentTransitions = new ArrayList<>();
+            try (BufferedReader reader = openSegment(segment, fromTime)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    String[] fields = line.split(SEPARATOR_REGEX, -1);
+                    // Skip the line which may have been partially written before a crash.
+                    if (fields.length == FIELD_COUNT) {
+                        long time = Long.parseLong(fields[0]);
+                        if (time >= fromTime && time < toTime
+                            && (userFilter == null || userFilter.equals(unescape(fields[4])))
+                            && (documentFilter == null || documentFilter.equals(unescape(fields[1])))) {
+                            segmentTransitions.add(parse(fields, wiki));
+                        }
+                    }
+                }
+            }
+            segmentTransitions.sort(Comparator.comparing(Transition::getTime).reversed());
+            transitions.addAll(segmentTransitions.subList(0,
+                Math.min(segmentTransitions.size(), limit - transitions.size())));
+            if (transitions.size() >= limit) {
+                break;
+            }
+        }
+        return transitions;
+    }
+
+    /**
+     * @return the segments of the passed wiki which may hold transitions in the passed range, from the latest one
+     */
+    private List<Path> getSegments(WikiReference wiki, long fromTime, long toTime)
+    {
+        File[] files = new File(this.directory, wiki.getName()).listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        String first = fromTime == Long.MIN_VALUE ? "" : getDay(fromTime).toString();
+        String last = toTime == Long.MAX_VALUE ? null : getDay(toTime).toString();
+        List<Path> segments = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_EXTENSION)) {
+                String day = name.substring(0, name.length() - SEGMENT_EXTENSION.length());
+                if (day.compareTo(first) >= 0 && (last == null || day.compareTo(last) <= 0)) {
+                    segments.add(file.toPath());
+                }
+            }
+        }
+        segments.sort(Comparator.reverseOrder());
+        return segments;
+    }
+
+    private BufferedReader openSegment(Path segment, long fromTime) throws IOException
+    {
+        // Skip the batches written before the first one which may hold a transition in the range.
+        long offset = 0;
+        Path index = getIndex(segment);
+        if (fromTime != Long.MIN_VALUE && Files.exists(index)) {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(SEPARATOR_REGEX);
+                if (fields.length != 2 || Long.parseLong(fields[1]) >= fromTime) {
+                    break;
+                }
+                offset = Long.parseLong(fields[0]);
+            }
+        }
+        InputStream stream = Files.newInputStream(segment);
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long count = stream.skip(offset - skipped);
+                if (count <= 0) {
+                    break;
+                }
+                skipped += count;
+            }
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    private Transition parse(String[] fields, WikiReference wiki)
+    {
+        String user = unescape(fields[4]);
+        return new Transition(this.explicitStringDocRefResolver.resolve(unescape(fields[1]), wiki),
+            fields[2].isEmpty() ? null : unescape(fields[2]), unescape(fields[3]),
+            user.isEmpty() ? null : this.explicitStringDocRefResolver.resolve(user, wiki),
+            new Date(Long.parseLong(fields[0])), Long.parseLong(fields[5]), Integer.parseInt(fields[6]));
+    }
+
+    private void flushQuietly()
+    {
+        try {
+            flush();
+        } catch (Exception e) {
+            // Don't cancel the next flushes, the transitions are still queued.
+            this.logger.error("Failed to write the workflow transition log", e);
+        }
+    }
+
+    private void purgeQuietly(int retention)
+    {
+        try {
+            purge(retention);
+        } catch (Exception e) {
+            // Don't cancel the next purges.
+            this.logger.error("Failed to purge the workflow transition log", e);
+        }
+    }
+
+    /**
+     * Deletes the segments, and their index, of the days older than the passed number of days.
+     */
+    private synchronized void purge(int retention) throws IOException
+    {
+        String oldestDay = getDay(System.currentTimeMillis()).minusDays(retention).toString();
+        File[] wikiDirectories = this.directory.listFiles(File::isDirectory);
+        if (wikiDirectories == null) {
+            return;
+        }
+        for (File wikiDirectory : wikiDirectories) {
+            File[] files = wikiDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if ((name.endsWith(SEGMENT_EXTENSION) || name.endsWith(INDEX_EXTENSION))
+                    && name.substring(0, name.lastIndexOf('.')).compareTo(oldestDay) < 0) {
+                    Files.delete(file.toPath());
+                    this.latestTimes.remove(file.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the queued transitions, with one append per segment.
+     */
+    private synchronized void flush() throws IOException
+    {
+        Map<Path, List<Transition>> segments = new TreeMap<>();
+        for (Transition transition = this.queue.poll(); transition != null; transition = this.queue.poll()) {
+            File wikiDirectory = new File(this.directory, transition.getDocument().getWikiReference().getName());
+            Path segment = new File(wikiDirectory,
+                getDay(transition.getTime().getTime()) + SEGMENT_EXTENSION).toPath();
+            segments.computeIfAbsent(segment, key -> new ArrayList<>()).add(transition);
+        }
+        List<Path> written = new ArrayList<>();
+        try {
+            for (Map.Entry<Path, List<Transition>> segment : segments.entrySet()) {
+                write(segment.getKey(), segment.getValue());
+                written.add(segment.getKey());
+            }
+        } finally {
+            // Queue again the transitions which were not written, for the next flush.
+            segments.keySet().removeAll(written);
+            segments.values().forEach(this.queue::addAll);
+        }
+    }
+
+    private void write(Path segment, List<Transition> transitions) throws IOException
+    {
+        Files.createDirectories(segment.getParent());
+        long latestTime = getLatestTime(segment);
+        StringBuilder lines = new StringBuilder();
+        if (Files.exists(segment)) {
+            // End the line which may have been partially written before a crash, so that it isn't merged with the
+            // first line of the batch.
+            if (!isTerminated(segment)) {
+                lines.append('\n');
+            }
+            // Index the start of the batch with the latest time written before it.
+            try (Writer writer = Files.newBufferedWriter(getIndex(segment), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(Long.toString(Files.size(segment)) + SEPARATOR + latestTime + '\n');
+            }
+        }
+        for (Transition transition : transitions) {
+            long time = transition.getTime().getTime();
+            latestTime = Math.max(latestTime, time);
+            lines.append(time).append(SEPARATOR);
+            lines.append(escape(this.localSerializer.serialize(transition.getDocument()))).append(SEPARATOR);
+            lines.append(escape(transition.getFrom())).append(SEPARATOR);
+            lines.append(escape(transition.getTo())).append(SEPARATOR);
+            lines.append(escape(transition.getUser() != null ? this.stringSerializer.serialize(transition.getUser())
+                : null)).append(SEPARATOR);
+            lines.append(transition.getDuration()).append(SEPARATOR);
+            lines.append(transition.getChildren()).append('\n');
+        }
+        try (Writer writer = Files.newBufferedWriter(segment, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND)) {
+            writer.write(lines.toString());
+        }
+        this.latestTimes.put(segment, latestTime);
+    }
+
+    /**
+     * @return the latest time written to the passed segment, read from the segment the first time it is written to
+     *     since the start
+     */
+    private long getLatestTime(Path segment) throws IOException
+    {
+        Long latestTime = this.latestTimes.get(segment);
+        if (latestTime == null) {
+            latestTime = Long.MIN_VALUE;
+            if (Files.exists(segment)) {
+                try (BufferedReader reader = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        int end = line.indexOf(SEPARATOR);
+                        if (end > 0) {
+                            latestTime = Math.max(latestTime, Long.parseLong(line.substring(0, end)));
+                        }
+                    }
+                }
+            }
+        }
+        return latestTime;
+    }
+
+    /**
+     * @return whether the passed segment is empty or ends with a complete line
+     */
+    private boolean isTerminated(Path segment) throws IOException
+    {
+        try (SeekableByteChannel channel = Files.newByteChannel(segment)) {
+            if (channel.size() == 0) {
+                return true;
+            }
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.position(channel.size() - 1).read(lastByte);
+            return lastByte.get(0) == '\n';
+        }
+    }
+
+    private Path getIndex(Path segment)
+    {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_EXTENSION.length()) + INDEX_EXTENSION);
+    }
+
+    private LocalDate getDay(long time)
+    {
+        return Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    private String escape(String value)
+    {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private String unescape(String value)
+    {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                if (next == 't') {
+                    result.append('\t');
+                } else if (next == 'n') {
+                    result.append('\n');
+                } else if (next == 'r') {
+                    result.append('\r');
+                } else {
+                    result.append(next);
+                }
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
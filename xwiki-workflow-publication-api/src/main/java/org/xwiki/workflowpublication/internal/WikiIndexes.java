@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.xwiki.model.reference.WikiReference;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Holds an in-memory index of the workflow documents of each wiki, built from the database the first time it is
+ * needed, then kept up to date by a listener as the documents are saved. The index of a wiki is only built or modified
+ * while holding the lock of its wiki, but it is read without, so it has to support being read while it is modified.
+ *
+ * @param <T> the type of the index of a wiki
+ * @version $Id$
+ * @since 2.4.10
+ */
+public class WikiIndexes<T>
+{
+    /**
+     * Builds the index of a wiki from the database.
+     *
+     * @param <T> the type of the index of a wiki
+     */
+    @FunctionalInterface
+    public interface Loader<T>
+    {
+        /**
+         * @param wiki a wiki
+         * @return a new index of the passed wiki
+         * @throws XWikiException in case the index cannot be built
+         */
+        T load(WikiReference wiki) throws XWikiException;
+    }
+
+    /**
+     * The index of a wiki, whose lock is held while it is built or modified.
+     */
+    private static final class Slot<T>
+    {
+        private volatile T index;
+    }
+
+    private final Map<String, Slot<T>> wikis = new ConcurrentHashMap<>();
+
+    private final Loader<T> loader;
+
+    /**
+     * @param loader builds the index of a wiki from the database
+     */
+    public WikiIndexes(Loader<T> loader)
+    {
+        this.loader = loader;
+    }
+
+    /**
+     * @param wiki a wiki
+     * @return the index of the passed wiki, built the first time
+     * @throws XWikiException in case the index cannot be built, which is tried again the next time
+     */
+    public T get(WikiReference wiki) throws XWikiException
+    {
+        Slot<T> slot = this.wikis.computeIfAbsent(wiki.getName(), name -> new Slot<>());
+        T index = slot.index;
+        if (index == null) {
+            synchronized (slot) {
+                if (slot.index == null) {
+                    slot.index = this.loader.load(wiki);
+                }
+                index = slot.index;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Modifies the index of a wiki, after one of its documents was saved or deleted, while holding the lock of the
+     * wiki. The wikis whose index is not built yet are left alone, since their index will be built from the database,
+     * which holds the change already.
+     *
+     * @param wiki the wiki of the saved document
+     * @param update the modification of the index
+     */
+    public void update(WikiReference wiki, Consumer<T> update)
+    {
+        Slot<T> slot = this.wikis.get(wiki.getName());
+        if (slot == null) {
+            return;
+        }
+        synchronized (slot) {
+            if (slot.index != null) {
+                update.accept(slot.index);
+            }
+        }
+    }
+
+    /**
+     * Builds again the index of a wiki from the database, if it was built already, e.g. to fix the changes which were
+     * missed. The index is built without holding the lock of the wiki, so the documents saved meanwhile may be
+     * missing from the new index until the next time.
+     *
+     * @param wiki a wiki
+     * @throws XWikiException in case the index cannot be built, the previous one being kept
+     */
+    public void reload(WikiReference wiki) throws XWikiException
+    {
+        Slot<T> slot = this.wikis.get(wiki.getName());
+        if (slot == null || slot.index == null) {
+            return;
+        }
+        T index = this.loader.load(wiki);
+        synchronized (slot) {
+            slot.index = index;
+        }
+    }
+
+    /**
+     * @return the wikis whose index was built
+     */
+    public List<WikiReference> getLoadedWikis()
+    {
+        List<WikiReference> loadedWikis = new ArrayList<>();
+        for (Map.Entry<String, Slot<T>> wiki : this.wikis.entrySet()) {
+            if (wiki.getValue().index != null) {
+                loadedWikis.add(new WikiReference(wiki.getKey()));
+            }
+        }
+        return loadedWikis;
+    }
+}
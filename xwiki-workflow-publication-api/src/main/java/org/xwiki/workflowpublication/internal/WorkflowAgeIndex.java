@@ -0,0 +1,229 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Keeps, per wiki and workflow status, the workflow documents ordered by the date they entered their status, so that
+ * the documents waiting for the longest time in a status are found by reading the head of a sorted set, whatever the
+ * number of documents. The documents of a wiki are loaded the first time they are needed, then kept up to date by
+ * {@link WorkflowAgeIndexListener} as they are saved, see {@link WikiIndexes}. The documents which went through their
+ * last transition before the {@value DefaultPublicationWorkflow#WF_STATUS_DATE_FIELDNAME} field was recorded are
+ * dated with their last modification.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = WorkflowAgeIndex.class)
+@Singleton
+public class WorkflowAgeIndex
+{
+    private static final String STATUSES_STATEMENT = "select doc.fullName, status.value, doc.date "
+        + "from XWikiDocument doc, BaseObject obj, StringProperty status where doc.translation = 0 "
+        + "and obj.name = doc.fullName and obj.className = :className and status.id.id = obj.id "
+        + "and status.id.name = 'status'";
+
+    private static final String DATES_STATEMENT = "select obj.name, date.value from BaseObject obj, DateProperty date "
+        + "where obj.className = :className and date.id.id = obj.id and date.id.name = 'statusDate'";
+
+    private static final String CLASS_NAME = "className";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private AuthorizationManager authManager;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private final WikiIndexes<WikiIndex> wikis = new WikiIndexes<>(this::load);
+
+    /**
+     * A workflow document, ordered by the date it entered its status.
+     */
+    private static final class Entry implements Comparable<Entry>
+    {
+        private final String fullName;
+
+        private final String status;
+
+        private final long time;
+
+        Entry(String fullName, String status, long time)
+        {
+            this.fullName = fullName;
+            this.status = status;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Entry other)
+        {
+            int result = Long.compare(this.time, other.time);
+            return result != 0 ? result : this.fullName.compareTo(other.fullName);
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            return object instanceof Entry && compareTo((Entry) object) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.fullName.hashCode();
+        }
+    }
+
+    /**
+     * The index of a wiki.
+     */
+    private static final class WikiIndex
+    {
+        private final Map<String, Entry> entries = new HashMap<>();
+
+        private final Map<String, NavigableSet<Entry>> byStatus = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Updates the index after a workflow document was saved or deleted.
+     *
+     * @param document a reference to the saved document
+     * @param status the workflow status of the document, {@code null} if it has no workflow anymore
+     * @param date the date the document entered its status
+     */
+    public void update(DocumentReference document, String status, Date date)
+    {
+        String fullName = this.localSerializer.serialize(document);
+        this.wikis.update(document.getWikiReference(), index -> {
+            Entry previousEntry = index.entries.remove(fullName);
+            if (previousEntry != null) {
+                index.byStatus.get(previousEntry.status).remove(previousEntry);
+            }
+            if (status != null) {
+                add(index, new Entry(fullName, status, date.getTime()));
+            }
+        });
+    }
+
+    /**
+     * @param status a workflow status
+     * @param limit the maximum number of documents to return
+     * @param xcontext the current context
+     * @return the documents of the current wiki which the current user can view and which are in the passed status,
+     *     from the one which entered it first, with the date they entered it
+     * @throws XWikiException in case the index cannot be loaded
+     */
+    public Map<DocumentReference, Date> getOldest(String status, int limit, XWikiContext xcontext)
+        throws XWikiException
+    {
+        Map<DocumentReference, Date> oldest = new LinkedHashMap<>();
+        if (status == null) {
+            return oldest;
+        }
+        WikiReference wiki = new WikiReference(xcontext.getWikiId());
+        NavigableSet<Entry> entries = this.wikis.get(wiki).byStatus.get(status);
+        if (entries == null) {
+            return oldest;
+        }
+        for (Entry entry : entries) {
+            if (oldest.size() == limit) {
+                break;
+            }
+            DocumentReference reference = this.explicitStringDocRefResolver.resolve(entry.fullName, wiki);
+            if (this.authManager.hasAccess(Right.VIEW, xcontext.getUserReference(), reference)) {
+                oldest.put(reference, new Date(entry.time));
+            }
+        }
+        return oldest;
+    }
+
+    private WikiIndex load(WikiReference wiki) throws XWikiException
+    {
+        String className = this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        WikiIndex index = new WikiIndex();
+        try {
+            Query datesQuery = this.queryManager.createQuery(DATES_STATEMENT, Query.HQL);
+            datesQuery.setWiki(wiki.getName());
+            datesQuery.bindValue(CLASS_NAME, className);
+            Map<String, Date> dates = new HashMap<>();
+            for (Object[] result : datesQuery.<Object[]>execute()) {
+                if (result[1] != null) {
+                    dates.put((String) result[0], (Date) result[1]);
+                }
+            }
+
+            Query statusesQuery = this.queryManager.createQuery(STATUSES_STATEMENT, Query.HQL);
+            statusesQuery.setWiki(wiki.getName());
+            statusesQuery.bindValue(CLASS_NAME, className);
+            for (Object[] result : statusesQuery.<Object[]>execute()) {
+                String fullName = (String) result[0];
+                if (result[1] != null) {
+                    Date date = dates.getOrDefault(fullName, (Date) result[2]);
+                    add(index, new Entry(fullName, (String) result[1], date.getTime()));
+                }
+            }
+            return index;
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not load the workflow statuses of [%s]", wiki), e);
+        }
+    }
+
+    private void add(WikiIndex index, Entry entry)
+    {
+        index.entries.put(entry.fullName, entry);
+        index.byStatus.computeIfAbsent(entry.status, key -> new ConcurrentSkipListSet<>()).add(entry);
+    }
+}
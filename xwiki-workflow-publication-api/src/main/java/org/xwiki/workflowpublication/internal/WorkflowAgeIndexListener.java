@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link WorkflowAgeIndex} up to date as the workflow documents are saved or deleted.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowageindex")
+@Singleton
+public class WorkflowAgeIndexListener implements EventListener
+{
+    @Inject
+    private WorkflowAgeIndex index;
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowageindex";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        XWikiDocument originalDocument = document.getOriginalDocument();
+        BaseObject workflow = event instanceof DocumentDeletedEvent ? null
+            : document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        BaseObject previousWorkflow = originalDocument != null
+            ? originalDocument.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS) : null;
+
+        if (workflow != null) {
+            String status = workflow.getStringValue(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME);
+            Date date = getStatusDate(workflow, document);
+            // Most of the saves of a workflow document are edits which don't change its status.
+            if (previousWorkflow == null
+                || !Objects.equals(status,
+                    previousWorkflow.getStringValue(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME))
+                || date.getTime() != getStatusDate(previousWorkflow, originalDocument).getTime()) {
+                this.index.update(document.getDocumentReference(), status, date);
+            }
+        } else if (previousWorkflow != null) {
+            this.index.update(document.getDocumentReference(), null, null);
+        }
+    }
+
+    private Date getStatusDate(BaseObject workflow, XWikiDocument document)
+    {
+        Date date = workflow.getDateValue(DefaultPublicationWorkflow.WF_STATUS_DATE_FIELDNAME);
+        return date != null ? date : document.getDate();
+    }
+}
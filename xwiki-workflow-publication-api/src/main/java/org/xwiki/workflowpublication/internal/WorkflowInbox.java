@@ -0,0 +1,400 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.workflowpublication.PublicationRoles;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Keeps, per wiki, the drafts waiting for an action of a moderator or a validator, indexed by the groups which can act
+ * on them: the moderators and validators of their workflow configuration for the drafts to moderate, the validators
+ * for the drafts to validate or to publish. The inbox of a user is then the union of the entries of their groups, read
+ * in the order of the document names, so that a page of it is read without going through the other drafts. The
+ * administrators of the wiki, who can act on all the drafts, get all the entries. The drafts whose workflow has no
+ * configuration, on which anyone allowed to edit them can act, are only listed for the administrators.
+ * <p>
+ * The entries of a wiki are loaded the first time they are needed, then kept up to date by
+ * {@link WorkflowInboxListener} as the drafts and the configurations are saved, see {@link WikiIndexes}. Since the
+ * groups of the users are resolved when the inbox is read, changing the members of a group needs no update.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = WorkflowInbox.class)
+@Singleton
+public class WorkflowInbox
+{
+    /**
+     * The statuses of the drafts waiting for an action.
+     */
+    public static final List<String> STATUSES = Arrays.asList(DefaultPublicationWorkflow.STATUS_MODERATING,
+        DefaultPublicationWorkflow.STATUS_VALIDATING, DefaultPublicationWorkflow.STATUS_VALID);
+
+    private static final String DRAFTS_STATEMENT = "select doc.fullName, status.value, config.value "
+        + "from XWikiDocument doc, BaseObject obj, StringProperty status, StringProperty config, "
+        + "IntegerProperty istarget where doc.translation = 0 and obj.name = doc.fullName "
+        + "and obj.className = :className and status.id.id = obj.id and status.id.name = 'status' "
+        + "and status.value in (:statuses) and config.id.id = obj.id and config.id.name = 'workflow' "
+        + "and istarget.id.id = obj.id and istarget.id.name = 'istarget' and istarget.value = 0";
+
+    private static final String CONFIGS_STATEMENT = "select obj.name, prop.id.name, prop.value "
+        + "from BaseObject obj, StringProperty prop where obj.className = :className and prop.id.id = obj.id "
+        + "and prop.id.name in (:roles)";
+
+    private static final String CLASS_NAME = "className";
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private PublicationRoles publicationRoles;
+
+    @Inject
+    private AuthorizationManager authManager;
+
+    @Inject
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @Inject
+    @Named("currentmixed")
+    private DocumentReferenceResolver<String> currentMixedStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    private final WikiIndexes<WikiInbox> wikis = new WikiIndexes<>(this::load);
+
+    /**
+     * The groups which can act on the drafts of a configuration, as stored in the configuration. They are resolved
+     * relative to each draft, like {@link DefaultPublicationRoles} does.
+     */
+    private static final class ConfigGroups
+    {
+        private String moderator;
+
+        private String validator;
+    }
+
+    /**
+     * A draft waiting for an action.
+     */
+    private static final class Entry
+    {
+        private final String status;
+
+        private final String config;
+
+        Entry(String status, String config)
+        {
+            this.status = status;
+            this.config = config;
+        }
+    }
+
+    /**
+     * The inbox of a wiki.
+     */
+    private static final class WikiInbox
+    {
+        private final WikiReference wiki;
+
+        private final Map<String, Entry> entries = new HashMap<>();
+
+        private final Map<String, ConfigGroups> configs = new HashMap<>();
+
+        private final NavigableSet<String> all = new ConcurrentSkipListSet<>();
+
+        private final Map<String, NavigableSet<String>> byGroup = new ConcurrentHashMap<>();
+
+        /**
+         * The size of the inbox of the users who asked for it since the last change.
+         */
+        private final Map<DocumentReference, Integer> counts = new ConcurrentHashMap<>();
+
+        WikiInbox(WikiReference wiki)
+        {
+            this.wiki = wiki;
+        }
+    }
+
+    /**
+     * Updates the inbox after a draft was saved or deleted.
+     *
+     * @param document a reference to the saved document
+     * @param status the workflow status of the document, {@code null} if it is not a draft anymore
+     * @param config the workflow configuration of the document, as stored in its workflow object
+     */
+    public void updateDocument(DocumentReference document, String status, String config)
+    {
+        String fullName = this.localSerializer.serialize(document);
+        this.wikis.update(document.getWikiReference(), inbox -> {
+            removeEntry(inbox, fullName);
+            if (status != null && STATUSES.contains(status)) {
+                addEntry(inbox, fullName, new Entry(status, resolveConfig(config, document.getWikiReference())));
+            }
+            inbox.counts.clear();
+        });
+    }
+
+    /**
+     * Updates the inbox after a workflow configuration was saved or deleted.
+     *
+     * @param config a reference to the saved configuration document
+     * @param moderator the moderator group of the configuration, {@code null} if it was deleted
+     * @param validator the validator group of the configuration, {@code null} if it was deleted
+     */
+    public void updateConfig(DocumentReference config, String moderator, String validator)
+    {
+        String configName = this.serializer.serialize(config);
+        this.wikis.update(config.getWikiReference(), inbox -> {
+            Map<String, Entry> configEntries = new HashMap<>();
+            for (Map.Entry<String, Entry> entry : inbox.entries.entrySet()) {
+                if (configName.equals(entry.getValue().config)) {
+                    configEntries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            // Remove the drafts of the configuration while its previous groups still tell where they are indexed.
+            for (String fullName : configEntries.keySet()) {
+                removeEntry(inbox, fullName);
+            }
+            ConfigGroups groups = new ConfigGroups();
+            groups.moderator = StringUtils.defaultIfEmpty(moderator, null);
+            groups.validator = StringUtils.defaultIfEmpty(validator, null);
+            inbox.configs.put(configName, groups);
+            // Index again the drafts of the configuration under its new groups.
+            for (Map.Entry<String, Entry> entry : configEntries.entrySet()) {
+                addEntry(inbox, entry.getKey(), entry.getValue());
+            }
+            inbox.counts.clear();
+        });
+    }
+
+    /**
+     * @param user a user, {@code null} for the guest user
+     * @param after the name of the last draft of the previous page, {@code null} for the first page
+     * @param limit the maximum number of drafts to return
+     * @param xcontext the current context
+     * @return the drafts of the current wiki which the passed user can moderate, validate or publish, in the order of
+     *     their names
+     * @throws XWikiException in case the inbox cannot be loaded or the groups of the user cannot be resolved
+     */
+    public List<DocumentReference> getDocuments(DocumentReference user, String after, int limit,
+        XWikiContext xcontext) throws XWikiException
+    {
+        if (user == null) {
+            return Collections.emptyList();
+        }
+        WikiReference wiki = new WikiReference(xcontext.getWikiId());
+        List<NavigableSet<String>> sets = getSets(this.wikis.get(wiki), user, xcontext);
+        // Merge the first names of each set after the passed one: no more than a page is read from each set.
+        TreeSet<String> page = new TreeSet<>();
+        for (NavigableSet<String> set : sets) {
+            Iterator<String> names = (after != null ? set.tailSet(after, false) : set).iterator();
+            for (int i = 0; i < limit && names.hasNext(); i++) {
+                page.add(names.next());
+            }
+        }
+        List<DocumentReference> documents = new ArrayList<>(Math.min(limit, page.size()));
+        for (String name : page) {
+            if (documents.size() == limit) {
+                break;
+            }
+            documents.add(this.explicitStringDocRefResolver.resolve(name, wiki));
+        }
+        return documents;
+    }
+
+    /**
+     * @param user a user, {@code null} for the guest user
+     * @param xcontext the current context
+     * @return the number of drafts of the current wiki which the passed user can moderate, validate or publish
+     * @throws XWikiException in case the inbox cannot be loaded or the groups of the user cannot be resolved
+     */
+    public int getCount(DocumentReference user, XWikiContext xcontext) throws XWikiException
+    {
+        // The guests can't act on any draft.
+        if (user == null) {
+            return 0;
+        }
+        WikiInbox inbox = this.wikis.get(new WikiReference(xcontext.getWikiId()));
+        Integer count = inbox.counts.get(user);
+        if (count == null) {
+            List<NavigableSet<String>> sets = getSets(inbox, user, xcontext);
+            if (sets.size() == 1) {
+                count = sets.get(0).size();
+            } else {
+                // A draft can be listed for several groups of the user.
+                Set<String> names = new HashSet<>();
+                for (NavigableSet<String> set : sets) {
+                    names.addAll(set);
+                }
+                count = names.size();
+            }
+            inbox.counts.put(user, count);
+        }
+        return count;
+    }
+
+    private List<NavigableSet<String>> getSets(WikiInbox inbox, DocumentReference user, XWikiContext xcontext)
+        throws XWikiException
+    {
+        if (this.authManager.hasAccess(Right.ADMIN, user, new WikiReference(xcontext.getWikiId()))) {
+            return Collections.singletonList(inbox.all);
+        }
+        List<NavigableSet<String>> sets = new ArrayList<>();
+        Collection<String> groups = this.publicationRoles.getGroups(user, true, true, true, xcontext);
+        for (String group : groups) {
+            NavigableSet<String> set = inbox.byGroup.get(group);
+            if (set != null) {
+                sets.add(set);
+            }
+        }
+        return sets;
+    }
+
+    private WikiInbox load(WikiReference wiki) throws XWikiException
+    {
+        WikiInbox inbox = new WikiInbox(wiki);
+        try {
+            Query configsQuery = this.queryManager.createQuery(CONFIGS_STATEMENT, Query.HQL);
+            configsQuery.setWiki(wiki.getName());
+            configsQuery.bindValue(CLASS_NAME,
+                this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CONFIG_CLASS));
+            configsQuery.bindValue("roles", Arrays.asList(DefaultPublicationRoles.WF_CONFIG_MODERATOR,
+                DefaultPublicationRoles.WF_CONFIG_VALIDATOR));
+            for (Object[] result : configsQuery.<Object[]>execute()) {
+                String configName = this.serializer.serialize(
+                    this.explicitStringDocRefResolver.resolve((String) result[0], wiki));
+                ConfigGroups groups = inbox.configs.computeIfAbsent(configName, name -> new ConfigGroups());
+                String group = StringUtils.defaultIfEmpty((String) result[2], null);
+                if (DefaultPublicationRoles.WF_CONFIG_MODERATOR.equals(result[1])) {
+                    groups.moderator = group;
+                } else {
+                    groups.validator = group;
+                }
+            }
+
+            Query draftsQuery = this.queryManager.createQuery(DRAFTS_STATEMENT, Query.HQL);
+            draftsQuery.setWiki(wiki.getName());
+            draftsQuery.bindValue(CLASS_NAME,
+                this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS));
+            draftsQuery.bindValue("statuses", STATUSES);
+            for (Object[] result : draftsQuery.<Object[]>execute()) {
+                addEntry(inbox, (String) result[0],
+                    new Entry((String) result[1], resolveConfig((String) result[2], wiki)));
+            }
+            return inbox;
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not load the drafts waiting for an action in [%s]", wiki), e);
+        }
+    }
+
+    private void addEntry(WikiInbox inbox, String fullName, Entry entry)
+    {
+        inbox.entries.put(fullName, entry);
+        inbox.all.add(fullName);
+        for (String group : getGroups(inbox, fullName, entry)) {
+            inbox.byGroup.computeIfAbsent(group, key -> new ConcurrentSkipListSet<>()).add(fullName);
+        }
+    }
+
+    private void removeEntry(WikiInbox inbox, String fullName)
+    {
+        Entry entry = inbox.entries.remove(fullName);
+        if (entry != null) {
+            inbox.all.remove(fullName);
+            for (String group : getGroups(inbox, fullName, entry)) {
+                NavigableSet<String> set = inbox.byGroup.get(group);
+                if (set != null) {
+                    set.remove(fullName);
+                }
+            }
+        }
+    }
+
+    private List<String> getGroups(WikiInbox inbox, String fullName, Entry entry)
+    {
+        ConfigGroups groups = entry.config != null ? inbox.configs.get(entry.config) : null;
+        if (groups == null) {
+            return Collections.emptyList();
+        }
+        DocumentReference document = this.explicitStringDocRefResolver.resolve(fullName, inbox.wiki);
+        List<String> result = new ArrayList<>(2);
+        // The validators can also moderate.
+        if (DefaultPublicationWorkflow.STATUS_MODERATING.equals(entry.status) && groups.moderator != null) {
+            result.add(resolveGroup(groups.moderator, document));
+        }
+        if (groups.validator != null) {
+            result.add(resolveGroup(groups.validator, document));
+        }
+        return result;
+    }
+
+    private String resolveConfig(String config, WikiReference wiki)
+    {
+        return StringUtils.isBlank(config) ? null
+            : this.serializer.serialize(this.currentMixedStringDocRefResolver.resolve(config, wiki));
+    }
+
+    private String resolveGroup(String group, DocumentReference document)
+    {
+        return this.serializer.serialize(this.explicitStringDocRefResolver.resolve(group, document));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link WorkflowInbox} up to date as the drafts and the workflow configurations are saved or deleted.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowinbox")
+@Singleton
+public class WorkflowInboxListener implements EventListener
+{
+    /**
+     * The fields of the workflow object which determine who can act on a draft.
+     */
+    private static final List<String> STATE_FIELDS = Arrays.asList(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME,
+        DefaultPublicationWorkflow.WF_CONFIG_REF_FIELDNAME, DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME);
+
+    @Inject
+    private WorkflowInbox inbox;
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowinbox";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        XWikiDocument originalDocument = document.getOriginalDocument();
+        boolean deleted = event instanceof DocumentDeletedEvent;
+
+        BaseObject workflow = deleted ? null : document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        BaseObject previousWorkflow = originalDocument != null
+            ? originalDocument.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS) : null;
+        if (workflow != null && workflow.getIntValue(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME) == 0) {
+            // Most of the saves of a draft are edits which don't change its workflow.
+            if (previousWorkflow == null || !isSameState(workflow, previousWorkflow)) {
+                this.inbox.updateDocument(document.getDocumentReference(),
+                    workflow.getStringValue(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME),
+                    workflow.getStringValue(DefaultPublicationWorkflow.WF_CONFIG_REF_FIELDNAME));
+            }
+        } else if (workflow != null || previousWorkflow != null) {
+            this.inbox.updateDocument(document.getDocumentReference(), null, null);
+        }
+
+        BaseObject config =
+            deleted ? null : document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CONFIG_CLASS);
+        BaseObject previousConfig = originalDocument != null
+            ? originalDocument.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CONFIG_CLASS) : null;
+        if (config != null) {
+            this.inbox.updateConfig(document.getDocumentReference(),
+                config.getStringValue(DefaultPublicationRoles.WF_CONFIG_MODERATOR),
+                config.getStringValue(DefaultPublicationRoles.WF_CONFIG_VALIDATOR));
+        } else if (previousConfig != null) {
+            this.inbox.updateConfig(document.getDocumentReference(), null, null);
+        }
+    }
+
+    private boolean isSameState(BaseObject workflow, BaseObject previousWorkflow)
+    {
+        for (String field : STATE_FIELDS) {
+            if (!Objects.equals(workflow.getStringValue(field), previousWorkflow.getStringValue(field))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
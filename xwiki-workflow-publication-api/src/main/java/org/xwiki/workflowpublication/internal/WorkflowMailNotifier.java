@@ -0,0 +1,422 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.velocity.VelocityContext;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.velocity.VelocityManager;
+import org.xwiki.workflowpublication.DocumentWorkflowTransitionEvent;
+import org.xwiki.workflowpublication.PublicationRoles;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+import org.xwiki.workflowpublication.WorkflowConfigManager;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.plugin.mailsender.MailSenderPlugin;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Mails the users who have to act on a workflow document, or who are told about its refusal, after each
+ * {@link DocumentWorkflowTransitionEvent}. The recipients are computed and the mails rendered from the
+ * {@code PublicationWorkflow.*MailTemplate} pages and sent by a background thread, so that the user performing the
+ * transition doesn't wait for them. When too many notifications are waiting, the extra ones are dropped. Unless
+ * disabled, the notifications are held for a short window and each recipient gets a single digest, rendered from
+ * {@code PublicationWorkflow.DigestMailTemplate}, of the documents which went through the same transition meanwhile,
+ * instead of one mail per document when many documents are submitted at once.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowmailnotifier")
+@Singleton
+public class WorkflowMailNotifier implements EventListener, Initializable, Disposable
+{
+    private static final String TEMPLATE_SPACE = "PublicationWorkflow.";
+
+    private static final String DIGEST_TEMPLATE = "DigestMailTemplate";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    private WorkflowConfigManager configManager;
+
+    @Inject
+    private PublicationRoles publicationRoles;
+
+    @Inject
+    private MailRecipientsResolver recipientsResolver;
+
+    @Inject
+    private VelocityManager velocityManager;
+
+    private ThreadPoolExecutor executor;
+
+    private ScheduledThreadPoolExecutor digestExecutor;
+
+    /**
+     * The notifications waiting for the end of the digest window.
+     */
+    private final List<Notification> pending = new ArrayList<>();
+
+    /**
+     * Whether the digest of the pending notifications is scheduled, only accessed while holding the pending lock.
+     */
+    private boolean digestScheduled;
+
+    @Override
+    public void initialize()
+    {
+        this.executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(Math.max(this.configuration.getNotificationQueueSize(), 1)),
+            new BasicThreadFactory.Builder().namingPattern("Publication workflow notifier %d").daemon(true)
+                .priority(Thread.MIN_PRIORITY).build(),
+            new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.digestExecutor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder()
+            .namingPattern("Publication workflow notification digest %d").daemon(true)
+            .priority(Thread.MIN_PRIORITY).build());
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+        this.digestExecutor.shutdownNow();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowmailnotifier";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Collections.singletonList(new DocumentWorkflowTransitionEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        DocumentWorkflowTransitionEvent transitionEvent = (DocumentWorkflowTransitionEvent) event;
+        if (this.configuration.getNotificationQueueSize() == 0 || transitionEvent.getTransition() == null) {
+            return;
+        }
+
+        XWikiContext xcontext = (XWikiContext) data;
+        XWikiDocument document = (XWikiDocument) source;
+        // The URL is computed from the current request, which the background thread doesn't have.
+        String url = document.getExternalURL("view", xcontext);
+        try {
+            this.executor.execute(new NotificationRunnable(document.getDocumentReference(),
+                transitionEvent.getTransition(), transitionEvent.getReason(), url, xcontext.getLocale()));
+        } catch (RejectedExecutionException e) {
+            this.logger.warn("Skipped the [{}] notification of [{}], too many pending notifications",
+                transitionEvent.getTransition(), document.getDocumentReference());
+        }
+    }
+
+    /**
+     * @param transition a workflow transition
+     * @param workflowConfig the workflow configuration of the document which went through the transition
+     * @param xcontext the current context
+     * @return the users or groups to notify of the passed transition
+     */
+    private String getRecipients(String transition, BaseObject workflowConfig, XWikiContext xcontext)
+    {
+        String moderators = this.publicationRoles.getModerators(workflowConfig, xcontext);
+        switch (transition) {
+            case DocumentWorkflowTransitionEvent.SUBMIT_FOR_MODERATION:
+                // The validators moderate when there is no moderator.
+                return StringUtils.isNotBlank(moderators) ? moderators
+                    : this.publicationRoles.getValidators(workflowConfig, xcontext);
+            case DocumentWorkflowTransitionEvent.REFUSE_VALIDATION:
+                return StringUtils.isNotBlank(moderators) ? moderators
+                    : this.publicationRoles.getContributors(workflowConfig, xcontext);
+            case DocumentWorkflowTransitionEvent.SUBMIT_FOR_VALIDATION:
+            case DocumentWorkflowTransitionEvent.UNPUBLISH:
+                return this.publicationRoles.getValidators(workflowConfig, xcontext);
+            case DocumentWorkflowTransitionEvent.REFUSE_MODERATION:
+                return this.publicationRoles.getContributors(workflowConfig, xcontext);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param transition a workflow transition
+     * @return the name, in the {@code PublicationWorkflow} space, of the mail template of the passed transition
+     */
+    private String getTemplate(String transition)
+    {
+        switch (transition) {
+            case DocumentWorkflowTransitionEvent.SUBMIT_FOR_MODERATION:
+                return "ValidationRequestMailTemplate";
+            case DocumentWorkflowTransitionEvent.REFUSE_VALIDATION:
+                return "PublicationRefusalMailTemplate";
+            case DocumentWorkflowTransitionEvent.SUBMIT_FOR_VALIDATION:
+                return "PublicationRequestMailTemplate";
+            case DocumentWorkflowTransitionEvent.UNPUBLISH:
+                return "DepublicationMailTemplate";
+            default:
+                return "ValidationRefusalMailTemplate";
+        }
+    }
+
+    private void queueForDigest(Notification notification)
+    {
+        synchronized (this.pending) {
+            this.pending.add(notification);
+            // The window starts with the first notification, so that none waits for more than its length.
+            if (!this.digestScheduled) {
+                this.digestScheduled = true;
+                this.digestExecutor.schedule(new DigestRunnable(), this.configuration.getNotificationDigestWindow(),
+                    TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private void send(Notification first, List<Notification> notifications, Set<String> emails,
+        XWikiContext xcontext) throws XWikiException
+    {
+        xcontext.setWikiId(first.reference.getWikiReference().getName());
+        if (first.locale != null) {
+            xcontext.setLocale(first.locale);
+        }
+        VelocityContext vcontext = new VelocityContext(this.velocityManager.getVelocityContext());
+        String template;
+        if (notifications.size() == 1) {
+            vcontext.put("document", first.title);
+            vcontext.put("url", first.url);
+            vcontext.put("reason", first.reason);
+            template = getTemplate(first.transition);
+        } else {
+            List<Map<String, String>> documents = new ArrayList<>(notifications.size());
+            for (Notification notification : notifications) {
+                Map<String, String> document = new HashMap<>();
+                document.put("document", notification.title);
+                document.put("url", notification.url);
+                document.put("reason", notification.reason);
+                documents.add(document);
+            }
+            vcontext.put("transition", first.transition);
+            vcontext.put("documents", documents);
+            template = DIGEST_TEMPLATE;
+        }
+        String from =
+            xcontext.getWiki().getXWikiPreference("admin_email", "mailer@xwiki.localdomain.com", xcontext);
+        MailSenderPlugin mailSender = (MailSenderPlugin) xcontext.getWiki().getPlugin("mailsender", xcontext);
+        int result = mailSender.sendMailFromTemplate(TEMPLATE_SPACE + template, from, StringUtils.join(emails, ", "),
+            null, null, Objects.toString(first.locale, null), vcontext, xcontext);
+        if (result != 0) {
+            this.logger.warn("Failed to send the [{}] notification of [{}] documents", first.transition,
+                notifications.size());
+        }
+    }
+
+    /**
+     * A notification whose recipients are computed, waiting to be sent.
+     */
+    private static final class Notification
+    {
+        private final DocumentReference reference;
+
+        private final String transition;
+
+        private final Locale locale;
+
+        private final String title;
+
+        private final String url;
+
+        private final String reason;
+
+        private final Set<String> emails;
+
+        Notification(DocumentReference reference, String transition, Locale locale, String title, String url,
+            String reason, Set<String> emails)
+        {
+            this.reference = reference;
+            this.transition = transition;
+            this.locale = locale;
+            this.title = title;
+            this.url = url;
+            this.reason = StringUtils.defaultString(reason);
+            this.emails = emails;
+        }
+    }
+
+    /**
+     * Computes the recipients of a notification, then sends it or queues it for the next digest, in a fresh execution
+     * context.
+     */
+    private final class NotificationRunnable extends AbstractXWikiRunnable
+    {
+        private final DocumentReference reference;
+
+        private final String transition;
+
+        private final String reason;
+
+        private final String url;
+
+        private final Locale locale;
+
+        NotificationRunnable(DocumentReference reference, String transition, String reason, String url,
+            Locale locale)
+        {
+            this.reference = reference;
+            this.transition = transition;
+            this.reason = reason;
+            this.url = url;
+            this.locale = locale;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null) {
+                return;
+            }
+            xcontext.setWikiId(this.reference.getWikiReference().getName());
+            if (this.locale != null) {
+                xcontext.setLocale(this.locale);
+            }
+            try {
+                XWikiDocument document = xcontext.getWiki().getDocument(this.reference, xcontext);
+                if (document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS) == null) {
+                    return;
+                }
+                BaseObject workflowConfig = configManager.getWorkflowConfigForWorkflowDoc(document, xcontext);
+                if (workflowConfig == null) {
+                    return;
+                }
+                Set<String> emails = recipientsResolver.getEmails(
+                    getRecipients(this.transition, workflowConfig, xcontext), this.reference.getWikiReference(),
+                    xcontext);
+                if (emails.isEmpty()) {
+                    return;
+                }
+
+                Notification notification = new Notification(this.reference, this.transition, this.locale,
+                    document.getRenderedTitle(Syntax.PLAIN_1_0, xcontext), this.url, this.reason, emails);
+                if (configuration.getNotificationDigestWindow() > 0) {
+                    queueForDigest(notification);
+                } else {
+                    send(notification, Collections.singletonList(notification), emails, xcontext);
+                }
+            } catch (XWikiException e) {
+                logger.warn("Failed to send the [{}] notification of [{}]", this.transition, this.reference, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the notifications queued during the digest window, in a fresh execution context. The notifications of the
+     * same transition and language are sent together, and the recipients notified of the same documents get the same
+     * mail, so that the template is rendered once per group of recipients instead of once per document.
+     */
+    private final class DigestRunnable extends AbstractXWikiRunnable
+    {
+        @Override
+        protected void runInternal()
+        {
+            List<Notification> notifications;
+            synchronized (pending) {
+                notifications = new ArrayList<>(pending);
+                pending.clear();
+                digestScheduled = false;
+            }
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null) {
+                return;
+            }
+
+            Map<List<Object>, List<Notification>> batches = new LinkedHashMap<>();
+            for (Notification notification : notifications) {
+                batches.computeIfAbsent(Arrays.asList(notification.reference.getWikiReference(),
+                    notification.transition, notification.locale), key -> new ArrayList<>()).add(notification);
+            }
+            for (List<Notification> batch : batches.values()) {
+                Map<String, List<Notification>> recipients = new LinkedHashMap<>();
+                for (Notification notification : batch) {
+                    for (String email : notification.emails) {
+                        recipients.computeIfAbsent(email, key -> new ArrayList<>()).add(notification);
+                    }
+                }
+                Map<List<Notification>, Set<String>> mails = new LinkedHashMap<>();
+                recipients.forEach((email, documents) ->
+                    mails.computeIfAbsent(documents, key -> new LinkedHashSet<>()).add(email));
+                for (Map.Entry<List<Notification>, Set<String>> mail : mails.entrySet()) {
+                    Notification first = mail.getKey().get(0);
+                    try {
+                        send(first, mail.getKey(), mail.getValue(), xcontext);
+                    } catch (XWikiException e) {
+                        logger.warn("Failed to send the [{}] notification of [{}] documents", first.transition,
+                            mail.getKey().size(), e);
+                    }
+                }
+            }
+        }
+    }
+}
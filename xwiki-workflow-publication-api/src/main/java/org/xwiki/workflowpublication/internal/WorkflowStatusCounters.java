@@ -0,0 +1,318 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+
+/**
+ * Counts the workflow documents of each wiki per workflow configuration, status and space, so that the dashboards
+ * don't query all the workflow objects each time. The counters of a wiki are loaded with a single aggregation query
+ * the first time they are needed, then updated by {@link WorkflowStatusCountersListener} each time a workflow document
+ * is saved or deleted, see {@link WikiIndexes}. Since the counters could drift when a change is missed, for instance
+ * when a document is saved on another cluster member, the counters of the loaded wikis are periodically computed
+ * again from the database.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component(roles = WorkflowStatusCounters.class)
+@Singleton
+public class WorkflowStatusCounters implements Initializable, Disposable
+{
+    /**
+     * Groups the counts per workflow status.
+     */
+    public static final String GROUP_BY_STATUS = "status";
+
+    /**
+     * Groups the counts per workflow configuration.
+     */
+    public static final String GROUP_BY_CONFIG = "config";
+
+    /**
+     * Groups the counts per space.
+     */
+    public static final String GROUP_BY_SPACE = "space";
+
+    /**
+     * Counts all the workflow objects, including the ones without a status or a configuration, which are counted by
+     * {@link WorkflowStatusCountersListener} with an empty one.
+     */
+    private static final String COUNTS_STATEMENT = "select config.value, status.value, doc.space, count(doc.fullName) "
+        + "from XWikiDocument doc, BaseObject obj "
+        + "left join StringProperty status on status.id.id = obj.id and status.id.name = 'status' "
+        + "left join StringProperty config on config.id.id = obj.id and config.id.name = 'workflow' "
+        + "where doc.translation = 0 and obj.name = doc.fullName and obj.className = :className "
+        + "group by config.value, status.value, doc.space";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private PublicationWorkflowConfiguration configuration;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("currentmixed")
+    private DocumentReferenceResolver<String> currentMixedStringDocRefResolver;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private final WikiIndexes<Map<State, LongAdder>> wikis = new WikiIndexes<>(this::load);
+
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The state of a workflow document which is counted: its configuration, its status and its space.
+     */
+    public static final class State
+    {
+        private final String config;
+
+        private final String status;
+
+        private final String space;
+
+        /**
+         * @param config the workflow configuration, relative to the wiki of the document, or {@code null}
+         * @param status the workflow status
+         * @param space the space of the document, relative to its wiki
+         */
+        public State(String config, String status, String space)
+        {
+            this.config = StringUtils.defaultString(config);
+            this.status = StringUtils.defaultString(status);
+            this.space = space;
+        }
+
+        private String get(String groupBy)
+        {
+            if (GROUP_BY_CONFIG.equals(groupBy)) {
+                return this.config;
+            } else if (GROUP_BY_SPACE.equals(groupBy)) {
+                return this.space;
+            }
+            return this.status;
+        }
+
+        private boolean matches(String config, String status, String space)
+        {
+            return (config == null || config.equals(this.config)) && (status == null || status.equals(this.status))
+                && (space == null || space.equals(this.space) || this.space.startsWith(space + '.'));
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if (this == object) {
+                return true;
+            }
+            if (!(object instanceof State)) {
+                return false;
+            }
+            State other = (State) object;
+            return this.config.equals(other.config) && this.status.equals(other.status)
+                && this.space.equals(other.space);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.config, this.status, this.space);
+        }
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.executor = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder()
+            .namingPattern("Publication workflow status counters %d").daemon(true).priority(Thread.MIN_PRIORITY)
+            .build());
+        int interval = this.configuration.getStatusCountersReconciliationInterval();
+        if (interval > 0) {
+            this.executor.scheduleWithFixedDelay(this::reconcile, interval, interval, TimeUnit.MINUTES);
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Updates the counters after a workflow document was saved or deleted.
+     *
+     * @param wiki the wiki of the document
+     * @param previousState the state of the document before it was saved, {@code null} if it had no workflow
+     * @param state the state of the document after it was saved, {@code null} if it has no workflow anymore
+     */
+    public void update(WikiReference wiki, State previousState, State state)
+    {
+        if (Objects.equals(previousState, state)) {
+            return;
+        }
+        this.wikis.update(wiki, counters -> {
+            if (previousState != null) {
+                counters.computeIfAbsent(previousState, key -> new LongAdder()).decrement();
+            }
+            if (state != null) {
+                counters.computeIfAbsent(state, key -> new LongAdder()).increment();
+            }
+        });
+    }
+
+    /**
+     * @param groupBy what to count the documents per: {@link #GROUP_BY_STATUS}, {@link #GROUP_BY_CONFIG} or
+     *     {@link #GROUP_BY_SPACE}
+     * @param config only count the documents of this workflow configuration, relative to the current wiki, or
+     *     {@code null} for all
+     * @param status only count the documents in this status, or {@code null} for all
+     * @param space only count the documents in this space or its descendants, relative to the current wiki, or
+     *     {@code null} for all
+     * @param xcontext the current context
+     * @return the number of workflow documents of the current wiki matching the passed criteria, per value of the
+     *     passed grouping, the values without documents being left out
+     * @throws XWikiException in case the counters of the wiki cannot be loaded
+     */
+    public Map<String, Long> getCounts(String groupBy, String config, String status, String space,
+        XWikiContext xcontext) throws XWikiException
+    {
+        Map<State, LongAdder> counters = this.wikis.get(new WikiReference(xcontext.getWikiId()));
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<State, LongAdder> counter : counters.entrySet()) {
+            long count = counter.getValue().sum();
+            if (count > 0 && counter.getKey().matches(config, status, space)) {
+                counts.merge(counter.getKey().get(groupBy), count, Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    private Map<State, LongAdder> load(WikiReference wiki) throws XWikiException
+    {
+        try {
+            Query query = this.queryManager.createQuery(COUNTS_STATEMENT, Query.HQL);
+            query.setWiki(wiki.getName());
+            query.bindValue("className",
+                this.localSerializer.serialize(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS));
+            Map<State, LongAdder> counters = new ConcurrentHashMap<>();
+            for (Object[] result : query.<Object[]>execute()) {
+                State state = new State(resolveConfig((String) result[0], wiki), (String) result[1],
+                    (String) result[2]);
+                counters.computeIfAbsent(state, key -> new LongAdder()).add(((Number) result[3]).longValue());
+            }
+            return counters;
+        } catch (QueryException e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SEARCH,
+                String.format("Could not count the workflow documents of [%s]", wiki), e);
+        }
+    }
+
+    /**
+     * @param config a workflow configuration, as stored in a workflow object
+     * @param wiki the wiki of the workflow object
+     * @return the passed configuration, relative to the passed wiki
+     */
+    public String resolveConfig(String config, WikiReference wiki)
+    {
+        return StringUtils.isBlank(config) ? null
+            : this.localSerializer.serialize(this.currentMixedStringDocRefResolver.resolve(config, wiki));
+    }
+
+    private void reconcile()
+    {
+        // Only the counters which are used are kept up to date.
+        for (WikiReference wiki : this.wikis.getLoadedWikis()) {
+            try {
+                new ReconciliationRunnable(wiki).run();
+            } catch (RuntimeException e) {
+                // Don't cancel the next reconciliations.
+                this.logger.error("Failed to count the workflow documents of [{}]", wiki, e);
+            }
+        }
+    }
+
+    /**
+     * Computes again the counters of a wiki from the database, in a fresh execution context.
+     */
+    private final class ReconciliationRunnable extends AbstractXWikiRunnable
+    {
+        private final WikiReference wiki;
+
+        ReconciliationRunnable(WikiReference wiki)
+        {
+            this.wiki = wiki;
+        }
+
+        @Override
+        protected void runInternal()
+        {
+            XWikiContext xcontext = xcontextProvider.get();
+            if (xcontext == null) {
+                return;
+            }
+            xcontext.setWikiId(this.wiki.getName());
+            try {
+                // The documents saved while counting may be counted twice or not at all until the next time.
+                wikis.reload(this.wiki);
+            } catch (XWikiException e) {
+                logger.warn("Failed to count the workflow documents of [{}]", this.wiki, e);
+            }
+        }
+    }
+}
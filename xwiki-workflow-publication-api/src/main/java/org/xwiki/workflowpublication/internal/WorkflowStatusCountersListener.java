@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps the {@link WorkflowStatusCounters} up to date as the workflow documents are saved or deleted, whether they
+ * go through a transition or not.
+ *
+ * @version $Id$
+ * @since 2.4.10
+ */
+@Component
+@Named("publicationworkflowstatuscounters")
+@Singleton
+public class WorkflowStatusCountersListener implements EventListener
+{
+    @Inject
+    private WorkflowStatusCounters counters;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Override
+    public String getName()
+    {
+        return "publicationworkflowstatuscounters";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument document = (XWikiDocument) source;
+        WikiReference wiki = document.getDocumentReference().getWikiReference();
+        WorkflowStatusCounters.State state =
+            event instanceof DocumentDeletedEvent ? null : getState(document, wiki);
+        WorkflowStatusCounters.State previousState =
+            document.getOriginalDocument() != null ? getState(document.getOriginalDocument(), wiki) : null;
+        this.counters.update(wiki, previousState, state);
+    }
+
+    private WorkflowStatusCounters.State getState(XWikiDocument document, WikiReference wiki)
+    {
+        // The original version of a created document is an empty document, without objects.
+        BaseObject workflow = document.getXObject(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS);
+        if (workflow == null) {
+            return null;
+        }
+        return new WorkflowStatusCounters.State(
+            this.counters.resolveConfig(workflow.getStringValue(DefaultPublicationWorkflow.WF_CONFIG_REF_FIELDNAME),
+                wiki),
+            workflow.getStringValue(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME),
+            this.localSerializer.serialize(document.getDocumentReference().getLastSpaceReference()));
+    }
+}
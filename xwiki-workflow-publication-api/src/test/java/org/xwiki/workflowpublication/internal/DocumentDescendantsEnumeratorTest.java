@@ -0,0 +1,287 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceProvider;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+/**
+ * Walks the descendants of a page over a fake store, which runs the keyset paginated query on a sorted list of
+ * pages.
+ */
+@ComponentTest
+class DocumentDescendantsEnumeratorTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    @InjectMockComponents
+    private DocumentDescendantsEnumerator enumerator;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @MockComponent
+    private EntityReferenceProvider defaultEntityReferenceProvider;
+
+    /**
+     * The pages of the wiki, as {space, name} pairs.
+     */
+    private final List<String[]> pages = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.defaultEntityReferenceProvider.getDefaultReference(EntityType.DOCUMENT))
+            .thenReturn(new EntityReference("WebHome", EntityType.DOCUMENT));
+        when(this.localSerializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            return reference.getReversedReferenceChain().stream().filter(part -> part.getType() != EntityType.WIKI)
+                .map(EntityReference::getName).collect(Collectors.joining("."));
+        });
+        when(this.explicitStringDocRefResolver.resolve(anyString(), eq(WIKI))).then(invocation -> {
+            List<String> parts = Arrays.asList(((String) invocation.getArgument(0)).split("\\."));
+            return new DocumentReference(WIKI.getName(), parts.subList(0, parts.size() - 1),
+                parts.get(parts.size() - 1));
+        });
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL)))
+            .then(invocation -> createQuery(invocation.getArgument(0)));
+    }
+
+    @Test
+    void testNestedSpaces() throws Exception
+    {
+        addPages("Drafts.WebHome", "Drafts.Topic.WebHome", "Drafts.Topic.Page", "Drafts.Topic.Child.WebHome",
+            "Drafts.Topic.Child.GrandChild.WebHome", "Drafts.TopicB.WebHome", "Drafts.Other.WebHome");
+
+        assertEquals(Arrays.asList("Drafts.Topic.Page", "Drafts.Topic.Child.WebHome",
+            "Drafts.Topic.Child.GrandChild.WebHome"), visit("Drafts.Topic.WebHome", 100));
+    }
+
+    @Test
+    void testBatchBoundaries() throws Exception
+    {
+        addPages("Drafts.Topic.WebHome", "Drafts.Topic.A", "Drafts.Topic.B", "Drafts.Topic.C", "Drafts.Topic.D");
+        List<String> expected = Arrays.asList("Drafts.Topic.A", "Drafts.Topic.B", "Drafts.Topic.C", "Drafts.Topic.D");
+
+        // The last batch is full, so an extra empty batch is fetched.
+        assertEquals(expected, visit("Drafts.Topic.WebHome", 2));
+        verify(this.queryManager, times(3)).createQuery(anyString(), eq(Query.HQL));
+
+        // The last batch is not full.
+        assertEquals(expected, visit("Drafts.Topic.WebHome", 3));
+        verify(this.queryManager, times(5)).createQuery(anyString(), eq(Query.HQL));
+    }
+
+    @Test
+    void testSameNameInSeveralSpaces() throws Exception
+    {
+        addPages("Drafts.Topic.WebHome", "Drafts.Topic.A.WebHome", "Drafts.Topic.A.Page", "Drafts.Topic.B.WebHome",
+            "Drafts.Topic.B.Page", "Drafts.Topic.C.Page");
+
+        // Each batch ends on a page whose name exists in the next spaces as well.
+        assertEquals(Arrays.asList("Drafts.Topic.A.Page", "Drafts.Topic.A.WebHome", "Drafts.Topic.B.Page",
+            "Drafts.Topic.B.WebHome", "Drafts.Topic.C.Page"), visit("Drafts.Topic.WebHome", 1));
+    }
+
+    @Test
+    void testLikeSpecialCharacters() throws Exception
+    {
+        addPages("Drafts.My_Topic.WebHome", "Drafts.My_Topic.Page", "Drafts.MyXTopic.Child.Page",
+            "Drafts.My%.Page");
+
+        assertEquals(Arrays.asList("Drafts.My_Topic.Page"), visit("Drafts.My_Topic.WebHome", 100));
+    }
+
+    @Test
+    void testTerminalPage() throws Exception
+    {
+        addPages("Drafts.Topic", "Drafts.Topic.WebHome", "Drafts.Topic.Page");
+
+        assertEquals(Arrays.asList(), visit("Drafts.Topic", 100));
+        verify(this.queryManager, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    void testDescendantsWithoutCounterpart() throws Exception
+    {
+        addPages("Drafts.Topic.WebHome", "Drafts.Topic.A", "Drafts.Topic.C.WebHome", "Drafts.Topic.C.Page",
+            "Public.Topic.WebHome", "Public.Topic.A", "Public.Topic.B", "Public.Topic.C.WebHome",
+            "Public.Topic.C.Old", "Public.Topic.C.Page", "Public.Topic.D.WebHome");
+
+        List<String> visited = new ArrayList<>();
+        this.enumerator.visitDescendantsWithoutCounterpart(resolve("Drafts.Topic.WebHome"),
+            resolve("Public.Topic.WebHome"), 2, descendant -> visited.add(toString(descendant)));
+        assertEquals(Arrays.asList("Public.Topic.B", "Public.Topic.C.Old", "Public.Topic.D.WebHome"), visited);
+    }
+
+    @Test
+    void testGetExisting() throws Exception
+    {
+        addPages("Drafts.Topic.WebHome", "Drafts.Topic.A", "Drafts.Topic.C");
+
+        // The database ignores the case of the names.
+        Set<DocumentReference> existing = this.enumerator.getExisting(WIKI,
+            Arrays.asList(resolve("Drafts.Topic.A"), resolve("Drafts.Topic.B"), resolve("Drafts.Topic.c")));
+        assertEquals(new HashSet<>(Arrays.asList(resolve("Drafts.Topic.A"), resolve("Drafts.Topic.c"))), existing);
+        verify(this.queryManager, times(1)).createQuery(anyString(), eq(Query.HQL));
+
+        assertEquals(new HashSet<>(), this.enumerator.getExisting(WIKI, Arrays.asList()));
+        verify(this.queryManager, times(1)).createQuery(anyString(), eq(Query.HQL));
+    }
+
+    private List<String> visit(String fullName, int batchSize) throws Exception
+    {
+        List<String> visited = new ArrayList<>();
+        this.enumerator.visitDescendants(resolve(fullName), batchSize,
+            descendant -> visited.add(toString(descendant)));
+        return visited;
+    }
+
+    private DocumentReference resolve(String fullName)
+    {
+        return this.explicitStringDocRefResolver.resolve(fullName, WIKI);
+    }
+
+    private String toString(DocumentReference reference)
+    {
+        return reference.getReversedReferenceChain().stream().filter(part -> part.getType() != EntityType.WIKI)
+            .map(EntityReference::getName).collect(Collectors.joining("."));
+    }
+
+    private void addPages(String... fullNames)
+    {
+        for (String fullName : fullNames) {
+            int separator = fullName.lastIndexOf('.');
+            this.pages.add(new String[] {fullName.substring(0, separator), fullName.substring(separator + 1)});
+        }
+        this.pages.sort(Comparator.<String[], String>comparing(page -> page[0]).thenComparing(page -> page[1]));
+    }
+
+    private Query createQuery(String statement) throws Exception
+    {
+        Map<String, Object> values = new HashMap<>();
+        int[] limit = new int[1];
+        Query query = mock(Query.class);
+        doAnswer(invocation -> {
+            values.put(invocation.getArgument(0), invocation.getArgument(1));
+            return query;
+        }).when(query).bindValue(anyString(), any());
+        doAnswer(invocation -> {
+            limit[0] = invocation.getArgument(0);
+            return query;
+        }).when(query).setLimit(anyInt());
+        if (statement.contains("(:names)")) {
+            when(query.execute()).then(invocation -> this.pages.stream().map(page -> page[0] + '.' + page[1])
+                .filter(name -> ((Collection<?>) values.get("names")).stream()
+                    .anyMatch(bound -> name.equalsIgnoreCase((String) bound)))
+                .collect(Collectors.toList()));
+            return query;
+        }
+        when(query.execute()).then(invocation -> {
+            Pattern spacePrefix = toPattern((String) values.get("spacePrefix"));
+            boolean keyset = statement.contains(":lastSpace");
+            List<Object[]> results = new ArrayList<>();
+            for (String[] page : this.pages) {
+                boolean descendant = (page[0].equals(values.get("space")) && !page[1].equals(values.get("name")))
+                    || spacePrefix.matcher(page[0]).matches();
+                int afterLast = keyset ? compare(page, (String) values.get("lastSpace"),
+                    (String) values.get("lastName")) : 1;
+                if (descendant && afterLast > 0 && results.size() < limit[0]) {
+                    results.add(new Object[] {page[0], page[1], page[0] + '.' + page[1]});
+                }
+            }
+            return results;
+        });
+        return query;
+    }
+
+    private int compare(String[] page, String space, String name)
+    {
+        int result = page[0].compareTo(space);
+        return result != 0 ? result : page[1].compareTo(name);
+    }
+
+    /**
+     * @return the regular expression equivalent to the passed like pattern, escaped with {@code /}
+     */
+    private Pattern toPattern(String like)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (c == '/') {
+                regex.append(Pattern.quote(String.valueOf(like.charAt(++i))));
+            } else if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
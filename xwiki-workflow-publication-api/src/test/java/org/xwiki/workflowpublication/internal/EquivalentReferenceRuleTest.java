@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.WikiReference;
+
+class EquivalentReferenceRuleTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    @Test
+    void testChildrenOfMovedSubtree()
+    {
+        EquivalentReferenceRule rule = EquivalentReferenceRule.compile(
+            toRef(WIKI, Arrays.asList("Drafts", "Topic"), "WebHome"),
+            toRef(WIKI, Arrays.asList("Drafts", "Section", "Topic"), "WebHome"));
+
+        assertEquals(toRef(WIKI, Arrays.asList("Drafts", "Section", "Topic", "Child", "GrandChild"), "WebHome"),
+            rule.apply(toRef(WIKI, Arrays.asList("Drafts", "Topic", "Child", "GrandChild"), "WebHome"), WIKI));
+    }
+
+    @Test
+    void testToTerminalPage()
+    {
+        EquivalentReferenceRule rule = EquivalentReferenceRule.compile(
+            toRef(WIKI, Arrays.asList("Drafts", "SimplePage"), "WebHome"),
+            toRef(WIKI, Arrays.asList("Drafts"), "SimplePage"));
+
+        assertEquals(toRef(WIKI, Arrays.asList("Public"), "SimplePage"),
+            rule.apply(toRef(WIKI, Arrays.asList("Public", "SimplePage"), "WebHome"), WIKI));
+    }
+
+    @Test
+    void testOtherWiki()
+    {
+        EquivalentReferenceRule rule = EquivalentReferenceRule.compile(
+            toRef(WIKI, Arrays.asList("Drafts", "BeforeRename"), "WebHome"),
+            toRef(WIKI, Arrays.asList("Drafts", "AfterRename"), "WebHome"));
+        WikiReference subwiki = new WikiReference("subwiki");
+
+        assertEquals(toRef(subwiki, Arrays.asList("Public", "AfterRename"), "WebHome"),
+            rule.apply(toRef(WIKI, Arrays.asList("Public", "BeforeRename"), "WebHome"), subwiki));
+    }
+
+    @Test
+    void testMoveOutsideTheRoot()
+    {
+        EquivalentReferenceRule rule = EquivalentReferenceRule.compile(
+            toRef(WIKI, Arrays.asList("Sandbox", "TopicDrafts", "TopicA1", "SubTopicB1"), "SubSubTopicC1"),
+            toRef(WIKI, Arrays.asList("Sandbox", "TopicDrafts"), "TopicC1"));
+
+        assertNull(rule.apply(toRef(WIKI, Arrays.asList("Topics"), "SubSubTopicC1"), WIKI));
+    }
+
+    @Test
+    void testIsCompiledFrom()
+    {
+        DocumentReference oldReference = toRef(WIKI, Arrays.asList("Drafts", "BeforeRename"), "WebHome");
+        DocumentReference newReference = toRef(WIKI, Arrays.asList("Drafts", "AfterRename"), "WebHome");
+        EquivalentReferenceRule rule = EquivalentReferenceRule.compile(oldReference, newReference);
+
+        assertTrue(rule.isCompiledFrom(oldReference, newReference));
+        assertFalse(rule.isCompiledFrom(newReference, oldReference));
+    }
+
+    private DocumentReference toRef(WikiReference wiki, List<String> spaces, String pageName)
+    {
+        return new DocumentReference(wiki.getName(), spaces, pageName);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Named;
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.rendering.block.Block;
+import org.xwiki.rendering.block.LinkBlock;
+import org.xwiki.rendering.block.WordBlock;
+import org.xwiki.rendering.block.XDOM;
+import org.xwiki.rendering.listener.reference.ResourceReference;
+import org.xwiki.rendering.listener.reference.ResourceType;
+import org.xwiki.rendering.parser.Parser;
+import org.xwiki.rendering.syntax.Syntax;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+/**
+ * Parses contents through the cache, with a fake parser which produces a link for the contents starting with
+ * {@code [[}.
+ */
+@ComponentTest
+class ParsedContentCacheTest
+{
+    private static final String LINK = "[[Page]]";
+
+    private static final String WORD = "Word";
+
+    @InjectMockComponents
+    private ParsedContentCache parsedContentCache;
+
+    @MockComponent
+    private CacheManager cacheManager;
+
+    @MockComponent
+    private PublicationWorkflowConfiguration configuration;
+
+    @MockComponent
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    private final Parser parser = mock(Parser.class);
+
+    private final Map<String, Object> cacheEntries = new HashMap<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        ComponentManager componentManager = mock(ComponentManager.class);
+        when(this.componentManagerProvider.get()).thenReturn(componentManager);
+        when(componentManager.getInstance(Parser.class, Syntax.XWIKI_2_1.toIdString())).thenReturn(this.parser);
+        when(componentManager.getInstance(Parser.class, Syntax.XWIKI_2_0.toIdString())).thenReturn(this.parser);
+        when(this.parser.parse(any(Reader.class))).then(invocation -> {
+            String content = new BufferedReader((Reader) invocation.getArgument(0)).readLine();
+            Block block = content.startsWith("[[")
+                ? new LinkBlock(Collections.emptyList(), new ResourceReference("Page", ResourceType.DOCUMENT), false)
+                : new WordBlock(content);
+            return new XDOM(Collections.singletonList(block));
+        });
+
+        Cache<Object> cache = mock(Cache.class);
+        doAnswer(invocation -> this.cacheEntries.put(invocation.getArgument(0), invocation.getArgument(1)))
+            .when(cache).set(anyString(), any());
+        when(cache.get(anyString())).then(invocation -> this.cacheEntries.get(invocation.getArgument(0)));
+        doReturn(cache).when(this.cacheManager).createNewLocalCache(any());
+    }
+
+    @Test
+    void testContentParsedOnce() throws Exception
+    {
+        enableCache();
+
+        XDOM first = this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1);
+        XDOM second = this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1);
+
+        verify(this.parser).parse(any(Reader.class));
+        assertEquals(1, this.cacheEntries.size());
+        assertNotSame(first, second);
+        assertEquals(1, second.getChildren().size());
+    }
+
+    @Test
+    void testCopyModified() throws Exception
+    {
+        enableCache();
+
+        this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1).getChildren().get(0)
+            .setParameter("modified", "true");
+
+        XDOM xDom = this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1);
+        assertNull(xDom.getChildren().get(0).getParameter("modified"));
+    }
+
+    @Test
+    void testContentWithoutReferences() throws Exception
+    {
+        enableCache();
+
+        assertNull(this.parsedContentCache.getReferencesXDOM(WORD, Syntax.XWIKI_2_1));
+        assertNull(this.parsedContentCache.getReferencesXDOM(WORD, Syntax.XWIKI_2_1));
+
+        // The absence of references is remembered as well.
+        verify(this.parser).parse(any(Reader.class));
+    }
+
+    @Test
+    void testSyntaxInKey() throws Exception
+    {
+        enableCache();
+
+        this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1);
+        this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_0);
+
+        verify(this.parser, times(2)).parse(any(Reader.class));
+        assertEquals(2, this.cacheEntries.size());
+    }
+
+    @Test
+    void testCacheDisabled() throws Exception
+    {
+        XDOM first = this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1);
+        XDOM second = this.parsedContentCache.getReferencesXDOM(LINK, Syntax.XWIKI_2_1);
+
+        verify(this.parser, times(2)).parse(any(Reader.class));
+        verify(this.cacheManager, times(0)).createNewLocalCache(any());
+        assertNotSame(first, second);
+        assertNull(this.parsedContentCache.getReferencesXDOM(WORD, Syntax.XWIKI_2_1));
+    }
+
+    private void enableCache() throws Exception
+    {
+        // The mocked configuration disabled the cache when the component was initialized.
+        when(this.configuration.getParsedContentCacheSize()).thenReturn(10);
+        this.parsedContentCache.initialize();
+    }
+}
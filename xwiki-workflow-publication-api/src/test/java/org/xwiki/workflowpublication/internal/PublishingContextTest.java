@@ -0,0 +1,139 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import com.xpn.xwiki.XWikiException;
+
+class PublishingContextTest
+{
+    private static final DocumentReference DRAFT = toRef(Arrays.asList("Drafts", "Topic"), "WebHome");
+
+    private static final DocumentReference TARGET = toRef(Arrays.asList("Public", "Topic"), "WebHome");
+
+    @Test
+    void testDraftOfPublishedTarget()
+    {
+        PublishingContext publishingContext = new PublishingContext(DRAFT, TARGET, true);
+        List<DocumentReference> resolved = new ArrayList<>();
+
+        // The draft being published is known without resolving it.
+        assertEquals(DRAFT, publishingContext.getDraftDocument(TARGET, reference -> {
+            resolved.add(reference);
+            return null;
+        }));
+        assertEquals(Arrays.asList(), resolved);
+    }
+
+    @Test
+    void testDraftResolvedOnce()
+    {
+        PublishingContext publishingContext = new PublishingContext(DRAFT, TARGET, true);
+        DocumentReference other = toRef(Arrays.asList("Public", "Other"), "WebHome");
+        List<DocumentReference> resolved = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            // A target without draft is remembered as well.
+            assertNull(publishingContext.getDraftDocument(other, reference -> {
+                resolved.add(reference);
+                return null;
+            }));
+        }
+        assertEquals(Arrays.asList(other), resolved);
+    }
+
+    @Test
+    void testSubtreeTarget()
+    {
+        PublishingContext publishingContext = new PublishingContext(DRAFT, TARGET, true);
+
+        assertEquals(TARGET, publishingContext.getSubtreeTarget(DRAFT));
+        assertEquals(toRef(Arrays.asList("Public", "Topic", "Child"), "WebHome"),
+            publishingContext.getSubtreeTarget(toRef(Arrays.asList("Drafts", "Topic", "Child"), "WebHome")));
+        assertEquals(toRef(Arrays.asList("Public", "Topic"), "Page"),
+            publishingContext.getSubtreeTarget(toRef(Arrays.asList("Drafts", "Topic"), "Page")));
+        assertNull(publishingContext.getSubtreeTarget(toRef(Arrays.asList("Drafts", "TopicB"), "WebHome")));
+        assertNull(publishingContext.getSubtreeTarget(toRef(Arrays.asList("Drafts"), "WebHome")));
+    }
+
+    @Test
+    void testSubtreeTargetWithoutChildren()
+    {
+        PublishingContext publishingContext = new PublishingContext(DRAFT, TARGET, false);
+
+        assertEquals(TARGET, publishingContext.getSubtreeTarget(DRAFT));
+        assertNull(publishingContext.getSubtreeTarget(toRef(Arrays.asList("Drafts", "Topic"), "Page")));
+    }
+
+    @Test
+    void testLinkTargetMemo() throws Exception
+    {
+        PublishingContext publishingContext = new PublishingContext(DRAFT, TARGET, true);
+        DocumentReference linkedDraft = toRef(Arrays.asList("Drafts", "Other"), "WebHome");
+        DocumentReference linkedTarget = toRef(Arrays.asList("Public", "Other"), "WebHome");
+        DocumentReference linkedPage = toRef(Arrays.asList("Main"), "WebHome");
+        List<DocumentReference> resolved = new ArrayList<>();
+        PublishingContext.LinkTargetResolver resolver = reference -> {
+            resolved.add(reference);
+            return reference.equals(linkedDraft) ? linkedTarget : null;
+        };
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(linkedTarget, publishingContext.getLinkTarget(linkedDraft, resolver));
+            // The pages which are not drafts are remembered as well.
+            assertNull(publishingContext.getLinkTarget(linkedPage, resolver));
+        }
+        assertEquals(Arrays.asList(linkedDraft, linkedPage), resolved);
+        assertEquals(4, publishingContext.getLinkTargetHits());
+        assertEquals(2, publishingContext.getLinkTargetMisses());
+    }
+
+    @Test
+    void testLinkTargetResolutionFailure() throws Exception
+    {
+        PublishingContext publishingContext = new PublishingContext(DRAFT, TARGET, true);
+        DocumentReference linkedDraft = toRef(Arrays.asList("Drafts", "Other"), "WebHome");
+        XWikiException exception = new XWikiException();
+
+        assertSame(exception, assertThrows(XWikiException.class, () -> publishingContext.getLinkTarget(linkedDraft,
+            reference -> {
+                throw exception;
+            })));
+        // A failure is not remembered.
+        assertNull(publishingContext.getLinkTarget(linkedDraft, reference -> null));
+        assertEquals(0, publishingContext.getLinkTargetHits());
+    }
+
+    private static DocumentReference toRef(List<String> spaces, String pageName)
+    {
+        return new DocumentReference("xwiki", spaces, pageName);
+    }
+}
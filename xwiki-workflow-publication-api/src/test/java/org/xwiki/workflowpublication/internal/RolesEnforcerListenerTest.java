@@ -0,0 +1,195 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.event.DocumentUpdatingEvent;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.workflowpublication.PublicationRoles;
+import org.xwiki.workflowpublication.PublicationWorkflow;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * Saves workflow documents whose workflow object was changed, by users who can or cannot validate them.
+ */
+@ComponentTest
+class RolesEnforcerListenerTest
+{
+    private static final DocumentReference DRAFT = new DocumentReference("xwiki", "Drafts", "Page");
+
+    private static final DocumentReference WORKFLOW_CLASS =
+        new DocumentReference("xwiki", "PublicationWorkflow", "PublicationWorkflowClass");
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "Contributor");
+
+    @InjectMockComponents
+    private RolesEnforcerListener listener;
+
+    @MockComponent
+    private PublicationWorkflow publicationWorkflow;
+
+    @MockComponent
+    private PublicationRoles publicationRoles;
+
+    @MockComponent
+    private ListenerMetrics metrics;
+
+    @MockComponent
+    @Named("current/reference")
+    private DocumentReferenceResolver<EntityReference> currentReferenceEntityResolver;
+
+    private XWikiContext context;
+
+    private XWikiDocument previousDocument;
+
+    private XWikiDocument currentDocument;
+
+    private BaseObject previousWorkflow;
+
+    @BeforeEach
+    void setUp()
+    {
+        this.context = mock(XWikiContext.class);
+        when(this.context.getUserReference()).thenReturn(USER);
+        when(this.currentReferenceEntityResolver.resolve(PublicationWorkflow.PUBLICATION_WORKFLOW_CLASS,
+            new WikiReference("xwiki"))).thenReturn(WORKFLOW_CLASS);
+
+        this.previousWorkflow = mockWorkflow("validating");
+        this.previousDocument = mock(XWikiDocument.class);
+        when(this.previousDocument.getXObject(WORKFLOW_CLASS)).thenReturn(this.previousWorkflow);
+        this.currentDocument = mock(XWikiDocument.class);
+        when(this.currentDocument.getDocumentReference()).thenReturn(DRAFT);
+        when(this.currentDocument.getOriginalDocument()).thenReturn(this.previousDocument);
+        when(this.publicationWorkflow.isWorkflowDocument(this.previousDocument, this.context)).thenReturn(true);
+    }
+
+    @Test
+    void testStatusChangedByContributor()
+    {
+        BaseObject currentWorkflow = mockWorkflow("valid");
+        when(this.currentDocument.getXObject(WORKFLOW_CLASS)).thenReturn(currentWorkflow);
+
+        save();
+
+        verify(currentWorkflow).set(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME, "validating", this.context);
+        verify(currentWorkflow).removeField(DefaultPublicationWorkflow.WF_PUBLISH_DATE_FIELDNAME);
+    }
+
+    @Test
+    void testStatusChangedByValidator()
+    {
+        BaseObject currentWorkflow = mockWorkflow("valid");
+        when(this.currentDocument.getXObject(WORKFLOW_CLASS)).thenReturn(currentWorkflow);
+        when(this.publicationRoles.canValidate(USER, this.previousDocument, this.context)).thenReturn(true);
+
+        save();
+
+        verify(currentWorkflow, never()).set(anyString(), any(), any());
+    }
+
+    @Test
+    void testStatusChangedByWorkflow()
+    {
+        BaseObject currentWorkflow = mockWorkflow("valid");
+        when(this.currentDocument.getXObject(WORKFLOW_CLASS)).thenReturn(currentWorkflow);
+        when(this.context.get(DefaultPublicationWorkflow.CONTEXTKEY_WORKFLOW_SAVE)).thenReturn(true);
+
+        save();
+
+        verify(currentWorkflow, never()).set(anyString(), any(), any());
+        verify(this.publicationRoles, never()).canValidate(any(), any(), any());
+    }
+
+    @Test
+    void testOtherPropertyChangedByContributor()
+    {
+        BaseObject currentWorkflow = mockWorkflow("validating");
+        when(this.currentDocument.getXObject(WORKFLOW_CLASS)).thenReturn(currentWorkflow);
+
+        save();
+
+        verify(currentWorkflow, never()).set(anyString(), any(), any());
+        verify(this.publicationRoles, never()).canValidate(any(), any(), any());
+    }
+
+    @Test
+    void testWorkflowObjectRemovedByContributor()
+    {
+        BaseObject duplicate = mock(BaseObject.class);
+        when(this.previousWorkflow.duplicate()).thenReturn(duplicate);
+
+        save();
+
+        verify(this.currentDocument).addXObject(duplicate);
+    }
+
+    private void save()
+    {
+        this.listener.onEvent(new DocumentUpdatingEvent(), this.currentDocument, this.context);
+    }
+
+    /**
+     * @return a workflow object with the passed status, all its other protected properties being the same
+     */
+    private BaseObject mockWorkflow(String status)
+    {
+        Map<String, Object> values = new HashMap<>();
+        values.put(DefaultPublicationWorkflow.WF_STATUS_FIELDNAME, status);
+        values.put(DefaultPublicationWorkflow.WF_STATUS_AUTHOR_FIELDNAME, "xwiki:XWiki.Contributor");
+        values.put(DefaultPublicationWorkflow.WF_IS_TARGET_FIELDNAME, 0);
+        values.put(DefaultPublicationWorkflow.WF_TARGET_FIELDNAME, "xwiki:Public.Page");
+        values.put(DefaultPublicationWorkflow.WF_CONFIG_REF_FIELDNAME, "xwiki:Config.Topic");
+
+        BaseObject workflow = mock(BaseObject.class);
+        when(workflow.safeget(anyString())).then(invocation -> {
+            Object value = values.get(invocation.<String>getArgument(0));
+            if (value == null) {
+                return null;
+            }
+            BaseProperty<?> property = mock(BaseProperty.class);
+            when(property.getValue()).thenReturn(value);
+            return property;
+        });
+        return workflow;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.workflowpublication.internal.TransitionLog.Transition;
+
+/**
+ * Writes batches of transitions to the log, in a temporary permanent directory, and queries them back.
+ */
+@ComponentTest
+class TransitionLogTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final String MODERATING = DefaultPublicationWorkflow.STATUS_MODERATING;
+
+    private static final String VALIDATING = DefaultPublicationWorkflow.STATUS_VALIDATING;
+
+    private static final String PUBLISHED = DefaultPublicationWorkflow.STATUS_PUBLISHED;
+
+    @InjectMockComponents
+    private TransitionLog transitionLog;
+
+    @MockComponent
+    private Environment environment;
+
+    @MockComponent
+    private PublicationWorkflowConfiguration configuration;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> stringSerializer;
+
+    private File permanentDirectory;
+
+    private final DocumentReference contributor = new DocumentReference("xwiki", "XWiki", "Contributor");
+
+    private final DocumentReference validator = new DocumentReference("xwiki", "XWiki", "Validator");
+
+    @BeforeComponent
+    void configure() throws Exception
+    {
+        this.permanentDirectory = Files.createTempDirectory("transitionlog").toFile();
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+        // The transitions are only written when they are queried.
+        when(this.configuration.getTransitionLogFlushInterval()).thenReturn(Integer.MAX_VALUE);
+    }
+
+    @BeforeEach
+    void setUp()
+    {
+        when(this.localSerializer.serialize(any())).then(invocation -> toLocalString(invocation.getArgument(0)));
+        when(this.stringSerializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            return reference.extractReference(EntityType.WIKI).getName() + ':' + toLocalString(reference);
+        });
+        when(this.explicitStringDocRefResolver.resolve(anyString(), any(WikiReference.class)))
+            .then(invocation -> resolve(invocation.getArgument(0)));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(this.permanentDirectory);
+    }
+
+    @Test
+    void testRange() throws Exception
+    {
+        record("Drafts.A", null, MODERATING, this.contributor, "2026-10-01T10:00:00Z");
+        record("Drafts.A", MODERATING, VALIDATING, this.validator, "2026-10-02T09:00:00Z");
+        record("Drafts.B", null, MODERATING, this.contributor, "2026-10-02T23:59:59Z");
+        record("Drafts.A", VALIDATING, PUBLISHED, this.validator, "2026-10-03T00:00:00Z");
+
+        assertEquals(Arrays.asList("Drafts.A validating>published 2026-10-03T00:00:00Z",
+            "Drafts.B null>moderating 2026-10-02T23:59:59Z", "Drafts.A moderating>validating 2026-10-02T09:00:00Z",
+            "Drafts.A null>moderating 2026-10-01T10:00:00Z"), getTransitions(null, null, null, null, 10));
+        // The lower bound is inclusive and the upper bound exclusive.
+        assertEquals(Arrays.asList("Drafts.B null>moderating 2026-10-02T23:59:59Z",
+            "Drafts.A moderating>validating 2026-10-02T09:00:00Z"),
+            getTransitions("2026-10-02T09:00:00Z", "2026-10-03T00:00:00Z", null, null, 10));
+        assertEquals(Collections.emptyList(),
+            getTransitions("2026-10-04T00:00:00Z", null, null, null, 10));
+
+        // The latest transitions are returned first, across the days.
+        assertEquals(Arrays.asList("Drafts.A validating>published 2026-10-03T00:00:00Z",
+            "Drafts.B null>moderating 2026-10-02T23:59:59Z"), getTransitions(null, null, null, null, 2));
+    }
+
+    @Test
+    void testBatches() throws Exception
+    {
+        record("Drafts.A", null, MODERATING, this.contributor, "2026-10-01T08:00:00Z");
+        record("Drafts.B", null, MODERATING, this.contributor, "2026-10-01T09:00:00Z");
+        getTransitions(null, null, null, null, 10);
+        record("Drafts.A", MODERATING, VALIDATING, this.validator, "2026-10-01T11:00:00Z");
+        getTransitions(null, null, null, null, 10);
+        // A batch written late, with a transition older than the ones of the previous batch.
+        record("Drafts.B", MODERATING, VALIDATING, this.validator, "2026-10-01T10:00:00Z");
+        record("Drafts.C", null, MODERATING, this.contributor, "2026-10-01T12:00:00Z");
+
+        // The index tells where each batch starts, with the latest time written before it.
+        assertEquals(Arrays.asList("Drafts.C null>moderating 2026-10-01T12:00:00Z",
+            "Drafts.A moderating>validating 2026-10-01T11:00:00Z",
+            "Drafts.B moderating>validating 2026-10-01T10:00:00Z"),
+            getTransitions("2026-10-01T10:00:00Z", null, null, null, 10));
+        assertEquals(2, Files.readAllLines(getSegment("2026-10-01", ".idx")).size());
+    }
+
+    @Test
+    void testUserAndDocument() throws Exception
+    {
+        record("Drafts.A", null, MODERATING, this.contributor, "2026-10-01T10:00:00Z");
+        record("Drafts.A", MODERATING, VALIDATING, this.validator, "2026-10-01T11:00:00Z");
+        record("Drafts.B", null, MODERATING, this.contributor, "2026-10-02T10:00:00Z");
+        record("Drafts.B", MODERATING, VALIDATING, this.validator, "2026-10-02T11:00:00Z");
+        record("Drafts.B", VALIDATING, PUBLISHED, null, "2026-10-02T12:00:00Z");
+
+        assertEquals(Arrays.asList("Drafts.B moderating>validating 2026-10-02T11:00:00Z",
+            "Drafts.A moderating>validating 2026-10-01T11:00:00Z"),
+            getTransitions(null, null, this.validator, null, 10));
+        assertEquals(Arrays.asList("Drafts.A moderating>validating 2026-10-01T11:00:00Z",
+            "Drafts.A null>moderating 2026-10-01T10:00:00Z"),
+            getTransitions(null, null, null, resolve("Drafts.A"), 10));
+        assertEquals(Arrays.asList("Drafts.B null>moderating 2026-10-02T10:00:00Z"),
+            getTransitions("2026-10-02T00:00:00Z", null, this.contributor, resolve("Drafts.B"), 10));
+
+        List<Transition> transitions =
+            this.transitionLog.getTransitions(WIKI, null, null, null, resolve("Drafts.B"), 1);
+        assertNull(transitions.get(0).getUser());
+    }
+
+    @Test
+    void testPartialLine() throws Exception
+    {
+        record("Drafts.A", null, MODERATING, this.contributor, "2026-10-01T10:00:00Z");
+        getTransitions(null, null, null, null, 10);
+        // A line cut by a crash.
+        Files.write(getSegment("2026-10-01", ".log"), "1790848800000\tDrafts.".getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+
+        record("Drafts.B", null, MODERATING, this.contributor, "2026-10-01T11:00:00Z");
+
+        assertEquals(Arrays.asList("Drafts.B null>moderating 2026-10-01T11:00:00Z",
+            "Drafts.A null>moderating 2026-10-01T10:00:00Z"), getTransitions(null, null, null, null, 10));
+    }
+
+    private void record(String document, String from, String to, DocumentReference user, String time)
+    {
+        this.transitionLog.record(new Transition(resolve(document), from, to, user, Date.from(Instant.parse(time)),
+            -1, 0));
+    }
+
+    /**
+     * @return the matching transitions, as {@code document from>to time} strings
+     */
+    private List<String> getTransitions(String from, String to, DocumentReference user, DocumentReference document,
+        int limit) throws Exception
+    {
+        return this.transitionLog.getTransitions(WIKI, from != null ? Date.from(Instant.parse(from)) : null,
+            to != null ? Date.from(Instant.parse(to)) : null, user, document, limit).stream()
+            .map(transition -> toLocalString(transition.getDocument()) + ' ' + transition.getFrom() + '>'
+                + transition.getTo() + ' ' + transition.getTime().toInstant())
+            .collect(Collectors.toList());
+    }
+
+    private Path getSegment(String day, String extension)
+    {
+        return new File(this.permanentDirectory, "workflowpublication/transitions/xwiki/" + day + extension).toPath();
+    }
+
+    private DocumentReference resolve(String name)
+    {
+        String localName = name.substring(name.indexOf(':') + 1);
+        List<String> parts = Arrays.asList(localName.split("\\."));
+        return new DocumentReference(WIKI.getName(), parts.subList(0, parts.size() - 1), parts.get(parts.size() - 1));
+    }
+
+    private String toLocalString(EntityReference reference)
+    {
+        return reference.getReversedReferenceChain().stream().filter(part -> part.getType() != EntityType.WIKI)
+            .map(EntityReference::getName).collect(Collectors.joining("."));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.WikiReference;
+
+import com.xpn.xwiki.XWikiException;
+
+/**
+ * Loads the index of a wiki once, only updates the loaded indexes, and loads again after a failure.
+ */
+class WikiIndexesTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final WikiIndexes<List<String>> indexes = new WikiIndexes<>(wiki -> {
+        List<String> index = new ArrayList<>();
+        index.add(wiki.getName() + this.loads.incrementAndGet());
+        return index;
+    });
+
+    @Test
+    void testLoadedOnce() throws Exception
+    {
+        List<String> index = this.indexes.get(WIKI);
+
+        assertSame(index, this.indexes.get(WIKI));
+        assertEquals(1, this.loads.get());
+        assertEquals(Collections.singletonList(WIKI), this.indexes.getLoadedWikis());
+    }
+
+    @Test
+    void testUpdate() throws Exception
+    {
+        // The index is not loaded yet: the database holds the change already.
+        this.indexes.update(WIKI, index -> index.add("before"));
+        this.indexes.get(WIKI);
+        this.indexes.update(WIKI, index -> index.add("after"));
+
+        assertEquals(Arrays.asList("xwiki1", "after"), this.indexes.get(WIKI));
+    }
+
+    @Test
+    void testReload() throws Exception
+    {
+        // Only the loaded indexes are loaded again.
+        this.indexes.reload(WIKI);
+        assertEquals(Collections.emptyList(), this.indexes.getLoadedWikis());
+
+        this.indexes.get(WIKI);
+        this.indexes.reload(WIKI);
+
+        assertEquals(Collections.singletonList("xwiki2"), this.indexes.get(WIKI));
+    }
+
+    @Test
+    void testLoadFailure() throws Exception
+    {
+        AtomicInteger attempts = new AtomicInteger();
+        WikiIndexes<String> failing = new WikiIndexes<>(wiki -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new XWikiException();
+            }
+            return wiki.getName();
+        });
+
+        assertThrows(XWikiException.class, () -> failing.get(WIKI));
+        assertEquals(Collections.emptyList(), failing.getLoadedWikis());
+        assertEquals(WIKI.getName(), failing.get(WIKI));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Lists the workflow documents waiting for the longest time in a status, loaded from fake queries, then updated.
+ */
+@ComponentTest
+class WorkflowAgeIndexTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final String MODERATING = DefaultPublicationWorkflow.STATUS_MODERATING;
+
+    private static final String VALIDATING = DefaultPublicationWorkflow.STATUS_VALIDATING;
+
+    @InjectMockComponents
+    private WorkflowAgeIndex index;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    private AuthorizationManager authManager;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private final XWikiContext xcontext = mock(XWikiContext.class);
+
+    private final DocumentReference user = new DocumentReference("xwiki", "XWiki", "User");
+
+    /**
+     * The workflow documents, as {name, status, modification date} rows.
+     */
+    private final List<Object[]> statuses = new ArrayList<>();
+
+    /**
+     * The dates the workflow documents entered their status, as {name, date} rows.
+     */
+    private final List<Object[]> dates = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.xcontext.getWikiId()).thenReturn(WIKI.getName());
+        when(this.xcontext.getUserReference()).thenReturn(this.user);
+        when(this.authManager.hasAccess(eq(Right.VIEW), eq(this.user), any())).thenReturn(true);
+        when(this.localSerializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            return reference.getReversedReferenceChain().stream().filter(part -> part.getType() != EntityType.WIKI)
+                .map(EntityReference::getName).collect(Collectors.joining("."));
+        });
+        when(this.explicitStringDocRefResolver.resolve(anyString(), any(WikiReference.class)))
+            .then(invocation -> resolve(invocation.getArgument(0)));
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL))).then(invocation -> {
+            Query query = mock(Query.class);
+            List<Object[]> results =
+                ((String) invocation.getArgument(0)).contains("DateProperty") ? this.dates : this.statuses;
+            when(query.execute()).thenReturn(new ArrayList<>(results));
+            return query;
+        });
+    }
+
+    @Test
+    void testOldestFirst() throws Exception
+    {
+        addDocument("Drafts.A", MODERATING, 30, 30);
+        addDocument("Drafts.B", MODERATING, 10, 10);
+        addDocument("Drafts.C", VALIDATING, 5, 5);
+        addDocument("Drafts.D", MODERATING, 20, 20);
+
+        assertEquals(Arrays.asList("Drafts.B@10", "Drafts.D@20"), getOldest(MODERATING, 2));
+        assertEquals(Arrays.asList("Drafts.B@10", "Drafts.D@20", "Drafts.A@30"), getOldest(MODERATING, 10));
+        assertEquals(Collections.emptyList(), getOldest(DefaultPublicationWorkflow.STATUS_VALID, 10));
+    }
+
+    @Test
+    void testStatusDate() throws Exception
+    {
+        // The status date wins over the modification date, which is only used when there is no status date.
+        addDocument("Drafts.A", MODERATING, 30, 10);
+        addDocument("Drafts.B", MODERATING, 20, 20);
+        this.statuses.add(new Object[] {"Drafts.C", MODERATING, new Date(15)});
+
+        assertEquals(Arrays.asList("Drafts.A@10", "Drafts.C@15", "Drafts.B@20"), getOldest(MODERATING, 10));
+    }
+
+    @Test
+    void testSameDate() throws Exception
+    {
+        addDocument("Drafts.B", MODERATING, 10, 10);
+        addDocument("Drafts.A", MODERATING, 10, 10);
+
+        assertEquals(Arrays.asList("Drafts.A@10", "Drafts.B@10"), getOldest(MODERATING, 10));
+    }
+
+    @Test
+    void testUpdate() throws Exception
+    {
+        addDocument("Drafts.A", MODERATING, 10, 10);
+        addDocument("Drafts.B", MODERATING, 20, 20);
+        addDocument("Drafts.C", MODERATING, 30, 30);
+        getOldest(MODERATING, 10);
+
+        // The oldest draft is submitted for validation.
+        this.index.update(resolve("Drafts.A"), VALIDATING, new Date(40));
+        // A draft goes back to moderation.
+        this.index.update(resolve("Drafts.B"), MODERATING, new Date(50));
+        // A draft is deleted.
+        this.index.update(resolve("Drafts.C"), null, null);
+
+        assertEquals(Arrays.asList("Drafts.B@50"), getOldest(MODERATING, 10));
+        assertEquals(Arrays.asList("Drafts.A@40"), getOldest(VALIDATING, 10));
+    }
+
+    @Test
+    void testViewRight() throws Exception
+    {
+        addDocument("Drafts.A", MODERATING, 10, 10);
+        addDocument("Drafts.B", MODERATING, 20, 20);
+        addDocument("Drafts.C", MODERATING, 30, 30);
+        when(this.authManager.hasAccess(Right.VIEW, this.user, resolve("Drafts.A"))).thenReturn(false);
+
+        // The documents the user cannot view don't count in the limit.
+        assertEquals(Arrays.asList("Drafts.B@20", "Drafts.C@30"), getOldest(MODERATING, 2));
+    }
+
+    private void addDocument(String fullName, String status, long modificationTime, long statusTime)
+    {
+        this.statuses.add(new Object[] {fullName, status, new Date(modificationTime)});
+        this.dates.add(new Object[] {fullName, new Date(statusTime)});
+    }
+
+    /**
+     * @return the oldest documents, as {@code name@time} strings
+     */
+    private List<String> getOldest(String status, int limit) throws Exception
+    {
+        return this.index.getOldest(status, limit, this.xcontext).entrySet().stream()
+            .map(entry -> this.localSerializer.serialize(entry.getKey()) + '@' + entry.getValue().getTime())
+            .collect(Collectors.toList());
+    }
+
+    private DocumentReference resolve(String fullName)
+    {
+        List<String> parts = Arrays.asList(fullName.split("\\."));
+        return new DocumentReference(WIKI.getName(), parts.subList(0, parts.size() - 1), parts.get(parts.size() - 1));
+    }
+}
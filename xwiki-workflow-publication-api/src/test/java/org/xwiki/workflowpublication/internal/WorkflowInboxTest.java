@@ -0,0 +1,278 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.workflowpublication.PublicationRoles;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Reads the inbox of users over a fake store, after the drafts and the configurations changed.
+ */
+@ComponentTest
+class WorkflowInboxTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final String CONFIG = "Config.Topic";
+
+    private static final String MODERATORS = "xwiki:Groups.Moderators";
+
+    private static final String NEW_MODERATORS = "xwiki:Groups.NewModerators";
+
+    private static final String VALIDATORS = "xwiki:Groups.Validators";
+
+    @InjectMockComponents
+    private WorkflowInbox inbox;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    private PublicationRoles publicationRoles;
+
+    @MockComponent
+    private AuthorizationManager authManager;
+
+    @MockComponent
+    @Named("explicit")
+    private DocumentReferenceResolver<String> explicitStringDocRefResolver;
+
+    @MockComponent
+    @Named("currentmixed")
+    private DocumentReferenceResolver<String> currentMixedStringDocRefResolver;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @MockComponent
+    private EntityReferenceSerializer<String> serializer;
+
+    private final XWikiContext xcontext = mock(XWikiContext.class);
+
+    private final DocumentReference moderator = new DocumentReference("xwiki", "XWiki", "Moderator");
+
+    private final DocumentReference newModerator = new DocumentReference("xwiki", "XWiki", "NewModerator");
+
+    private final DocumentReference validator = new DocumentReference("xwiki", "XWiki", "Validator");
+
+    /**
+     * The configurations of the wiki, as {name, role, group} rows.
+     */
+    private final List<Object[]> configs = new ArrayList<>();
+
+    /**
+     * The drafts of the wiki, as {name, status, configuration} rows.
+     */
+    private final List<Object[]> drafts = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.xcontext.getWikiId()).thenReturn(WIKI.getName());
+        when(this.localSerializer.serialize(any())).then(invocation -> toLocalString(invocation.getArgument(0)));
+        when(this.serializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            return reference.extractReference(EntityType.WIKI).getName() + ':' + toLocalString(reference);
+        });
+        when(this.explicitStringDocRefResolver.resolve(anyString(), any(WikiReference.class)))
+            .then(invocation -> resolve(invocation.getArgument(0), invocation.getArgument(1)));
+        // The groups are resolved relative to the drafts.
+        when(this.explicitStringDocRefResolver.resolve(anyString(), any(DocumentReference.class)))
+            .then(invocation -> resolve(invocation.getArgument(0), invocation.<DocumentReference>getArgument(1)));
+        when(this.currentMixedStringDocRefResolver.resolve(anyString(), any(WikiReference.class)))
+            .then(invocation -> resolve(invocation.getArgument(0), invocation.getArgument(1)));
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL))).then(invocation -> {
+            Query query = mock(Query.class);
+            List<Object[]> results =
+                ((String) invocation.getArgument(0)).contains(":roles") ? this.configs : this.drafts;
+            when(query.execute()).thenReturn(new ArrayList<>(results));
+            return query;
+        });
+        when(this.publicationRoles.getGroups(eq(this.moderator), anyBoolean(), anyBoolean(), anyBoolean(), any()))
+            .thenReturn(Collections.singletonList(MODERATORS));
+        when(this.publicationRoles.getGroups(eq(this.newModerator), anyBoolean(), anyBoolean(), anyBoolean(), any()))
+            .thenReturn(Collections.singletonList(NEW_MODERATORS));
+        when(this.publicationRoles.getGroups(eq(this.validator), anyBoolean(), anyBoolean(), anyBoolean(), any()))
+            .thenReturn(Collections.singletonList(VALIDATORS));
+
+        this.configs.add(new Object[] {CONFIG, DefaultPublicationRoles.WF_CONFIG_MODERATOR, MODERATORS});
+        this.configs.add(new Object[] {CONFIG, DefaultPublicationRoles.WF_CONFIG_VALIDATOR, VALIDATORS});
+    }
+
+    @Test
+    void testModeratorChange() throws Exception
+    {
+        addDraft("Drafts.A", DefaultPublicationWorkflow.STATUS_MODERATING);
+        assertEquals(1, this.inbox.getCount(this.moderator, this.xcontext));
+
+        this.inbox.updateConfig(resolve(CONFIG, WIKI), NEW_MODERATORS, VALIDATORS);
+
+        assertEquals(Collections.emptyList(), getDocuments(this.moderator, null, 10));
+        assertEquals(0, this.inbox.getCount(this.moderator, this.xcontext));
+        assertEquals(Arrays.asList("Drafts.A"), getDocuments(this.newModerator, null, 10));
+        assertEquals(Arrays.asList("Drafts.A"), getDocuments(this.validator, null, 10));
+    }
+
+    @Test
+    void testConfigDeleted() throws Exception
+    {
+        addDraft("Drafts.A", DefaultPublicationWorkflow.STATUS_VALIDATING);
+        assertEquals(1, this.inbox.getCount(this.validator, this.xcontext));
+
+        this.inbox.updateConfig(resolve(CONFIG, WIKI), null, null);
+
+        assertEquals(Collections.emptyList(), getDocuments(this.validator, null, 10));
+        assertEquals(0, this.inbox.getCount(this.validator, this.xcontext));
+    }
+
+    @Test
+    void testStatusChange() throws Exception
+    {
+        addDraft("Drafts.A", DefaultPublicationWorkflow.STATUS_MODERATING);
+        assertEquals(1, this.inbox.getCount(this.moderator, this.xcontext));
+        assertEquals(1, this.inbox.getCount(this.validator, this.xcontext));
+
+        // Only the validators can act on the drafts being validated.
+        this.inbox.updateDocument(resolve("Drafts.A", WIKI), DefaultPublicationWorkflow.STATUS_VALIDATING, CONFIG);
+        assertEquals(0, this.inbox.getCount(this.moderator, this.xcontext));
+        assertEquals(1, this.inbox.getCount(this.validator, this.xcontext));
+
+        // The published drafts wait for no action.
+        this.inbox.updateDocument(resolve("Drafts.A", WIKI), DefaultPublicationWorkflow.STATUS_PUBLISHED, CONFIG);
+        assertEquals(0, this.inbox.getCount(this.validator, this.xcontext));
+    }
+
+    @Test
+    void testPages() throws Exception
+    {
+        addDraft("Drafts.A", DefaultPublicationWorkflow.STATUS_MODERATING);
+        addDraft("Drafts.B", DefaultPublicationWorkflow.STATUS_VALIDATING);
+        addDraft("Drafts.C", DefaultPublicationWorkflow.STATUS_MODERATING);
+        addDraft("Drafts.D", DefaultPublicationWorkflow.STATUS_VALID);
+        when(this.publicationRoles.getGroups(eq(this.moderator), anyBoolean(), anyBoolean(), anyBoolean(), any()))
+            .thenReturn(Arrays.asList(MODERATORS, VALIDATORS));
+
+        // The drafts listed for both groups of the user are listed once.
+        assertEquals(4, this.inbox.getCount(this.moderator, this.xcontext));
+        assertEquals(Arrays.asList("Drafts.A", "Drafts.B", "Drafts.C"), getDocuments(this.moderator, null, 3));
+        assertEquals(Arrays.asList("Drafts.D"), getDocuments(this.moderator, "Drafts.C", 3));
+    }
+
+    @Test
+    void testAdministrator() throws Exception
+    {
+        DocumentReference admin = new DocumentReference("xwiki", "XWiki", "Admin");
+        when(this.authManager.hasAccess(Right.ADMIN, admin, WIKI)).thenReturn(true);
+        addDraft("Drafts.A", DefaultPublicationWorkflow.STATUS_MODERATING);
+        this.drafts.add(new Object[] {"Drafts.B", DefaultPublicationWorkflow.STATUS_VALIDATING, ""});
+
+        // The drafts without configuration are only listed for the administrators.
+        assertEquals(Arrays.asList("Drafts.A", "Drafts.B"), getDocuments(admin, null, 10));
+        assertEquals(Arrays.asList("Drafts.A"), getDocuments(this.validator, null, 10));
+    }
+
+    @Test
+    void testRelativeGroups() throws Exception
+    {
+        this.configs.clear();
+        this.configs.add(new Object[] {CONFIG, DefaultPublicationRoles.WF_CONFIG_VALIDATOR, "Validators"});
+        addDraft("Drafts.A", DefaultPublicationWorkflow.STATUS_VALIDATING);
+        addDraft("Other.B", DefaultPublicationWorkflow.STATUS_VALIDATING);
+        when(this.publicationRoles.getGroups(eq(this.validator), anyBoolean(), anyBoolean(), anyBoolean(), any()))
+            .thenReturn(Collections.singletonList("xwiki:Drafts.Validators"));
+
+        // The group of a configuration is the one in the space of each draft.
+        assertEquals(Arrays.asList("Drafts.A"), getDocuments(this.validator, null, 10));
+
+        this.inbox.updateConfig(resolve(CONFIG, WIKI), null, "Groups.Validators");
+        when(this.publicationRoles.getGroups(eq(this.validator), anyBoolean(), anyBoolean(), anyBoolean(), any()))
+            .thenReturn(Collections.singletonList("xwiki:Groups.Validators"));
+        assertEquals(Arrays.asList("Drafts.A", "Other.B"), getDocuments(this.validator, null, 10));
+    }
+
+    private void addDraft(String fullName, String status)
+    {
+        this.drafts.add(new Object[] {fullName, status, CONFIG});
+    }
+
+    private List<String> getDocuments(DocumentReference user, String after, int limit) throws Exception
+    {
+        return this.inbox.getDocuments(user, after, limit, this.xcontext).stream().map(this::toLocalString)
+            .collect(Collectors.toList());
+    }
+
+    private DocumentReference resolve(String name, WikiReference wiki)
+    {
+        int wikiSeparator = name.indexOf(':');
+        String wikiName = wikiSeparator < 0 ? wiki.getName() : name.substring(0, wikiSeparator);
+        List<String> parts = Arrays.asList(name.substring(wikiSeparator + 1).split("\\."));
+        return new DocumentReference(wikiName, parts.subList(0, parts.size() - 1), parts.get(parts.size() - 1));
+    }
+
+    /**
+     * @return the passed name, in the space of the passed document when it has no space
+     */
+    private DocumentReference resolve(String name, DocumentReference document)
+    {
+        if (name.indexOf(':') < 0 && name.indexOf('.') < 0) {
+            return new DocumentReference(name, document.getLastSpaceReference());
+        }
+        return resolve(name, document.getWikiReference());
+    }
+
+    private String toLocalString(EntityReference reference)
+    {
+        return reference.getReversedReferenceChain().stream().filter(part -> part.getType() != EntityType.WIKI)
+            .map(EntityReference::getName).collect(Collectors.joining("."));
+    }
+}
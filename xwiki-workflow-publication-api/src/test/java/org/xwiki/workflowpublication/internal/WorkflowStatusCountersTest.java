@@ -0,0 +1,231 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.workflowpublication.internal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.workflowpublication.internal.WorkflowStatusCounters.State;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Rolls up the counters of the workflow documents, loaded from a fake aggregation query, then updated.
+ */
+@ComponentTest
+class WorkflowStatusCountersTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final String MODERATING = DefaultPublicationWorkflow.STATUS_MODERATING;
+
+    private static final String VALIDATING = DefaultPublicationWorkflow.STATUS_VALIDATING;
+
+    private static final String PUBLISHED = DefaultPublicationWorkflow.STATUS_PUBLISHED;
+
+    @InjectMockComponents
+    private WorkflowStatusCounters counters;
+
+    @MockComponent
+    private QueryManager queryManager;
+
+    @MockComponent
+    @Named("currentmixed")
+    private DocumentReferenceResolver<String> currentMixedStringDocRefResolver;
+
+    @MockComponent
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    private final XWikiContext xcontext = mock(XWikiContext.class);
+
+    /**
+     * The result of the aggregation query, as {config, status, space, count} rows.
+     */
+    private final List<Object[]> rows = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception
+    {
+        when(this.xcontext.getWikiId()).thenReturn(WIKI.getName());
+        when(this.localSerializer.serialize(any())).then(invocation -> {
+            EntityReference reference = invocation.getArgument(0);
+            return reference.getReversedReferenceChain().stream().filter(part -> part.getType() != EntityType.WIKI)
+                .map(EntityReference::getName).collect(Collectors.joining("."));
+        });
+        when(this.currentMixedStringDocRefResolver.resolve(anyString(), any(WikiReference.class))).then(invocation -> {
+            String name = invocation.getArgument(0);
+            List<String> parts = Arrays.asList(name.substring(name.indexOf(':') + 1).split("\\."));
+            return new DocumentReference(WIKI.getName(), parts.subList(0, parts.size() - 1),
+                parts.get(parts.size() - 1));
+        });
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL))).then(invocation -> {
+            Query query = mock(Query.class);
+            when(query.execute()).thenReturn(new ArrayList<>(this.rows));
+            return query;
+        });
+
+        this.rows.add(new Object[] {"Config.A", MODERATING, "Drafts.Topic", 2L});
+        this.rows.add(new Object[] {"xwiki:Config.A", VALIDATING, "Drafts.Topic.Child", 3L});
+        this.rows.add(new Object[] {"Config.B", MODERATING, "Drafts.Topic", 4L});
+        this.rows.add(new Object[] {"", PUBLISHED, "Public.Topic", 5L});
+    }
+
+    @Test
+    void testGroupBy() throws Exception
+    {
+        assertEquals(counts(MODERATING, 6, PUBLISHED, 5, VALIDATING, 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null));
+        // The configurations are relative to the wiki, and the documents without configuration are counted as well.
+        assertEquals(counts("", 5, "Config.A", 5, "Config.B", 4),
+            getCounts(WorkflowStatusCounters.GROUP_BY_CONFIG, null, null, null));
+        assertEquals(counts("Drafts.Topic", 6, "Drafts.Topic.Child", 3, "Public.Topic", 5),
+            getCounts(WorkflowStatusCounters.GROUP_BY_SPACE, null, null, null));
+
+        // The counters are loaded once.
+        verify(this.queryManager, times(1)).createQuery(anyString(), eq(Query.HQL));
+    }
+
+    @Test
+    void testFilters() throws Exception
+    {
+        assertEquals(counts(MODERATING, 2, VALIDATING, 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, "Config.A", null, null));
+        assertEquals(counts("Config.A", 2, "Config.B", 4),
+            getCounts(WorkflowStatusCounters.GROUP_BY_CONFIG, null, MODERATING, null));
+        assertEquals(counts("Config.A", 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_CONFIG, null, VALIDATING, "Drafts"));
+        assertEquals(counts(MODERATING, 2), getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, "Config.A",
+            MODERATING, "Drafts.Topic"));
+    }
+
+    @Test
+    void testSpaceRollup() throws Exception
+    {
+        // The descendants of the space are counted, but not the spaces whose name only starts like it.
+        this.rows.add(new Object[] {"Config.A", MODERATING, "Drafts.TopicB", 7L});
+
+        assertEquals(counts(MODERATING, 6, VALIDATING, 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, "Drafts.Topic"));
+        assertEquals(counts(VALIDATING, 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, "Drafts.Topic.Child"));
+        assertEquals(Collections.emptyMap(), getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, "Draft"));
+    }
+
+    @Test
+    void testUpdate() throws Exception
+    {
+        getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null);
+
+        // Publish a draft being validated.
+        this.counters.update(WIKI, new State("Config.A", VALIDATING, "Drafts.Topic.Child"),
+            new State("Config.A", PUBLISHED, "Drafts.Topic.Child"));
+        // Create a new draft.
+        this.counters.update(WIKI, null, new State("Config.B", MODERATING, "Drafts.Other"));
+        // Delete a published document.
+        this.counters.update(WIKI, new State(null, PUBLISHED, "Public.Topic"), null);
+
+        assertEquals(counts(MODERATING, 7, PUBLISHED, 5, VALIDATING, 2),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null));
+        assertEquals(counts("Drafts.Other", 1, "Drafts.Topic", 6, "Drafts.Topic.Child", 3, "Public.Topic", 4),
+            getCounts(WorkflowStatusCounters.GROUP_BY_SPACE, null, null, null));
+    }
+
+    @Test
+    void testEmptyCountersLeftOut() throws Exception
+    {
+        getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null);
+
+        for (int i = 0; i < 3; i++) {
+            this.counters.update(WIKI, new State("Config.A", VALIDATING, "Drafts.Topic.Child"), null);
+        }
+
+        assertEquals(counts(MODERATING, 6, PUBLISHED, 5),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null));
+    }
+
+    @Test
+    void testObjectsWithoutConfig() throws Exception
+    {
+        // The workflow objects without configuration property are loaded like the listener counts them.
+        this.rows.add(new Object[] {null, null, "Public.Other", 1L});
+        getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null);
+
+        this.counters.update(WIKI, new State(null, null, "Public.Other"), null);
+
+        assertEquals(counts("", 5, "Config.A", 5, "Config.B", 4),
+            getCounts(WorkflowStatusCounters.GROUP_BY_CONFIG, null, null, null));
+        assertEquals(counts(MODERATING, 6, PUBLISHED, 5, VALIDATING, 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null));
+    }
+
+    @Test
+    void testUpdateBeforeLoad() throws Exception
+    {
+        // The counters are not loaded yet: the database holds the change already.
+        this.counters.update(WIKI, null, new State("Config.A", MODERATING, "Drafts.Topic"));
+
+        assertEquals(counts(MODERATING, 6, PUBLISHED, 5, VALIDATING, 3),
+            getCounts(WorkflowStatusCounters.GROUP_BY_STATUS, null, null, null));
+    }
+
+    private Map<String, Long> getCounts(String groupBy, String config, String status, String space) throws Exception
+    {
+        return this.counters.getCounts(groupBy, config, status, space, this.xcontext);
+    }
+
+    private Map<String, Long> counts(Object... keysAndCounts)
+    {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndCounts.length; i += 2) {
+            counts.put((String) keysAndCounts[i], ((Integer) keysAndCounts[i + 1]).longValue());
+        }
+        return counts;
+    }
+}